@@ -0,0 +1,87 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ableton.push.controller;
+
+import com.ktemkin.framework.daw.FakeHost;
+import com.ktemkin.framework.graphics.OffscreenBitmap;
+import com.ktemkin.framework.graphics.SyntheticFrames;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the encoding of frames for the Push 2 display. USB transfers go to a fake device, on the display's own
+ * sender thread; so this measures the work done on the thread that renders.
+ *
+ * @author Kate Temkin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushUsbDisplayBenchmark {
+
+    private static final int WIDTH = 960;
+    private static final int HEIGHT = 160;
+
+    @Param({ "true", "false" })
+    public boolean isDamageTracking;
+
+    private final OffscreenBitmap[] frames = new OffscreenBitmap[2];
+    private PushUsbDisplay display;
+    private int frame;
+
+
+    @Setup
+    public void setUp() {
+        // Two frames that differ only where a knob's value is drawn.
+        for (int i = 0; i < this.frames.length; i++) {
+            this.frames[i] = SyntheticFrames.create(WIDTH, HEIGHT, 25 + (i * 50));
+        }
+
+        this.display = new PushUsbDisplay(new FakeHost().getHost());
+        this.display.setDamageTracking(this.isDamageTracking);
+        this.display.send(this.frames[0]);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        this.display.shutdown();
+    }
+
+
+    /**
+     * A knob turned since the last frame.
+     */
+    @Benchmark
+    public void changedFrame() {
+        this.frame ^= 1;
+        this.display.send(this.frames[this.frame]);
+    }
+
+
+    /**
+     * Nothing changed since the last frame; which is most frames.
+     */
+    @Benchmark
+    public void unchangedFrame() {
+        this.display.send(this.frames[this.frame]);
+    }
+}
@@ -0,0 +1,102 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.common.mode.device;
+
+import com.ktemkin.framework.Fakes;
+import com.ktemkin.framework.daw.FakeHost;
+import com.ktemkin.framework.daw.resource.DBKResourceHandler;
+import de.mossgrabers.framework.daw.IHost;
+import de.mossgrabers.framework.daw.data.IBrowserColumnItem;
+import de.mossgrabers.framework.daw.resource.ResourceHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the building of the device browser's tree from a result set, as done whenever the results change.
+ * <p>
+ * The result items are fakes, so each call on them costs a little more than it would on Bitwig's items.
+ *
+ * @author Kate Temkin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceBrowserBenchmark {
+
+    /**
+     * The first characters of our device names; mostly letters, as real device names are.
+     */
+    private static final String FIRST_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZABCDEFGHIJKLMNOPRSTUVWabcdefghiklmnoprst0123456789'#";
+
+    @Param({ "5000" })
+    public int itemCount;
+
+    private IBrowserColumnItem[] items;
+
+
+    @Setup
+    public void setUp() {
+        // The browser's nodes fetch their icons when they're first used.
+        final IHost host = new FakeHost().getHost();
+        ResourceHandler.init(host);
+        DBKResourceHandler.init(host);
+
+        // Fill the result set, with a few empty slots, as Bitwig's result banks have.
+        final Random random = new Random(0);
+        this.items = new IBrowserColumnItem[this.itemCount];
+        for (int i = 0; i < this.items.length; i++) {
+            final boolean exists = random.nextInt(50) != 0;
+            final String name = exists ? FIRST_CHARACTERS.charAt(random.nextInt(FIRST_CHARACTERS.length())) + "Device " + i : "";
+            this.items[i] = createItem(i, name, exists);
+        }
+    }
+
+
+    /**
+     * Builds the tree as DeviceBrowserMode.populateRootBrowserNode() does; via the helpers it delegates to, since
+     * the mode itself can't be created without a control surface.
+     *
+     * @return The root node; as an Object, since JMH's generated code lives outside this package.
+     */
+    @Benchmark
+    public Object populateRootBrowserNode() {
+        return DeviceBrowserMode.splitAlphabetically(DeviceBrowserMode.groupByFirstLetter(this.items));
+    }
+
+
+    /**
+     * Creates a result item with a fixed name.
+     */
+    private static IBrowserColumnItem createItem(final int index, final String name, final boolean exists) {
+        return Fakes.create(IBrowserColumnItem.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getName":
+                    return name;
+                case "getIndex":
+                    return index;
+                case "doesExist":
+                    return exists;
+                default:
+                    return Fakes.DEFAULT;
+            }
+        });
+    }
+}
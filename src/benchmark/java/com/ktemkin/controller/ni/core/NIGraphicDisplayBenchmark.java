@@ -0,0 +1,114 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import com.ktemkin.framework.graphics.SyntheticFrames;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the encoding of a frame for the two NI displays, and the assembly of the packets that update them.
+ *
+ * @author Kate Temkin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NIGraphicDisplayBenchmark {
+
+    private static final int WIDTH = NIGraphicDisplay.SCREEN_WIDTH * 2;
+    private static final int HEIGHT = NIGraphicDisplay.SCREEN_HEIGHT;
+
+    private final IntBuffer[] frames = new IntBuffer[2];
+    private NIGraphicDisplay.Screen left;
+    private NIGraphicDisplay.Screen right;
+    private ByteBuffer packet;
+    private int frame;
+
+
+    @Setup
+    public void setUp() {
+        // Two frames that differ only where a knob's value is drawn.
+        for (int i = 0; i < this.frames.length; i++) {
+            this.frames[i] = IntBuffer.wrap(SyntheticFrames.getPixels(SyntheticFrames.create(WIDTH, HEIGHT, 25 + (i * 50))));
+        }
+
+        this.left = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_LEFT);
+        this.right = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_RIGHT);
+        this.packet = this.left.packetStores[0];
+
+        this.encodeFrame(this.frames[0]);
+    }
+
+
+    /**
+     * A knob turned since the last frame: only a small region of the left display needs to be sent.
+     */
+    @Benchmark
+    public int changedFrame() {
+        this.frame ^= 1;
+        return this.encodeFrame(this.frames[this.frame]);
+    }
+
+
+    /**
+     * Nothing changed since the last frame; which is most frames.
+     */
+    @Benchmark
+    public int unchangedFrame() {
+        return this.encodeFrame(this.frames[this.frame]);
+    }
+
+
+    /**
+     * The whole of both displays needs to be sent; e.g. after a mode change.
+     */
+    @Benchmark
+    public int fullFrame() {
+        this.left.markAll();
+        this.right.markAll();
+        return this.encodeFrame(this.frames[this.frame]);
+    }
+
+
+    /**
+     * Encodes a frame into both displays, and assembles the packets that would be sent, as the display does.
+     *
+     * @return The total length of the packets assembled.
+     */
+    private int encodeFrame(final IntBuffer pixels) {
+        NIGraphicDisplay.encodeScreen(this.left, pixels, WIDTH, HEIGHT, 0);
+        NIGraphicDisplay.encodeScreen(this.right, pixels, WIDTH, HEIGHT, NIGraphicDisplay.SCREEN_WIDTH);
+
+        return this.buildPacket(this.left) + this.buildPacket(this.right);
+    }
+
+
+    private int buildPacket(final NIGraphicDisplay.Screen screen) {
+        if (!screen.isPending()) {
+            return 0;
+        }
+
+        final int length = screen.buildRegionPacket(this.packet);
+        screen.clearRegion();
+        return length;
+    }
+}
@@ -0,0 +1,145 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import com.ktemkin.framework.daw.FakeHost;
+import com.ktemkin.framework.daw.midi.FakeMidiOutput;
+import de.mossgrabers.framework.daw.midi.IMidiOutput;
+import de.mossgrabers.framework.utils.ButtonEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the decoding of input notifications from the NIHostIntegrationAgent, and their delivery to an event handler.
+ * Runs against the in-process loopback agent; our fake host runs scheduled tasks immediately, so each event is
+ * delivered before the benchmark method returns. Pad events are forwarded to a fake MIDI output as notes, as a surface
+ * that plays its pads over MIDI would.
+ *
+ * @author Kate Temkin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NINotificationBenchmark {
+
+    /**
+     * The device we pretend to be connected to: a Maschine MK3.
+     */
+    private static final int DEVICE_ID = 0x1600;
+
+    private LoopbackNIHostInterop interop;
+    private ByteBuffer knobNotification;
+    private ByteBuffer padNotification;
+    private ByteBuffer buttonNotification;
+
+    /**
+     * Folds together every event delivered, so none of the work can be optimized away.
+     */
+    private long delivered;
+
+    private boolean isPadDown;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        final FakeHost host = new FakeHost();
+        host.setRunningScheduledTasks(true);
+        final IMidiOutput output = new FakeMidiOutput().getOutput();
+
+        this.interop = new LoopbackNIHostInterop(DEVICE_ID, LoopbackNIHostInterop.getLoopbackSerial(), new INIEventHandler() {
+            @Override
+            public void handleButtonEvent(final int rawButtonId, final ButtonEvent event) {
+                NINotificationBenchmark.this.delivered += rawButtonId + event.ordinal();
+            }
+
+            @Override
+            public void handleKnobEvent(final int rawContinuousId, final int newValue) {
+                NINotificationBenchmark.this.delivered += rawContinuousId + newValue;
+            }
+
+            @Override
+            public void handleMainEncoderEvent(final long newValue) {
+                NINotificationBenchmark.this.delivered += newValue;
+            }
+
+            @Override
+            public void handlePadEvent(final int padNumber, final long newPressure) {
+                output.sendNote(36 + padNumber, (newPressure == 0) ? 0 : 127);
+                NINotificationBenchmark.this.delivered += padNumber + newPressure;
+            }
+        }, host.getHost(), false);
+
+        this.knobNotification = newNotification(AbstractNIHostInterop.NI_NOTIFICATION_KNOB, 0, 0, 0, 3, 12);
+        this.padNotification = newNotification(AbstractNIHostInterop.NI_NOTIFICATION_PAD_TOUCH, 0, 0, 0, 5, 0, 0x3c000000);
+        this.buttonNotification = newNotification(AbstractNIHostInterop.NI_NOTIFICATION_BUTTON, 0, 0, AbstractNIHostInterop.NI_NOTIFICATION_BUTTON_STATE, 7, 1);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        this.interop.shutdown();
+    }
+
+
+    @Benchmark
+    public long knobTurn() {
+        return this.handle(this.knobNotification);
+    }
+
+
+    /**
+     * Alternates between pressing and releasing a pad, so every event is delivered rather than merged.
+     */
+    @Benchmark
+    public long padPress() {
+        this.isPadDown = !this.isPadDown;
+        this.padNotification.putInt(24, this.isPadDown ? 0x3c000000 : 0);
+        return this.handle(this.padNotification);
+    }
+
+
+    @Benchmark
+    public long buttonPress() {
+        return this.handle(this.buttonNotification);
+    }
+
+
+    private long handle(final ByteBuffer notification) {
+        this.interop.handleNotification(notification.clear());
+        return this.delivered;
+    }
+
+
+    /**
+     * Creates a notification as the agent would send it: a little-endian notification ID, then its fields.
+     */
+    private static ByteBuffer newNotification(final int notificationId, final int... fields) {
+        final ByteBuffer notification = ByteBuffer.allocate(4 * (fields.length + 1)).order(ByteOrder.LITTLE_ENDIAN);
+        notification.putInt(notificationId);
+        for (final int field : fields) {
+            notification.putInt(field);
+        }
+
+        return notification;
+    }
+}
@@ -0,0 +1,58 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.maschine.controller;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the conversion of pad pressures into note velocities, as done for every pad hit and aftertouch update.
+ *
+ * @author Kate Temkin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PadVelocityBenchmark {
+
+    /**
+     * The range of the pressures our pads report, once their minimum has been subtracted.
+     */
+    private static final int PRESSURE_RANGE = 0x3fffffff - 0x3b000000;
+
+    private final long[] pressures = new long[1024];
+    private int next;
+
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(0);
+        for (int i = 0; i < this.pressures.length; i++) {
+            this.pressures[i] = random.nextInt(PRESSURE_RANGE);
+        }
+    }
+
+
+    @Benchmark
+    public int pressureToVelocity() {
+        this.next = (this.next + 1) & (this.pressures.length - 1);
+        return MaschineControlSurface.velocityCurve(this.pressures[this.next]);
+    }
+}
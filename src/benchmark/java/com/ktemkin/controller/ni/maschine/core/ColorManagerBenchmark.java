@@ -0,0 +1,68 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.maschine.core;
+
+import com.ktemkin.controller.common.controller.ColorLookupTable;
+import de.mossgrabers.framework.controller.color.ColorEx;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the lookup of device colors, as done for every pad and button each time the LEDs are refreshed.
+ *
+ * @author Kate Temkin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorManagerBenchmark {
+
+    /**
+     * The number of distinct colors we look up; about as many as a project's tracks, clips and scenes use.
+     */
+    private static final int COLOR_COUNT = 64;
+
+    @Param({ "NEAREST", "PERCEPTUAL" })
+    public ColorLookupTable.Matching matching;
+
+    private final ColorEx[] colors = new ColorEx[COLOR_COUNT];
+    private MaschineColorManager colorManager;
+    private int next;
+
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(0);
+        for (int i = 0; i < this.colors.length; i++) {
+            this.colors[i] = ColorEx.fromRGB(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+        }
+
+        this.colorManager = new MaschineColorManager();
+        this.colorManager.setColorMatching(this.matching);
+    }
+
+
+    @Benchmark
+    public int getDeviceColor() {
+        this.next = (this.next + 1) % COLOR_COUNT;
+        return this.colorManager.getDeviceColor(this.colors[this.next]);
+    }
+}
@@ -0,0 +1,67 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.controller.display;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Times the rendering of whole display pages, offscreen, from the time a mode adds its elements until the frame
+ * is handed to the device. Uses the scenes our golden image tests render.
+ *
+ * @author Kate Temkin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphicDisplayBenchmark {
+
+    private GraphicDisplayFixture fixture;
+
+
+    @Setup
+    public void setUp() {
+        this.fixture = new GraphicDisplayFixture();
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        this.fixture.close();
+    }
+
+
+    @Benchmark
+    public void parameterPage() {
+        this.fixture.sendFrame(GraphicDisplayRenderTest::addParameterPage);
+    }
+
+
+    @Benchmark
+    public void mixerPage() {
+        this.fixture.sendFrame(GraphicDisplayRenderTest::addMixerPage);
+    }
+
+
+    @Benchmark
+    public void deviceList() {
+        this.fixture.sendFrame(GraphicDisplayRenderTest::addDeviceList);
+    }
+}
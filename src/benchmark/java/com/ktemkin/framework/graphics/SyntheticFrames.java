@@ -0,0 +1,83 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.graphics;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+
+/**
+ * Draws frames that look roughly like our display pages, for the encoders to chew on: a background, a row of
+ * eight parameter cells with labels and value bars, and anti-aliased text. Frames drawn with different values
+ * differ only in their value bars and value text, as they would when a knob turns.
+ *
+ * @author Kate Temkin
+ */
+public final class SyntheticFrames {
+
+    private static final Color BACKGROUND = new Color(83, 83, 83);
+    private static final Color CELL = new Color(39, 39, 39);
+    private static final Color VALUE = new Color(240, 127, 17);
+
+
+    private SyntheticFrames() {
+        // Intentionally empty
+    }
+
+
+    /**
+     * Draws a frame.
+     *
+     * @param width  The width of the frame, in pixels.
+     * @param height The height of the frame, in pixels.
+     * @param value  The value shown by the frame's first parameter, from 0 to 100.
+     * @return The frame, as a bitmap that can be sent to our displays.
+     */
+    public static OffscreenBitmap create(final int width, final int height, final int value) {
+        final OffscreenBitmap bitmap = new OffscreenBitmap(width, height);
+        final Graphics2D graphics = bitmap.getImage().createGraphics();
+
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, height / 12));
+
+            graphics.setColor(BACKGROUND);
+            graphics.fillRect(0, 0, width, height);
+
+            final int cellWidth = width / 8;
+            for (int i = 0; i < 8; i++) {
+                final int x = i * cellWidth;
+                final int cellValue = (i == 0) ? value : (i * 100) / 8;
+
+                graphics.setColor(CELL);
+                graphics.fillRoundRect(x + 2, height / 4, cellWidth - 4, height / 2, 8, 8);
+
+                graphics.setColor(VALUE);
+                graphics.fillRect(x + 6, (height * 3) / 4 - 12, ((cellWidth - 12) * cellValue) / 100, 6);
+
+                graphics.setColor(Color.WHITE);
+                graphics.drawString("Param " + (i + 1), x + 6, height / 4 + height / 10);
+                graphics.drawString(cellValue + "%", x + 6, height / 4 + height / 5);
+            }
+        } finally {
+            graphics.dispose();
+        }
+
+        return bitmap;
+    }
+
+
+    /**
+     * @return The ARGB pixels of a frame, row by row.
+     */
+    public static int[] getPixels(final OffscreenBitmap bitmap) {
+        final BufferedImage image = bitmap.getImage();
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
@@ -648,6 +648,11 @@ public class PushConfiguration extends CommonUIConfiguration {
             this.ledBrightness = value.intValue();
             this.notifyObservers(LED_BRIGHTNESS);
         });
+
+        settingsUI.getEnumSetting("Skip unchanged display frames", CATEGORY_HARDWARE_SETUP, ON_OFF_OPTIONS, ON_OFF_OPTIONS[1]).addValueObserver(value -> {
+            this.displayPartialUpdates = "On".equals(value);
+            this.notifyObservers(DISPLAY_PARTIAL_UPDATES);
+        });
     }
 
 
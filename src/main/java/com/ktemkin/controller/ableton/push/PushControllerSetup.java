@@ -158,7 +158,13 @@ public class PushControllerSetup extends AbstractControllerSetup<PushControlSurf
         final PushControlSurface surface = new PushControlSurface(this.host, this.colorManager, this.configuration, output, input);
         this.surfaces.add(surface);
 
-        surface.addGraphicsDisplay(new Push2Display(this.host, this.valueChanger.getUpperBound(), this.configuration));
+        final Push2Display display = new Push2Display(this.host, this.valueChanger.getUpperBound(), this.configuration);
+        surface.addGraphicsDisplay(display);
+
+        // Keep the display's frame skipping in sync with our settings.
+        display.setPartialUpdates(this.configuration.isDisplayPartialUpdates());
+        this.configuration.addSettingObserver(PushConfiguration.DISPLAY_PARTIAL_UPDATES, () -> display.setPartialUpdates(this.configuration.isDisplayPartialUpdates()));
+
         surface.getModeManager().setDefaultID(Modes.TRACK);
     }
 
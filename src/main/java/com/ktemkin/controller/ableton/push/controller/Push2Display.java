@@ -65,8 +65,11 @@ public class Push2Display extends AbstractGraphicDisplay {
         final ExecutorService executor = Executors.newSingleThreadExecutor();
         executor.execute(() -> {
 
-            if (this.usbDisplay != null)
+            if (this.usbDisplay != null) {
                 this.usbDisplay.shutdown();
+                this.host.println(String.format("Push 2 display: %d frames sent (%d lines changed), %d skipped as unchanged (%d KiB not transferred), %d dropped for newer ones.",
+                        this.usbDisplay.getFramesSent(), this.usbDisplay.getLinesChanged(), this.usbDisplay.getFramesSkipped(), this.usbDisplay.getBytesAvoided() / 1024, this.usbDisplay.getFramesDropped()));
+            }
             super.shutdown();
 
         });
@@ -80,6 +83,17 @@ public class Push2Display extends AbstractGraphicDisplay {
     }
 
 
+    /**
+     * Sets whether frames identical to the previously sent one are skipped, rather than
+     * transferred again.
+     *
+     * @param partialUpdates True to skip unchanged frames
+     */
+    public void setPartialUpdates(final boolean partialUpdates) {
+        this.usbDisplay.setDamageTracking(partialUpdates);
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -4,6 +4,7 @@
 
 package com.ktemkin.controller.ableton.push.controller;
 
+import com.ktemkin.controller.common.controller.ColorLookupTable;
 import com.ktemkin.controller.common.controller.CommonUIColorManager;
 import de.mossgrabers.framework.controller.ButtonID;
 import de.mossgrabers.framework.controller.color.ColorEx;
@@ -526,6 +527,12 @@ public class PushColorManager extends CommonUIColorManager {
     protected final int[] firstRowDeviceColors;
 
 
+    /**
+     * Precomputed nearest-color table for the first row of buttons.
+     */
+    protected final ColorLookupTable firstRowColorLookupTable;
+
+
     /**
      * Private due to utility class.
      */
@@ -668,6 +675,8 @@ public class PushColorManager extends CommonUIColorManager {
             this.firstRowDisplayColors[index] = pair.getValue();
             index += 1;
         }
+
+        this.firstRowColorLookupTable = new ColorLookupTable(this.firstRowDisplayColors, this.firstRowDeviceColors);
     }
 
     /**
@@ -795,6 +804,16 @@ public class PushColorManager extends CommonUIColorManager {
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setColorMatching(ColorLookupTable.Matching matching) {
+        super.setColorMatching(matching);
+        this.firstRowColorLookupTable.setMatching(matching);
+    }
+
+
     /**
      * Converts a Java color into a per-device color.
      * <p>
@@ -811,9 +830,9 @@ public class PushColorManager extends CommonUIColorManager {
 
             // Handle the first row using its own table.
             case BUTTON_ROW1:
-                return this.colorLookupCache.computeIfAbsent(color, (c) -> this.firstRowDeviceColors[ColorEx.getClosestColorIndex(c, this.firstRowDisplayColors)]);
+                return this.firstRowColorLookupTable.getDeviceColor(color);
 
-            // Otherwise, compute the color lookup using the default table, memoizing as we go.
+            // Otherwise, look up the color using the default table.
             default:
                 return super.getDeviceColor(color, controlType);
         }
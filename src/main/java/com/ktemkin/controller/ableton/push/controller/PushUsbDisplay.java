@@ -11,10 +11,15 @@ import de.mossgrabers.framework.usb.IUsbDevice;
 import de.mossgrabers.framework.usb.IUsbEndpoint;
 import de.mossgrabers.framework.usb.UsbException;
 
-import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -30,8 +35,50 @@ public class PushUsbDisplay
      */
     private static final int DATA_SZ = 20 * 0x4000;
 
+    /**
+     * The number of lines of the display.
+     */
+    private static final int DISPLAY_HEIGHT = 160;
+
+    /**
+     * The size of one display line including its padding.
+     */
+    private static final int LINE_SZ = DATA_SZ / DISPLAY_HEIGHT;
+
+    /**
+     * The width of the display in pixels.
+     */
+    private static final int DISPLAY_WIDTH = 960;
+
+    /**
+     * The number of 64 bit words of the display content. Each word contains 4 pixels.
+     */
+    private static final int WORDS_SZ = DATA_SZ / Long.BYTES;
+
+    /**
+     * The number of 64 bit words of one display line including its padding.
+     */
+    private static final int LINE_WORDS = LINE_SZ / Long.BYTES;
+
+    /**
+     * The number of 64 bit words of one display line which contain pixels.
+     */
+    private static final int PIXEL_WORDS = DISPLAY_WIDTH / 4;
+
+    /**
+     * The number of frame slots: one which is sent, one which holds the newest completed frame
+     * and one which is written by the encoder.
+     */
+    private static final int FRAME_SLOTS = 3;
+
     private static final int TIMEOUT = 1000;
 
+    /**
+     * The Push 2 blanks its display if it does not receive a frame for about 2 seconds. Therefore,
+     * an unchanged frame is still sent after this time (in nanoseconds).
+     */
+    private static final long KEEP_ALIVE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1000);
+
     private static final byte[] DISPLAY_HEADER =
             {
                     (byte) 0xef,
@@ -56,20 +103,82 @@ public class PushUsbDisplay
 
     private final IMemoryBlock headerBlock;
 
-    private final IMemoryBlock imageBlock;
+    private final IMemoryBlock[] imageBlocks = new IMemoryBlock[FRAME_SLOTS];
+
+    /**
+     * Views of the image memory blocks as little-endian 64 bit words.
+     */
+    private final LongBuffer[] imageWords = new LongBuffer[FRAME_SLOTS];
+
+    /**
+     * The encoded content of the last frame which was queued for sending, 4 RGB565 pixels per
+     * word in the byte order of the display. The padding words stay zero. Also used for damage
+     * tracking.
+     */
+    private final long[] frameWords = new long[WORDS_SZ];
+
+    /**
+     * Receives one line of ARGB pixels from the bitmap.
+     */
+    private final int[] lineBuffer = new int[DISPLAY_WIDTH];
 
-    private final byte[] byteStore = new byte[DATA_SZ];
+    /**
+     * Receives the words of one encoded line before it is compared with the last frame.
+     */
+    private final long[] encodedLine = new long[PIXEL_WORDS];
 
     private final Object sendLock = new Object();
 
     private final Object bufferUpdateLock = new Object();
 
+    /**
+     * Guards the slot indices. Never held during the encoding or the USB transfer.
+     */
+    private final Object slotLock = new Object();
+
+    /**
+     * True if a send task is waiting in the executor. Limits the queue to a single task.
+     */
+    private final AtomicBoolean isSendQueued = new AtomicBoolean();
+
+    /**
+     * The slot with the newest completed frame which was not yet picked up by the sender, -1 if
+     * there is none.
+     */
+    private int readySlot = -1;
+
+    /**
+     * The slot which is currently transferred to the device, -1 if there is none.
+     */
+    private int sendingSlot = -1;
+
+    private long framesDropped;
+
     private final ScheduledExecutorService sendExecutor = Executors.newSingleThreadScheduledExecutor();
 
     private IUsbDevice usbDevice;
 
     private IUsbEndpoint usbEndpoint;
 
+    private boolean isDamageTracking = true;
+
+    private boolean hasQueuedFrame = false;
+
+    private long lastQueueTime;
+
+    private long framesSent;
+
+    private long framesSkipped;
+
+    private long bytesAvoided;
+
+    private long linesChanged;
+
+    /**
+     * The number of lines of the currently encoded frame which differ from the last queued frame.
+     */
+    private int changedLines;
+
 
     /**
      * Connect to the USB port and claim the display interface.
@@ -91,87 +200,170 @@ public class PushUsbDisplay
 
         this.headerBlock = host.createMemoryBlock(DISPLAY_HEADER.length);
         this.headerBlock.createByteBuffer().put(DISPLAY_HEADER);
-        this.imageBlock = host.createMemoryBlock(DATA_SZ);
+        for (int i = 0; i < FRAME_SLOTS; i++) {
+            this.imageBlocks[i] = host.createMemoryBlock(DATA_SZ);
+            this.imageWords[i] = this.imageBlocks[i].createByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        }
     }
 
 
-    private static int sPixelFromRGB(final int red, final int green, final int blue)
+    /**
+     * Converts an ARGB pixel (as read little-endian from the BGRA bitmap) into the RGB565 format
+     * of the display, which stores blue in the upper and red in the lower bits.
+     *
+     * @param argb The pixel
+     * @return The RGB565 value
+     */
+    private static long sPixelFromARGB(final int argb)
     {
-        int pixel = (blue & 0xF8) >> 3;
-        pixel <<= 6;
-        pixel += (green & 0xFC) >> 2;
-        pixel <<= 5;
-        pixel += (red & 0xF8) >> 3;
-        return pixel;
+        return (argb << 8 & 0xF800) | (argb >> 5 & 0x07E0) | (argb >> 19 & 0x001F);
     }
 
 
     /**
-     * Send the buffered image to the screen.
+     * Send the buffered image to the screen. If damage tracking is enabled, the transfer is
+     * skipped if no line of the image has changed. Never waits for the USB transfer: if the
+     * sender is still busy, a newer frame replaces the one which is waiting to be sent.
      *
      * @param image An image of size 960 x 160 pixel
      */
     public void send(final IBitmap image)
     {
-        // Copy to the buffer
+        // Encode into the frame buffer
         synchronized (this.bufferUpdateLock) {
             image.encode((imageBuffer, width, height) -> {
+                // Read through a view, so neither the bitmap's byte order nor its position changes
+                final IntBuffer pixels = imageBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                this.changedLines = 0;
+                for (int y = 0; y < height; y++) {
+                    pixels.get(this.lineBuffer, 0, width);
+                    this.encodeLine(y * LINE_WORDS, width);
+                }
+            });
 
-                int       counter = 0;
-                final int padding = (DATA_SZ - height * width * 2) / height;
+            if (!this.checkDamage())
+                return;
 
-                for (int y = 0; y < height; y++) {
-                    for (int x = 0; x < width; x++) {
-                        final int blue  = imageBuffer.get();
-                        final int green = imageBuffer.get();
-                        final int red   = imageBuffer.get();
-                        imageBuffer.get(); // Drop unused Alpha
+            this.publishFrame();
+        }
 
-                        final int pixel = sPixelFromRGB(red, green, blue);
+        if (this.sendExecutor.isShutdown() || !this.isSendQueued.compareAndSet(false, true))
+            return;
+        try {
+            this.sendExecutor.submit(this::sendData);
+        } catch (final RejectedExecutionException ex) {
+            // Shutdown in the meantime
+            this.isSendQueued.set(false);
+        }
+    }
 
-                        this.byteStore[counter]     = (byte) (pixel & 0x00FF);
-                        this.byteStore[counter + 1] = (byte) ((pixel & 0xFF00) >> 8);
 
-                        counter += 2;
-                    }
+    /**
+     * Copies the encoded frame into a slot which is neither sent nor waiting and makes it the
+     * newest completed frame. A frame which was still waiting is dropped. Must be called while
+     * holding the buffer update lock.
+     */
+    private void publishFrame()
+    {
+        int slot;
+        synchronized (this.slotLock) {
+            slot = 0;
+            while (slot == this.readySlot || slot == this.sendingSlot)
+                slot++;
+        }
 
-                    for (int x = 0; x < padding; x++) {
-                        this.byteStore[counter] = (byte) 0x00;
-                        counter++;
-                    }
-                }
+        final LongBuffer words = this.imageWords[slot];
+        words.clear();
+        words.put(this.frameWords);
 
-                imageBuffer.rewind();
-            });
+        synchronized (this.slotLock) {
+            if (this.readySlot >= 0)
+                this.framesDropped++;
+            this.readySlot = slot;
         }
+    }
 
-        synchronized (this.sendLock) {
-            if (!this.sendExecutor.isShutdown()) {
-                this.sendExecutor.submit(this::sendData);
-            }
+
+    /**
+     * Packs one line of pixels from the line buffer into 64 bit words and compares it with the
+     * same line of the last queued frame. Must be called while holding the buffer update lock.
+     *
+     * @param lineOffset The index of the first word of the line in the frame
+     * @param width The number of pixels in the line buffer
+     */
+    private void encodeLine(final int lineOffset, final int width)
+    {
+        final int[] line = this.lineBuffer;
+        final long[] words = this.encodedLine;
+        final int wordCount = Math.min(width, DISPLAY_WIDTH) / 4;
+
+        for (int i = 0, x = 0; i < wordCount; i++, x += 4) {
+            words[i] = sPixelFromARGB(line[x]) | sPixelFromARGB(line[x + 1]) << 16 | sPixelFromARGB(line[x + 2]) << 32 | sPixelFromARGB(line[x + 3]) << 48;
+        }
+
+        if (Arrays.mismatch(words, 0, wordCount, this.frameWords, lineOffset, lineOffset + wordCount) < 0)
+            return;
+        System.arraycopy(words, 0, this.frameWords, lineOffset, wordCount);
+        this.changedLines++;
+    }
+
+
+    /**
+     * Decides if the encoded frame needs to be sent. Must be called while holding the buffer
+     * update lock.
+     *
+     * @return True if the frame needs to be sent
+     */
+    private boolean checkDamage()
+    {
+        final long now = System.nanoTime();
+        final int changedLines = this.changedLines;
+
+        // The display only accepts complete frames, therefore even a single changed line
+        // requires the transfer of the whole frame
+        final boolean isKeepAliveDue = !this.hasQueuedFrame || now - this.lastQueueTime >= KEEP_ALIVE_INTERVAL;
+        if (this.isDamageTracking && changedLines == 0 && !isKeepAliveDue) {
+            this.framesSkipped++;
+            this.bytesAvoided += DATA_SZ;
+            return false;
         }
+
+        this.hasQueuedFrame = true;
+        this.lastQueueTime = now;
+        this.linesChanged += changedLines;
+        this.framesSent++;
+        return true;
     }
 
 
     private void sendData()
     {
-        // Copy the data from the buffer to the USB block
-        synchronized (this.bufferUpdateLock) {
-            final ByteBuffer buffer = this.imageBlock.createByteBuffer();
-            buffer.clear();
-            for (int i = 0; i < DATA_SZ; i++) {
-                buffer.put(this.byteStore[i]);
-            }
+        // Allow the next frame to queue a new task as soon as the current one is taken
+        this.isSendQueued.set(false);
+
+        final int slot;
+        synchronized (this.slotLock) {
+            slot = this.readySlot;
+            if (slot < 0)
+                return;
+            this.readySlot = -1;
+            this.sendingSlot = slot;
         }
 
         // Send the data
-        synchronized (this.sendLock) {
-            if (this.usbDevice == null || this.usbEndpoint == null) {
-                return;
-            }
+        try {
+            synchronized (this.sendLock) {
+                if (this.usbDevice == null || this.usbEndpoint == null) {
+                    return;
+                }
 
-            this.usbEndpoint.send(this.headerBlock, TIMEOUT);
-            this.usbEndpoint.send(this.imageBlock, TIMEOUT);
+                this.usbEndpoint.send(this.headerBlock, TIMEOUT);
+                this.usbEndpoint.send(this.imageBlocks[slot], TIMEOUT);
+            }
+        } finally {
+            synchronized (this.slotLock) {
+                this.sendingSlot = -1;
+            }
         }
     }
 
@@ -198,6 +390,86 @@ public class PushUsbDisplay
     }
 
 
+    /**
+     * Enable or disable damage tracking. If enabled, a frame is only sent if it differs from the
+     * previous one (or if the keep alive interval of the display has elapsed).
+     *
+     * @param isDamageTracking True to enable
+     */
+    public void setDamageTracking(final boolean isDamageTracking)
+    {
+        synchronized (this.bufferUpdateLock) {
+            this.isDamageTracking = isDamageTracking;
+        }
+    }
+
+
+    /**
+     * Get the number of frames which were queued for the transfer to the display.
+     *
+     * @return The number of frames
+     */
+    public long getFramesSent()
+    {
+        synchronized (this.bufferUpdateLock) {
+            return this.framesSent;
+        }
+    }
+
+
+    /**
+     * Get the number of frames which were not transferred since they did not change.
+     *
+     * @return The number of frames
+     */
+    public long getFramesSkipped()
+    {
+        synchronized (this.bufferUpdateLock) {
+            return this.framesSkipped;
+        }
+    }
+
+
+    /**
+     * Get the number of bytes which did not need to be transferred due to skipped frames.
+     *
+     * @return The number of bytes
+     */
+    public long getBytesAvoided()
+    {
+        synchronized (this.bufferUpdateLock) {
+            return this.bytesAvoided;
+        }
+    }
+
+
+    /**
+     * Get the number of changed lines summed up over all sent frames.
+     *
+     * @return The number of lines
+     */
+    public long getLinesChanged()
+    {
+        synchronized (this.bufferUpdateLock) {
+            return this.linesChanged;
+        }
+    }
+
+
+    /**
+     * Get the number of completed frames which were replaced by a newer frame before the sender
+     * could pick them up.
+     *
+     * @return The number of frames
+     */
+    public long getFramesDropped()
+    {
+        synchronized (this.slotLock) {
+            return this.framesDropped;
+        }
+    }
+
+
     /**
      * Check if the send executor is shutdown.
      *
@@ -158,6 +158,31 @@ public class CommonUIConfiguration extends AbstractConfiguration implements IGra
      */
     public static final Integer DISPLAY_SCENES_CLIPS = 82;
 
+    /**
+     * Setting for the target frame rate of the display.
+     */
+    public static final Integer DISPLAY_TARGET_FPS = 83;
+
+    /**
+     * Setting for the minimum interval between two display frames.
+     */
+    public static final Integer DISPLAY_MIN_FRAME_INTERVAL = 84;
+
+    /**
+     * Setting for sending only the changed regions of the display.
+     */
+    public static final Integer DISPLAY_PARTIAL_UPDATES = 85;
+
+    /**
+     * Setting for how display colors are matched to LED colors.
+     */
+    public static final Integer LED_COLOR_MATCHING = 86;
+
+    /**
+     * Setting for the minimum interval between two LED updates.
+     */
+    public static final Integer LED_FLUSH_INTERVAL = 87;
+
     /**
      * Use ribbon for pitch bend.
      */
@@ -207,6 +232,16 @@ public class CommonUIConfiguration extends AbstractConfiguration implements IGra
 
     protected static final String CATEGORY_COLORS = "Display Colors";
 
+    protected static final String CATEGORY_DISPLAY_REFRESH = "Display Refresh";
+
+    protected static final String CATEGORY_LEDS = "LEDs";
+
+    protected static final String[] LED_COLOR_MATCHING_OPTIONS =
+            {
+                    "Nearest",
+                    "Perceptual"
+            };
+
     protected static final String[] RIBBON_MODE_VALUES =
             {
                     "Pitch",
@@ -338,6 +373,10 @@ public class CommonUIConfiguration extends AbstractConfiguration implements IGra
 
     protected IEnumSetting debugModeSetting;
 
+    protected IIntegerSetting displayTargetFpsSetting;
+
+    protected IIntegerSetting displayMinFrameIntervalSetting;
+
     protected IColorSetting colorBackgroundSetting;
 
     protected IColorSetting colorBackgroundDarkerSetting;
@@ -396,6 +435,16 @@ public class CommonUIConfiguration extends AbstractConfiguration implements IGra
 
     protected int ledBrightness = 127;
 
+    protected int displayTargetFps = 30;
+
+    protected int displayMinFrameInterval = 10;
+
+    protected boolean displayPartialUpdates = true;
+
+    protected boolean perceptualLedColorMatching = false;
+
+    protected int ledFlushInterval = 10;
+
 
     /**
      * Constructor.
@@ -1059,6 +1108,115 @@ public class CommonUIConfiguration extends AbstractConfiguration implements IGra
     }
 
 
+    /**
+     * Activate the settings which control how often the display is refreshed.
+     *
+     * @param settingsUI The settings
+     */
+    protected void activateDisplayPacingSettings(final ISettingsUI settingsUI)
+    {
+        this.displayTargetFpsSetting = settingsUI.getRangeSetting("Target frame rate", CATEGORY_DISPLAY_REFRESH, 1, 60, 1, " fps", 30);
+        this.displayTargetFpsSetting.addValueObserver(value -> {
+            this.displayTargetFps = value.intValue();
+            this.notifyObservers(DISPLAY_TARGET_FPS);
+        });
+
+        this.displayMinFrameIntervalSetting = settingsUI.getRangeSetting("Minimum frame interval", CATEGORY_DISPLAY_REFRESH, 0, 1000, 1, " ms", 10);
+        this.displayMinFrameIntervalSetting.addValueObserver(value -> {
+            this.displayMinFrameInterval = value.intValue();
+            this.notifyObservers(DISPLAY_MIN_FRAME_INTERVAL);
+        });
+
+        settingsUI.getEnumSetting("Send only changed regions", CATEGORY_DISPLAY_REFRESH, ON_OFF_OPTIONS, ON_OFF_OPTIONS[1]).addValueObserver(value -> {
+            this.displayPartialUpdates = "On".equals(value);
+            this.notifyObservers(DISPLAY_PARTIAL_UPDATES);
+        });
+    }
+
+
+    /**
+     * Get the frame rate at which changed display content is sent.
+     *
+     * @return The frame rate in frames per second
+     */
+    public int getDisplayTargetFps()
+    {
+        return this.displayTargetFps;
+    }
+
+
+    /**
+     * Get the minimum interval between two frames sent to the display.
+     *
+     * @return The interval in milliseconds
+     */
+    public int getDisplayMinFrameInterval()
+    {
+        return this.displayMinFrameInterval;
+    }
+
+
+    /**
+     * Should only the changed regions of the display be sent?
+     *
+     * @return True if only changed regions should be sent
+     */
+    public boolean isDisplayPartialUpdates()
+    {
+        return this.displayPartialUpdates;
+    }
+
+
+    /**
+     * Activate the setting which controls how display colors are matched to LED colors.
+     *
+     * @param settingsUI The settings
+     */
+    protected void activateLedColorMatchingSetting(final ISettingsUI settingsUI)
+    {
+        settingsUI.getEnumSetting("Color matching", CATEGORY_LEDS, LED_COLOR_MATCHING_OPTIONS, LED_COLOR_MATCHING_OPTIONS[0]).addValueObserver(value -> {
+            this.perceptualLedColorMatching = LED_COLOR_MATCHING_OPTIONS[1].equals(value);
+            this.notifyObservers(LED_COLOR_MATCHING);
+        });
+    }
+
+
+    /**
+     * Get whether LED colors should be matched perceptually, rather than by nearest RGB value.
+     *
+     * @return True for perceptual matching
+     */
+    public boolean isPerceptualLedColorMatching()
+    {
+        return this.perceptualLedColorMatching;
+    }
+
+
+    /**
+     * Activate the setting which controls how often LED updates are sent.
+     *
+     * @param settingsUI The settings
+     */
+    protected void activateLedFlushIntervalSetting(final ISettingsUI settingsUI)
+    {
+        settingsUI.getRangeSetting("Minimum update interval", CATEGORY_LEDS, 0, 100, 1, " ms", 10).addValueObserver(value -> {
+            this.ledFlushInterval = value.intValue();
+            this.notifyObservers(LED_FLUSH_INTERVAL);
+        });
+    }
+
+
+    /**
+     * Get the minimum interval between two LED updates.
+     *
+     * @return The interval in milliseconds
+     */
+    public int getLedFlushInterval()
+    {
+        return this.ledFlushInterval;
+    }
+
+
     /**
      * Activate the stop automation on knob release setting.
      *
@@ -0,0 +1,320 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.common.controller;
+
+import de.mossgrabers.framework.controller.color.ColorEx;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Precomputed nearest-color table for a device palette.
+ *
+ * The RGB cube is quantized to RGB565 precision -- 32 x 64 x 32 cells -- and the nearest palette entry for each
+ * cell is found once, when the table is built. After that, a lookup is a few shifts and an array read: constant
+ * time, lock-free, and allocation-free, with a fixed footprint of 128 KiB per palette.
+ *
+ * Quantizing can put two close palette colors -- e.g. neighbouring grays -- in the same cell; so colors that are
+ * exactly a palette entry's display color are looked up in a small hash of the palette first, and always map to
+ * that entry.
+ *
+ * Tables can alternatively match perceptually, by CIEDE2000 difference in CIELAB space; which tends to pick
+ * much better LED colors for muted or dark track colors. That math is too expensive to run per lookup, so the
+ * palette's CIELAB values are computed when the table is built, and each color's match is computed the first
+ * time it's seen and kept in a small, fixed-size cache. Steady-state lookups are a hash and an atomic read.
+ *
+ * @author Kate Temkin
+ */
+public class ColorLookupTable {
+
+    /**
+     * The ways in which we can match a color to a palette entry.
+     */
+    public enum Matching {
+        /**
+         * Match the palette entry closest in RGB; via the precomputed table.
+         */
+        NEAREST,
+
+        /**
+         * Match the palette entry that looks closest; via CIEDE2000, with cached results.
+         */
+        PERCEPTUAL,
+    }
+
+    /**
+     * The number of bits of red, green, and blue that select a cell.
+     */
+    private static final int RED_BITS = 5;
+    private static final int GREEN_BITS = 6;
+    private static final int BLUE_BITS = 5;
+
+    /**
+     * The total number of cells in the table.
+     */
+    private static final int CELL_COUNT = 1 << (RED_BITS + GREEN_BITS + BLUE_BITS);
+
+    /**
+     * The number of bits of hash that select a perceptual cache slot; the cache holds 4096 colors, in 32 KiB.
+     * Bitwig's track palette is far smaller, so in practice every color stays cached.
+     */
+    private static final int CACHE_BITS = 12;
+
+    /**
+     * Multiplier for the Fibonacci hashing that picks perceptual cache and exact-match slots.
+     */
+    private static final int HASH_MULTIPLIER = 0x9E3779B1;
+
+    /**
+     * The device color for each palette entry.
+     */
+    private final int[] deviceColors;
+    /**
+     * For each cell, the index of the nearest palette entry.
+     */
+    private final short[] nearestEntry = new short[CELL_COUNT];
+    /**
+     * Open-addressed hash of the palette's display colors, for exact matches; kept at most a quarter full, so probes
+     * are short. Each slot packs (24-bit RGB + 1) << 16 | palette index; or is zero if empty.
+     */
+    private final long[] exactEntries;
+    /**
+     * The number of bits of hash that select an exact-match slot.
+     */
+    private final int exactBits;
+
+    /**
+     * The CIELAB value of each palette entry; as consecutive L*, a*, b* triples.
+     */
+    private final double[] paletteLab;
+    /**
+     * Direct-mapped cache of perceptual matches. Each slot packs (24-bit RGB + 1) << 16 | palette index; or is zero if empty.
+     * Colors that collide simply replace each other, which keeps the cache bounded without any bookkeeping.
+     */
+    private final AtomicLongArray perceptualCache = new AtomicLongArray(1 << CACHE_BITS);
+    /**
+     * The number of perceptual lookups answered from the cache, and the number that weren't.
+     */
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    /**
+     * How colors are currently being matched.
+     */
+    private volatile Matching matching = Matching.NEAREST;
+
+
+    /**
+     * Builds a lookup table for a palette.
+     *
+     * @param displayColors The display color of each palette entry.
+     * @param deviceColors  The device color of each palette entry; each matching its index in displayColors.
+     */
+    public ColorLookupTable(ColorEx[] displayColors, int[] deviceColors) {
+        this.deviceColors = deviceColors.clone();
+
+        // Hash the palette's own colors. If two entries share a display color, the first one wins, as it does below.
+        this.exactBits = Math.max(4, Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(displayColors.length, 1) * 4 - 1));
+        this.exactEntries = new long[1 << this.exactBits];
+        for (int entry = 0; entry < displayColors.length; ++entry) {
+            final int rgb = getRGB(displayColors[entry]);
+            if (this.findExactEntry(rgb) < 0) {
+                this.exactEntries[this.findExactSlot(rgb)] = ((long) (rgb + 1) << 16) | entry;
+            }
+        }
+
+        for (int cell = 0; cell < CELL_COUNT; ++cell) {
+            final ColorEx cellColor = ColorEx.fromRGB(expand(cell >> (GREEN_BITS + BLUE_BITS), RED_BITS),
+                    expand((cell >> BLUE_BITS) & ((1 << GREEN_BITS) - 1), GREEN_BITS),
+                    expand(cell & ((1 << BLUE_BITS) - 1), BLUE_BITS));
+
+            this.nearestEntry[cell] = (short) ColorEx.getClosestColorIndex(cellColor, displayColors);
+        }
+
+        // Convert the palette into CIELAB once, up front, for perceptual matching.
+        this.paletteLab = new double[displayColors.length * 3];
+        for (int entry = 0; entry < displayColors.length; ++entry) {
+            final ColorEx color = displayColors[entry];
+            PerceptualColor.toLab(toByte(color.getRed()), toByte(color.getGreen()), toByte(color.getBlue()), this.paletteLab, entry * 3);
+        }
+    }
+
+    /**
+     * Selects how colors are matched to palette entries.
+     *
+     * @param matching The matching to use from now on.
+     */
+    public void setMatching(Matching matching) {
+        this.matching = matching;
+    }
+
+    /**
+     * @return How colors are currently being matched to palette entries.
+     */
+    public Matching getMatching() {
+        return this.matching;
+    }
+
+    /**
+     * Looks up the device color nearest to a given display color.
+     *
+     * @param color The display color; or null for black.
+     * @return The device color for the nearest palette entry.
+     */
+    public int getDeviceColor(ColorEx color) {
+        final int rgb = getRGB(color);
+
+        // Colors straight from the palette always map to their own entry.
+        final int exact = this.findExactEntry(rgb);
+        if (exact >= 0) {
+            return this.deviceColors[exact];
+        }
+
+        if (this.matching == Matching.PERCEPTUAL) {
+            return this.deviceColors[this.getPerceptualEntry(rgb)];
+        }
+
+        if (color == null) {
+            return this.deviceColors[this.nearestEntry[0]];
+        }
+
+        return this.deviceColors[this.nearestEntry[getCell(color)]];
+    }
+
+    /**
+     * @return The number of perceptual lookups that were answered from the cache.
+     */
+    public long getCacheHits() {
+        return this.cacheHits.sum();
+    }
+
+    /**
+     * @return The number of perceptual lookups that required a new match to be computed.
+     */
+    public long getCacheMisses() {
+        return this.cacheMisses.sum();
+    }
+
+    /**
+     * Returns the index of the palette entry that looks closest to a given 24-bit RGB color; from the cache, if we can.
+     */
+    private int getPerceptualEntry(int rgb) {
+        final long tag = (long) (rgb + 1) << 16;
+        final int slot = getCacheSlot(rgb);
+
+        final long cached = this.perceptualCache.get(slot);
+        if ((cached & ~0xFFFFL) == tag) {
+            this.cacheHits.increment();
+            return (int) (cached & 0xFFFF);
+        }
+
+        // We haven't seen this color recently; do the real math, and remember the result. If another thread races us
+        // here, it'll compute the same answer, so whichever write lands last is fine.
+        this.cacheMisses.increment();
+        final int entry = this.findPerceptualEntry(rgb);
+        this.perceptualCache.set(slot, tag | entry);
+
+        return entry;
+    }
+
+    /**
+     * Returns the perceptual cache slot for a given 24-bit RGB color.
+     */
+    static int getCacheSlot(int rgb) {
+        return (rgb * HASH_MULTIPLIER) >>> (Integer.SIZE - CACHE_BITS);
+    }
+
+    /**
+     * Returns the index of the palette entry whose display color is exactly a given 24-bit RGB color; or -1 if there's none.
+     */
+    private int findExactEntry(int rgb) {
+        final long slot = this.exactEntries[this.findExactSlot(rgb)];
+        return (slot == 0) ? -1 : (int) (slot & 0xFFFF);
+    }
+
+    /**
+     * Returns the exact-match slot that holds a given 24-bit RGB color; or the empty slot where it would go.
+     */
+    private int findExactSlot(int rgb) {
+        final long tag = (long) (rgb + 1) << 16;
+        final int mask = this.exactEntries.length - 1;
+
+        int slot = (rgb * HASH_MULTIPLIER) >>> (Integer.SIZE - this.exactBits);
+        while ((this.exactEntries[slot] != 0) && ((this.exactEntries[slot] & ~0xFFFFL) != tag)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Searches the palette for the entry with the smallest CIEDE2000 difference from a given 24-bit RGB color.
+     */
+    private int findPerceptualEntry(int rgb) {
+        final double[] lab = new double[3];
+        PerceptualColor.toLab((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, lab, 0);
+
+        int closest = 0;
+        double closestDifference = Double.MAX_VALUE;
+
+        for (int entry = 0; entry < this.deviceColors.length; ++entry) {
+            final int offset = entry * 3;
+            final double difference = PerceptualColor.deltaE2000(lab[0], lab[1], lab[2],
+                    this.paletteLab[offset], this.paletteLab[offset + 1], this.paletteLab[offset + 2]);
+
+            if (difference < closestDifference) {
+                closest = entry;
+                closestDifference = difference;
+            }
+        }
+
+        return closest;
+    }
+
+    /**
+     * Packs a color into 24-bit RGB; treating null as black.
+     */
+    private static int getRGB(ColorEx color) {
+        if (color == null) {
+            return 0;
+        }
+
+        return (toByte(color.getRed()) << 16) | (toByte(color.getGreen()) << 8) | toByte(color.getBlue());
+    }
+
+    /**
+     * Returns the index of the cell that contains a given color.
+     */
+    private static int getCell(ColorEx color) {
+        final int red = quantize(color.getRed(), RED_BITS);
+        final int green = quantize(color.getGreen(), GREEN_BITS);
+        final int blue = quantize(color.getBlue(), BLUE_BITS);
+
+        return (red << (GREEN_BITS + BLUE_BITS)) | (green << BLUE_BITS) | blue;
+    }
+
+    /**
+     * Converts a 0-1 color component into a cell coordinate with the given number of bits.
+     */
+    private static int quantize(double component, int bits) {
+        return toByte(component) >> (8 - bits);
+    }
+
+    /**
+     * Converts a 0-1 color component into a 0-255 byte value.
+     */
+    private static int toByte(double component) {
+        final int value = (int) Math.round(component * 255);
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * Converts a cell coordinate with the given number of bits into the 0-255 component at the middle of its cell.
+     */
+    private static int expand(int coordinate, int bits) {
+        return (coordinate << (8 - bits)) | (1 << (7 - bits));
+    }
+}
@@ -4,7 +4,6 @@ import de.mossgrabers.framework.controller.color.ColorEx;
 import de.mossgrabers.framework.controller.color.ColorManager;
 import de.mossgrabers.framework.utils.Pair;
 
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -27,9 +26,9 @@ abstract public class CommonUIColorManager extends ColorManager {
 
 
     /**
-     * Container that memoizes past ColorEx -> DeviceColor lookups.
+     * Precomputed nearest-color table, which maps any ColorEx to its closest device color.
      */
-    protected final HashMap<ColorEx, Integer> colorLookupCache = new HashMap<>();
+    protected final ColorLookupTable colorLookupTable;
 
 
     protected CommonUIColorManager() {
@@ -51,6 +50,7 @@ abstract public class CommonUIColorManager extends ColorManager {
             index += 1;
         }
 
+        this.colorLookupTable = new ColorLookupTable(this.displayColors, this.deviceColors);
     }
 
 
@@ -63,6 +63,18 @@ abstract public class CommonUIColorManager extends ColorManager {
     abstract protected List<Pair<Integer, ColorEx>> getColorMappings();
 
 
+    /**
+     * Selects how display colors are matched to device colors.
+     * <p>
+     * If your device has additional lookup tables, override this to apply the matching to them, too.
+     *
+     * @param matching The matching to use from now on.
+     */
+    public void setColorMatching(ColorLookupTable.Matching matching) {
+        this.colorLookupTable.setMatching(matching);
+    }
+
+
     /**
      * Converts a Java color into a per-device color.
      * <p>
@@ -75,13 +87,8 @@ abstract public class CommonUIColorManager extends ColorManager {
      */
     public int getDeviceColor(ColorEx color, ControlType controlType) {
 
-        // If no color is set, default to black.
-        if (color == null) {
-            color = ColorEx.BLACK;
-        }
-
-        // Compute the color lookup, memoizing as we go.
-        return this.colorLookupCache.computeIfAbsent(color, (c) -> this.deviceColors[ColorEx.getClosestColorIndex(c, this.displayColors)]);
+        // Look up the closest color in our precomputed table. A null color is treated as black.
+        return this.colorLookupTable.getDeviceColor(color);
     }
 
 
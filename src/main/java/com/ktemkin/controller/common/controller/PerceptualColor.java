@@ -0,0 +1,156 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.common.controller;
+
+
+/**
+ * Color math for matching colors the way they're perceived, rather than by their raw RGB distance:
+ * conversion from sRGB into CIELAB (D65), and the CIEDE2000 color difference.
+ *
+ * These are far too slow to run per-LED on every flush; ColorLookupTable only calls them when
+ * building a table, or the first time it sees a given color.
+ *
+ * @author Kate Temkin
+ */
+final class PerceptualColor {
+
+    /**
+     * The D65 reference white, in XYZ.
+     */
+    private static final double WHITE_X = 0.95047;
+    private static final double WHITE_Y = 1.00000;
+    private static final double WHITE_Z = 1.08883;
+
+    /**
+     * Constants for the CIELAB companding function; as exact ratios, per the CIE.
+     */
+    private static final double LAB_EPSILON = 216.0 / 24389.0;
+    private static final double LAB_KAPPA = 24389.0 / 27.0;
+
+    /**
+     * 25 to the seventh power; used in CIEDE2000's chroma corrections.
+     */
+    private static final double TWENTY_FIVE_TO_THE_SEVENTH = 6103515625.0;
+
+
+    private PerceptualColor() {
+    }
+
+    /**
+     * Converts an 8-bit-per-component sRGB color into CIELAB.
+     *
+     * @param red    The red component, 0-255.
+     * @param green  The green component, 0-255.
+     * @param blue   The blue component, 0-255.
+     * @param lab    The array to receive the L*, a*, and b* components.
+     * @param offset The offset in lab at which to store them.
+     */
+    static void toLab(int red, int green, int blue, double[] lab, int offset) {
+        final double r = toLinear(red);
+        final double g = toLinear(green);
+        final double b = toLinear(blue);
+
+        final double fx = compand((0.4124564 * r + 0.3575761 * g + 0.1804375 * b) / WHITE_X);
+        final double fy = compand((0.2126729 * r + 0.7151522 * g + 0.0721750 * b) / WHITE_Y);
+        final double fz = compand((0.0193339 * r + 0.1191920 * g + 0.9503041 * b) / WHITE_Z);
+
+        lab[offset] = 116 * fy - 16;
+        lab[offset + 1] = 500 * (fx - fy);
+        lab[offset + 2] = 200 * (fy - fz);
+    }
+
+    /**
+     * Computes the CIEDE2000 difference between two CIELAB colors; where about 1.0 is a just-noticeable difference.
+     */
+    static double deltaE2000(double l1, double a1, double b1, double l2, double a2, double b2) {
+
+        // Stretch the a* axis for low-chroma colors, which CIELAB doesn't separate well.
+        final double meanChroma7 = Math.pow((Math.hypot(a1, b1) + Math.hypot(a2, b2)) / 2, 7);
+        final double g = 0.5 * (1 - Math.sqrt(meanChroma7 / (meanChroma7 + TWENTY_FIVE_TO_THE_SEVENTH)));
+        final double a1Prime = a1 * (1 + g);
+        final double a2Prime = a2 * (1 + g);
+
+        final double c1 = Math.hypot(a1Prime, b1);
+        final double c2 = Math.hypot(a2Prime, b2);
+        final double h1 = hueAngle(a1Prime, b1);
+        final double h2 = hueAngle(a2Prime, b2);
+        final boolean achromatic = (c1 * c2) == 0;
+
+        // Differences in lightness, chroma, and hue.
+        double hueDifference = achromatic ? 0 : (h2 - h1);
+        if (hueDifference > 180) {
+            hueDifference -= 360;
+        } else if (hueDifference < -180) {
+            hueDifference += 360;
+        }
+
+        final double deltaL = l2 - l1;
+        final double deltaC = c2 - c1;
+        final double deltaH = 2 * Math.sqrt(c1 * c2) * Math.sin(Math.toRadians(hueDifference / 2));
+
+        // Means, for the weighting functions.
+        final double meanL = (l1 + l2) / 2;
+        final double meanC = (c1 + c2) / 2;
+        final double meanH;
+        if (achromatic) {
+            meanH = h1 + h2;
+        } else if (Math.abs(h1 - h2) <= 180) {
+            meanH = (h1 + h2) / 2;
+        } else if ((h1 + h2) < 360) {
+            meanH = (h1 + h2 + 360) / 2;
+        } else {
+            meanH = (h1 + h2 - 360) / 2;
+        }
+
+        final double t = 1
+                - 0.17 * Math.cos(Math.toRadians(meanH - 30))
+                + 0.24 * Math.cos(Math.toRadians(2 * meanH))
+                + 0.32 * Math.cos(Math.toRadians(3 * meanH + 6))
+                - 0.20 * Math.cos(Math.toRadians(4 * meanH - 63));
+
+        final double lightnessOffset = (meanL - 50) * (meanL - 50);
+        final double lightnessWeight = 1 + (0.015 * lightnessOffset) / Math.sqrt(20 + lightnessOffset);
+        final double chromaWeight = 1 + 0.045 * meanC;
+        final double hueWeight = 1 + 0.015 * meanC * t;
+
+        // Rotation term, which corrects for CIELAB's skewed blues.
+        final double meanC7 = Math.pow(meanC, 7);
+        final double rotationAngle = 30 * Math.exp(-Math.pow((meanH - 275) / 25, 2));
+        final double rotation = -2 * Math.sqrt(meanC7 / (meanC7 + TWENTY_FIVE_TO_THE_SEVENTH)) * Math.sin(Math.toRadians(2 * rotationAngle));
+
+        final double lightness = deltaL / lightnessWeight;
+        final double chroma = deltaC / chromaWeight;
+        final double hue = deltaH / hueWeight;
+
+        return Math.sqrt(lightness * lightness + chroma * chroma + hue * hue + rotation * chroma * hue);
+    }
+
+    /**
+     * Converts an 8-bit sRGB component into linear light, 0-1.
+     */
+    private static double toLinear(int component) {
+        final double value = component / 255.0;
+        return (value <= 0.04045) ? (value / 12.92) : Math.pow((value + 0.055) / 1.055, 2.4);
+    }
+
+    /**
+     * The CIELAB companding function.
+     */
+    private static double compand(double value) {
+        return (value > LAB_EPSILON) ? Math.cbrt(value) : ((LAB_KAPPA * value + 16) / 116);
+    }
+
+    /**
+     * Returns the hue angle of an a*b* pair, in degrees from 0 to 360.
+     */
+    private static double hueAngle(double a, double b) {
+        if ((a == 0) && (b == 0)) {
+            return 0;
+        }
+
+        final double angle = Math.toDegrees(Math.atan2(b, a));
+        return (angle < 0) ? (angle + 360) : angle;
+    }
+}
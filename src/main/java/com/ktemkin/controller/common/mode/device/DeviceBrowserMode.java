@@ -212,6 +212,18 @@ public class DeviceBrowserMode extends BaseMode<IItem> {
      * @return A "root" item that contains all sub-items to be displayed.
      */
     protected BrowserModeNode populateRootBrowserNode(IBrowserColumnItem[] items) {
+        return this.createSplitAlphabetRootNode(groupByFirstLetter(items));
+    }
+
+
+    /**
+     * Groups the items in our browser window by the first letter of their names.
+     * Doesn't depend on our surface or model; so it's package-private, where our benchmarks can time it.
+     *
+     * @param items The items currently visible in our browser window.
+     * @return A tree-map mapping each single 'letter' to a node containing the items that start with it.
+     */
+    static TreeMap<String, BrowserModeNode> groupByFirstLetter(IBrowserColumnItem[] items) {
         TreeMap<String, BrowserModeNode> categories = new TreeMap<>();
 
         for (var item : items) {
@@ -249,9 +261,7 @@ public class DeviceBrowserMode extends BaseMode<IItem> {
             }
         }
 
-        // Finally, squish all of those into another level of split hierarchy, and then return
-        // the result as our new root node.
-        return this.createSplitAlphabetRootNode(categories);
+        return categories;
     }
 
 
@@ -263,6 +273,18 @@ public class DeviceBrowserMode extends BaseMode<IItem> {
      * @return The newly created root node.
      */
     protected BrowserModeNode createSplitAlphabetRootNode(TreeMap<String, BrowserModeNode> byLetter) {
+        return splitAlphabetically(byLetter);
+    }
+
+
+    /**
+     * Squishes a collection of "single-letter" BrowserModeNodes into another level of split hierarchy.
+     * Like groupByFirstLetter, this is package-private so our benchmarks can time it.
+     *
+     * @param byLetter A tree-map mapping each single 'letter' to the nodes associated with it.
+     * @return The newly created root node.
+     */
+    static BrowserModeNode splitAlphabetically(TreeMap<String, BrowserModeNode> byLetter) {
 
         // Create a number of top-level category nodes, which we'll
         //
@@ -13,13 +13,17 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.HexFormat;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -182,19 +186,85 @@ public abstract class AbstractNIHostInterop {
      */
     protected final static Set<Integer> KONTROL_DEVICE_IDS = Set.of(0x1610, 0x1620, 0x1630);
 
+    /**
+     * The number of received notifications that may be waiting to be handled at once.
+     */
+    protected final static int NOTIFICATION_QUEUE_CAPACITY = 256;
+    /**
+     * The size of the largest notification we expect to receive. Larger notifications are handled, but cause an allocation.
+     */
+    protected final static int NOTIFICATION_MAXIMUM_SIZE = 1024;
+    /**
+     * The number of control requests (LEDs, focus, and the like) that may be waiting to be sent at once.
+     */
+    protected final static int REQUEST_QUEUE_CONTROL_CAPACITY = 64;
+    /**
+     * The number of display frames that may be waiting to be sent at once.
+     */
+    protected final static int REQUEST_QUEUE_DISPLAY_CAPACITY = 8;
 
     /**
-     * Maps DeviceIDs to the relevant global NIHostIntegrationAgent.
+     * Request priority for small, input-critical requests; such as LED updates and focus requests.
      */
-    protected final static Map<Integer, AbstractNIHostInterop> globalNIConnections = new HashMap<>();
+    public final static int REQUEST_PRIORITY_CONTROL = NIRequestQueue.PRIORITY_CONTROL;
     /**
-     * Stores a collection of serials known to a relevant device type.
+     * Request priority for bulk display data.
      */
-    protected final static Map<Integer, Set<String>> knownSerials = new HashMap<>();
-    //
-    // Global background connection to the NIHostIntegrationAgent.
-    //
-    protected static final Object globalStateLock = new Object();
+    public final static int REQUEST_PRIORITY_DISPLAY = NIRequestQueue.PRIORITY_DISPLAY;
+
+    /**
+     * The longest we'll wait for the NIHostIntegrationAgent to report on a device type, in milliseconds.
+     */
+    protected final static long DEVICE_DISCOVERY_TIMEOUT_MS = 500;
+
+    /**
+     * The number of times we'll try to bring up a connection before giving up.
+     */
+    protected final static int CONNECT_MAX_ATTEMPTS = 4;
+    /**
+     * How long we'll wait for the NIHostIntegrationAgent to acknowledge our subscription, in milliseconds.
+     */
+    protected final static long CONNECT_ACK_TIMEOUT_MS = 500;
+    /**
+     * How long we'll wait before our first retry, in milliseconds. Doubled with each further retry.
+     */
+    protected final static long CONNECT_INITIAL_BACKOFF_MS = 50;
+
+    /**
+     * The stages a connection to the NIHostIntegrationAgent goes through on its way up.
+     */
+    public enum ConnectionState {
+        /** We haven't yet tried to connect. */
+        DISCONNECTED,
+        /** We're handshaking on the bootstrap port, and opening the ports we're given. */
+        HANDSHAKING,
+        /** Our ports are open; we've asked the agent to send notifications to us, and are waiting for it to acknowledge. */
+        SUBSCRIBING,
+        /** The agent has acknowledged our subscription; the connection is ready for use. */
+        CONNECTED,
+        /** We ran out of attempts without getting an acknowledgement. */
+        FAILED,
+        /** The connection has been shut down. */
+        SHUT_DOWN
+    }
+
+
+    /**
+     * Every connection to the NIHostIntegrationAgent in this process, global or per-device; shared by everything that uses them.
+     */
+    private final static NIConnectionPool connectionPool = new NIConnectionPool();
+    /**
+     * Records all of our traffic with the NIHostIntegrationAgent, for later replay; or null if we're not recording.
+     */
+    private static volatile NITrafficRecorder trafficRecorder = NITrafficRecorder.fromSystemProperties();
+    /**
+     * Set once we've reported that the requested traffic recording couldn't be created; so we only do so once.
+     */
+    private final static AtomicBoolean hasReportedRecorderFailure = new AtomicBoolean(false);
+    /**
+     * Keeps track of the devices of each type the NIHostIntegrationAgent has reported.
+     */
+    private final static NIDeviceRegistry deviceRegistry = new NIDeviceRegistry();
     /**
      * True iff this is a 'global' connection, rather than a per-device one.
      */
@@ -234,10 +304,81 @@ public abstract class AbstractNIHostInterop {
      * Thread executor for running our asynchronous notification thread.
      */
     protected ExecutorService notificationExecutor;
+    /**
+     * Merges redundant knob and pad events before they're handed to our event handler. Null if we have no handler.
+     */
+    protected final NIEventCoalescer eventCoalescer;
+    /**
+     * Hands received notifications over to a single thread, which handles them in order.
+     */
+    protected NINotificationDispatcher notificationDispatcher;
+    /**
+     * The storage most recently handed out by claimNotificationBuffer(); only touched by our notification thread.
+     */
+    private byte[] claimedNotification;
+    /**
+     * Sends our outbound requests from a dedicated thread, so callers never wait on the agent.
+     */
+    protected NIRequestQueue requestQueue;
     /**
      * General comms lock; in case we need to panic-restart.
      */
     protected Object commsLock;
+    /**
+     * True iff we may not have focus, and should request it before our next display update.
+     */
+    protected final AtomicBoolean needsFocus = new AtomicBoolean(true);
+
+    //
+    // Connection state.
+    //
+
+    /**
+     * The stage our connection to the NIHostIntegrationAgent has reached.
+     */
+    protected volatile ConnectionState connectionState = ConnectionState.DISCONNECTED;
+    /**
+     * Completed when the NIHostIntegrationAgent acknowledges our notification subscription.
+     */
+    protected final CompletableFuture<Void> subscriptionAcknowledged = new CompletableFuture<>();
+    /**
+     * The notification port we've subscribed with; or null if we haven't yet. Reused when we retry.
+     */
+    private String subscribedNotificationPort;
+    /**
+     * True once our notification polling thread has been started.
+     */
+    private final AtomicBoolean isPolling = new AtomicBoolean(false);
+    /**
+     * The number of attempts it took to bring up our connection.
+     */
+    private int connectAttempts;
+    /**
+     * The time it took to bring up our connection, in nanoseconds.
+     */
+    private long connectTime;
+
+    /**
+     * The number of times our notification thread woke up without a notification to handle.
+     */
+    private final AtomicLong idleWakeups = new AtomicLong();
+    /**
+     * The time at which we first subscribed to notifications; or 0 if we haven't.
+     */
+    private volatile long subscribedAt;
+    /**
+     * The time between subscribing and receiving our first notification, in nanoseconds; or -1 if we haven't received one.
+     */
+    private volatile long timeToFirstNotification = -1;
+
+    /**
+     * The key under which this connection is shared in our connection pool.
+     */
+    private final NIConnectionPool.Key poolKey;
+    /**
+     * The number of users currently holding this connection. Once it drops to zero, the connection is shut down.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
 
 
     /**
@@ -255,17 +396,22 @@ public abstract class AbstractNIHostInterop {
         this.deviceId = deviceId;
         this.isShutdown = new AtomicBoolean(false);
         this.eventHandler = eventHandler;
+        this.eventCoalescer = (eventHandler == null) ? null : new NIEventCoalescer(eventHandler, this::scheduleImmediateTask);
         this.commsLock = new Object();
         this.notificationExecutor = Executors.newSingleThreadExecutor();
+        this.requestQueue = new NIRequestQueue(this, REQUEST_QUEUE_CONTROL_CAPACITY, REQUEST_QUEUE_DISPLAY_CAPACITY, String.format("NI requests (%04x)", deviceId));
+        this.notificationDispatcher = new NINotificationDispatcher(this::handleNotification, this::reportNotificationFailure, NOTIFICATION_QUEUE_CAPACITY, NOTIFICATION_MAXIMUM_SIZE, String.format("NI notifications (%04x)", deviceId));
+        this.reportRecorderFailure();
 
         deviceSerial = (deviceSerial == null) ? "" : deviceSerial;
+        this.poolKey = new NIConnectionPool.Key(deviceId, deviceSerial);
         this.isGlobalConnection = deviceSerial.isEmpty();
         this.isKontrol = KONTROL_DEVICE_IDS.contains(deviceId);
         this.tryToUseMidi = tryToUseMidi && !this.isKontrol;
 
         // Convert the device's serial into an ASCII string.
         this.deviceSerialBytes = StandardCharsets.US_ASCII.encode(deviceSerial);
-        this.bootstrapConnections();
+        this.connect();
 
         // If this is a global connection, issue our start-of-day requests.
         if (this.isGlobalConnection) {
@@ -290,108 +436,132 @@ public abstract class AbstractNIHostInterop {
     }
 
     /**
-     * Factory method that creates the HostInterop for the relevant platform.
+     * Factory method that fetches a HostInterop for the relevant platform.
+     *
+     * Connections are shared: if this process already has a connection for the given device, a reference to it is
+     * returned, rather than a new connection. A connection delivers events to a single handler, and has a single MIDI
+     * mode; so asking for a shared connection with a different handler or MIDI mode is an error. Users that don't need
+     * events may pass a null handler, and share any connection with a matching MIDI mode.
+     * Each connection returned should be handed back with release() once its user is done with it.
      *
      * @param deviceId     The ID number (same as the USB PID) of the relevant device type.
      * @param deviceSerial The serial of the device to connect to, or an empty string for a non-device-specific connection.
+     * @throws IOException If the connection can't be made, or if it's already shared with a different handler or MIDI mode.
      */
     public static AbstractNIHostInterop createInterop(int deviceId, String deviceSerial, INIEventHandler eventHandler, IHost host, boolean tryToUseMidi) throws IOException {
-        AbstractNIHostInterop interop = null;
-        deviceSerial = (deviceSerial == null) ? "" : deviceSerial;
+        final String serial = (deviceSerial == null) ? "" : deviceSerial;
 
-        synchronized (globalStateLock) {
-            // If we're looking for a per-device connection, but we don't yet have a global one, open one first.
-            if (!deviceSerial.isEmpty() && !AbstractNIHostInterop.globalNIConnections.containsKey(deviceId)) {
-                AbstractNIHostInterop.createInterop(deviceId, "", host);
-            }
-
-            // If we're looking for a global connection, and we already have one, short circuit the creation process.
-            if (deviceSerial.isEmpty() && AbstractNIHostInterop.globalNIConnections.containsKey(deviceId)) {
-                return AbstractNIHostInterop.globalNIConnections.get(deviceId);
-            }
+        // If we're looking for a per-device connection, but we don't yet have a global one, open one first.
+        // Global connections live for as long as the process does; so we never release this one.
+        final NIConnectionPool.Key globalKey = new NIConnectionPool.Key(deviceId, "");
+        if (!serial.isEmpty() && !AbstractNIHostInterop.connectionPool.contains(globalKey)) {
+            AbstractNIHostInterop.createInterop(deviceId, "", host);
         }
 
+        final NIConnectionPool.Key key = new NIConnectionPool.Key(deviceId, serial);
+        final AbstractNIHostInterop interop = AbstractNIHostInterop.connectionPool.acquire(key, () -> {
 
-        interop = switch (OperatingSystem.get()) {
-            case MAC, MAC_ARM -> new MacOSNIHostInterop(deviceId, deviceSerial, eventHandler, host, tryToUseMidi);
-            case WINDOWS -> new WindowsNIHostInterop(deviceId, deviceSerial, eventHandler, host, tryToUseMidi);
+            // If we've been asked to use the in-process loopback agent, use it regardless of platform.
+            if (LoopbackNIHostInterop.isEnabled()) {
+                return new LoopbackNIHostInterop(deviceId, serial, eventHandler, host, tryToUseMidi);
+            }
 
-            // We can't communicate with the NIHostIntegrationAgent on other platforms,
-            // as NI doesn't support those platforms, yet. Return null.
-            // (We shouldn't actually get here, as the plugin should abort, first.)
-            default -> null;
-        };
+            return switch (OperatingSystem.get()) {
+                case MAC, MAC_ARM -> new MacOSNIHostInterop(deviceId, serial, eventHandler, host, tryToUseMidi);
+                case WINDOWS -> new WindowsNIHostInterop(deviceId, serial, eventHandler, host, tryToUseMidi);
 
-        synchronized (globalStateLock) {
-            // If we just created a global connection, store it.
-            if (deviceSerial.isEmpty() && (interop != null)) {
-                AbstractNIHostInterop.globalNIConnections.put(deviceId, interop);
-            }
+                // We can't communicate with the NIHostIntegrationAgent on other platforms,
+                // as NI doesn't support those platforms, yet. Return null.
+                // (We shouldn't actually get here, as the plugin should abort, first.)
+                default -> null;
+            };
+        });
+
+        // If we'd be sharing a connection that won't deliver the events we asked for, refuse, rather than silently
+        // handing our events to someone else.
+        if ((interop != null) && !interop.canBeSharedWith(eventHandler, tryToUseMidi)) {
+            interop.release();
+            throw new IOException(String.format("NIHIA connection for %s is already in use with a different event handler or MIDI mode.", serial.isEmpty() ? "global" : serial));
         }
 
         return interop;
     }
 
     /**
-     * Fetches the serialSet for the given device type. Must be called with the globalStateLock held.
+     * Returns true iff a new user with the given event handler and MIDI mode can share this connection.
      */
-    private static Set<String> serialSetForDeviceType(int deviceId) {
-        // Get the serial set for our device type -- creating it, if necessary.
-        return AbstractNIHostInterop.knownSerials.computeIfAbsent(deviceId, k -> new HashSet<>());
+    private boolean canBeSharedWith(INIEventHandler eventHandler, boolean tryToUseMidi) {
+        final boolean isHandlerCompatible = (eventHandler == null) || (eventHandler == this.eventHandler);
+        final boolean isMidiCompatible = (tryToUseMidi && !this.isKontrol) == this.tryToUseMidi;
+
+        return isHandlerCompatible && isMidiCompatible;
     }
 
     /**
-     * Adds a device to the list of available devices.
+     * Hands back a connection fetched with createInterop(). Once every user has released it, the connection is shut down.
      */
-    protected static void addAvailableDevice(int deviceId, String serial) {
+    public void release() {
+        AbstractNIHostInterop.connectionPool.release(this.poolKey, this);
+    }
 
-        synchronized (globalStateLock) {
-            var serialSet = AbstractNIHostInterop.serialSetForDeviceType(deviceId);
-            serialSet.add(serial);
+    /**
+     * Takes an additional reference to this connection, for the connection pool.
+     *
+     * @return True on success; or false if the connection has already been released by all of its users.
+     */
+    boolean retain() {
+        return this.references.getAndUpdate(count -> (count == 0) ? 0 : count + 1) != 0;
+    }
 
-        }
+    /**
+     * Drops a reference to this connection, for the connection pool.
+     *
+     * @return True iff that was the last reference, and the connection should now be shut down.
+     */
+    boolean releaseReference() {
+        return this.references.getAndUpdate(count -> Math.max(count - 1, 0)) == 1;
+    }
+
+    /**
+     * @return The number of users currently sharing this connection.
+     */
+    public int getReferenceCount() {
+        return this.references.get();
+    }
+
+    /**
+     * Adds a device to the list of available devices.
+     */
+    protected static void addAvailableDevice(int deviceId, String serial) {
+        AbstractNIHostInterop.deviceRegistry.addDevice(deviceId, serial);
     }
 
     /**
      * Removes a device from the list of available devices.
      */
     protected static void removeAvailableDevice(int deviceId, String serial) {
-        synchronized (globalStateLock) {
-            var serialSet = AbstractNIHostInterop.serialSetForDeviceType(deviceId);
-            serialSet.remove(serial);
-        }
+        AbstractNIHostInterop.deviceRegistry.removeDevice(deviceId, serial);
     }
 
     /**
      * If one and only one of a given device type is present, returns its serial number.
      *
+     * If the NIHIA hasn't yet reported on the device type, this waits for its first report -- returning as
+     * soon as it arrives, or after DEVICE_DISCOVERY_TIMEOUT_MS if it never does.
+     *
      * @param deviceId The NI device identifier for the device type to be fetched.
      */
     public static String getSingleDeviceSerial(int deviceId) {
+        return AbstractNIHostInterop.deviceRegistry.getSingleDeviceSerial(deviceId, DEVICE_DISCOVERY_TIMEOUT_MS);
+    }
 
-        synchronized (globalStateLock) {
-            var serialSet = AbstractNIHostInterop.serialSetForDeviceType(deviceId);
-
-            if (serialSet.size() == 1) {
-                return (String) serialSet.toArray(new String[1])[0];
-            }
-        }
-
-        // If we didn't get a serial, give ourselves half a second for the NIHIA to respond.
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException ignored) {
-        }
-
-
-        synchronized (globalStateLock) {
-            var serialSet = AbstractNIHostInterop.serialSetForDeviceType(deviceId);
-            if (serialSet.size() == 1) {
-                return (String) serialSet.toArray(new String[1])[0];
-            } else {
-                return null;
-            }
-        }
+    /**
+     * @param deviceId The NI device identifier for the device type.
+     * @return The time the NIHIA took to first report on the given device type, in milliseconds;
+     * or -1 if it hasn't yet reported.
+     */
+    public static long getDeviceDiscoveryTime(int deviceId) {
+        return AbstractNIHostInterop.deviceRegistry.getDiscoveryTime(deviceId);
     }
 
     /**
@@ -412,30 +582,346 @@ public abstract class AbstractNIHostInterop {
         this.host.println(String.format(message, toFormat));
     }
 
+    /**
+     * Reports an error, along with the exception behind it, if possible.
+     */
+    void errorPrint(String message, Throwable ex) {
+        if (this.host == null) {
+            return;
+        }
+
+        this.host.error(message, ex);
+    }
+
     /**
      * Bootstraps a per-device or per-device-type ("global") connection to the NIHostIntegrationAgent.
+     * Implementations perform the handshake, open the ports they're given, and then call subscribeToNotifications().
      */
     abstract void bootstrapConnections() throws IOException;
 
+    /**
+     * Brings up our connection to the NIHostIntegrationAgent, and waits for the agent to acknowledge it.
+     *
+     * If the agent doesn't acknowledge us in time, we retry with backoff. Once our ports are established, retries
+     * only repeat the subscription on them, rather than performing a whole new handshake.
+     */
+    private void connect() throws IOException {
+        final long startTime = System.nanoTime();
+        long backoff = CONNECT_INITIAL_BACKOFF_MS;
+        IOException lastError = null;
+
+        for (int attempt = 1; attempt <= CONNECT_MAX_ATTEMPTS; ++attempt) {
+            this.connectAttempts = attempt;
+
+            try {
+                // If we don't yet have ports, perform a full handshake; otherwise, just re-subscribe on the ports we have.
+                if (this.subscribedNotificationPort == null) {
+                    this.connectionState = ConnectionState.HANDSHAKING;
+                    this.bootstrapConnections();
+                } else {
+                    this.connectionState = ConnectionState.SUBSCRIBING;
+                    this.subscribeToNotifications(this.subscribedNotificationPort);
+                }
+
+                // Wait for the agent to tell us it's ready for us.
+                this.subscriptionAcknowledged.get(CONNECT_ACK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+                this.connectTime = System.nanoTime() - startTime;
+                this.connectionState = ConnectionState.CONNECTED;
+                return;
+            } catch (IOException ex) {
+                lastError = ex;
+            } catch (TimeoutException | ExecutionException ex) {
+                lastError = new IOException("NIHostIntegrationAgent did not acknowledge our connection.");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                this.connectionState = ConnectionState.FAILED;
+                throw new IOException("Interrupted while connecting to the NIHostIntegrationAgent.");
+            }
+
+            if (attempt == CONNECT_MAX_ATTEMPTS) {
+                break;
+            }
+
+            this.debugPrint("NIHIA connection attempt %d failed (%s); retrying in %d ms.", attempt, lastError.getMessage(), backoff);
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                this.connectionState = ConnectionState.FAILED;
+                throw new IOException("Interrupted while connecting to the NIHostIntegrationAgent.");
+            }
+            backoff *= 2;
+        }
+
+        this.connectionState = ConnectionState.FAILED;
+        this.shutdown();
+        throw lastError;
+    }
+
+    /**
+     * @return The stage our connection to the NIHostIntegrationAgent has reached.
+     */
+    public ConnectionState getConnectionState() {
+        return this.connectionState;
+    }
+
+    /**
+     * @return The number of attempts it took to bring up our connection.
+     */
+    public int getConnectAttempts() {
+        return this.connectAttempts;
+    }
+
+    /**
+     * @return The time it took to bring up our connection, in milliseconds.
+     */
+    public long getConnectTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.connectTime);
+    }
+
+    /**
+     * Builds the handshake message that asks the NIHostIntegrationAgent to create a pair of ports for us.
+     * Produces a general handshake for global connections, and a per-device connect for everything else.
+     *
+     * @param softwareId The identifier of the "NI software" we're claiming to be.
+     * @return The raw handshake message, ready to be sent on the bootstrap port.
+     */
+    protected byte[] buildHandshakeMessage(int softwareId) {
+        byte[] deviceSerial = this.deviceSerialBytes.array();
+
+        // Build the message we'll use.
+        byte[] rawMessage = new byte[NI_MSG_HANDSHAKE_LENGTH + deviceSerial.length + 1];
+        ByteBuffer messageBuffer = ByteBuffer.wrap(rawMessage);
+        messageBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (deviceSerial.length == 0) {
+            messageBuffer.putInt(NI_MSG_HANDSHAKE);           // Connect to the server, but not to specific hardware.
+        } else {
+            messageBuffer.putInt(NI_MSG_CONNECT);             // Connect to a port for a specific piece of hardware.
+        }
+        //
+        messageBuffer.putInt(this.deviceId);                  // The device type.
+        messageBuffer.putInt(softwareId);                     // The "NI software" that's connecting.
+        messageBuffer.putInt(NI_HEADER_CONSTANT);             // Unknown. Possibly protocol version?
+        messageBuffer.putInt(deviceSerial.length + 1);        // The length of the serial number that follows, plus a NULL.
+
+        if (deviceSerial.length != 0) {
+            messageBuffer.put(deviceSerial);                  // The serial number of the device we want to control, if any.
+            messageBuffer.put((byte) 0);                      // A null terminator for after the device serial.
+        }
+
+        return rawMessage;
+    }
+
+    /**
+     * Parses the NIHostIntegrationAgent's response to a handshake.
+     *
+     * @param rawResponse The raw response to our handshake message; or null if none was received.
+     * @return A two-element array containing the request port name, followed by the notification port name.
+     */
+    protected String[] parseHandshakeResponse(byte[] rawResponse) throws IOException {
+        if ((rawResponse == null) || (rawResponse.length == 0)) {
+            throw new IOException("NIHostIntegrationAgent did not reply. Failing out.");
+        }
+
+        // Interpret our response a variety of ways...
+        ByteBuffer response = ByteBuffer.wrap(rawResponse);
+        response.order(ByteOrder.LITTLE_ENDIAN);
+        if (rawResponse.length == 4) {
+            throw new IOException("NIHostIntegrationAgent reports an error. Failing out.");
+        }
+
+        // ... so we can extract our target data.
+        int checkVal = response.getInt();
+        int requestPortLength = response.getInt();
+
+        if (checkVal != NI_SUCCESS) {
+            throw new IOException("Failed to communicate!");
+        }
+
+        // Finally, extract the port names we need.
+        CharBuffer responseChars = StandardCharsets.US_ASCII.decode(response);
+        String requestPortName = responseChars.subSequence(0, requestPortLength - 1).toString();
+
+        int notificationPortLength = response.getInt(8 + requestPortLength);
+        String notificationPortName = responseChars.subSequence(requestPortLength + 4, requestPortLength + 4 + notificationPortLength - 1).toString();
+
+        return new String[]{requestPortName, notificationPortName};
+    }
+
     /**
      * @return True iff this connection can be used for sending display data.
      */
     abstract public boolean isUsableForDisplay();
 
     /**
-     * Sends a request over to the NIHostIntegrationAgent, but does not read a response.
+     * Queues a request to be sent over to the NIHostIntegrationAgent, but does not read a response.
      *
      * @param message The raw data to be sent as a request.
+     * @return True iff the request was queued; false if it was dropped, e.g. because too many requests were waiting.
      */
-    abstract public void pushRequest(byte[] message);
+    public boolean pushRequest(byte[] message) {
+        return this.pushRequest(message, message.length);
+    }
+
+    /**
+     * Queues the start of a buffer to be sent as a request over to the NIHostIntegrationAgent, but does not read a response.
+     * The request is copied, and sent ahead of any display data; so callers can reuse a single, maximum-size buffer
+     * for requests of varying size. Never blocks.
+     *
+     * @param message The buffer containing the raw data to be sent as a request.
+     * @param length  The number of bytes from the start of the buffer to send.
+     * @return True iff the request was queued; false if it was dropped, e.g. because too many requests were waiting.
+     */
+    public boolean pushRequest(byte[] message, int length) {
+        final NITrafficRecorder recorder = trafficRecorder;
+        if (recorder != null) {
+            recorder.record(this.deviceId, NITrafficRecorder.DIRECTION_REQUEST, message, length);
+        }
+
+        return this.requestQueue.enqueue(message, length);
+    }
+
+    /**
+     * Allocates a reusable buffer in which requests can be assembled, and then pushed without being copied.
+     * The buffer is direct, so its contents can be handed to native code as a pointer.
+     *
+     * @param size The size of the buffer, in bytes.
+     * @return A new request buffer.
+     */
+    public ByteBuffer allocateRequestBuffer(int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Queues the start of a request buffer to be sent over to the NIHostIntegrationAgent as bulk (display) data,
+     * without copying it and without reading a response. Never blocks. The buffer must not be modified while
+     * isRequestPending() returns true for it; and must not be pushed again until then.
+     *
+     * @param message A buffer created by allocateRequestBuffer().
+     * @param length  The number of bytes from the start of the buffer to send.
+     * @return True iff the request was queued; false if too much display data was already waiting.
+     */
+    public boolean pushRequest(ByteBuffer message, int length) {
+        final NITrafficRecorder recorder = trafficRecorder;
+        if (recorder != null) {
+            recorder.recordDisplay(this.deviceId, message, length);
+        }
+
+        return this.requestQueue.enqueue(message, length);
+    }
+
+    /**
+     * @param message A buffer previously passed to pushRequest().
+     * @return True iff the buffer is still waiting to be sent, or is being sent; and so must not be modified.
+     */
+    public boolean isRequestPending(ByteBuffer message) {
+        return this.requestQueue.isPending(message);
+    }
+
+    /**
+     * Writes the start of an array as a request to the NIHostIntegrationAgent, without reading a response.
+     * Called only from our request queue's writer thread; may block on the agent.
+     *
+     * @param message The buffer containing the raw data to be sent as a request.
+     * @param length  The number of bytes from the start of the buffer to send.
+     */
+    abstract protected void transmitRequest(byte[] message, int length);
+
+    /**
+     * Writes the start of a request buffer to the NIHostIntegrationAgent, without copying it and without reading
+     * a response. Called only from our request queue's writer thread; may block on the agent.
+     *
+     * @param message A buffer created by allocateRequestBuffer().
+     * @param length  The number of bytes from the start of the buffer to send.
+     */
+    abstract protected void transmitRequest(ByteBuffer message, int length);
+
+    /**
+     * @param priority REQUEST_PRIORITY_CONTROL or REQUEST_PRIORITY_DISPLAY.
+     * @return The number of requests of the given priority that have been sent.
+     */
+    public long getRequestsSent(int priority) {
+        return this.requestQueue.getRequestsSent(priority);
+    }
+
+    /**
+     * @param priority REQUEST_PRIORITY_CONTROL or REQUEST_PRIORITY_DISPLAY.
+     * @return The number of requests of the given priority dropped because too many were already waiting.
+     */
+    public long getRequestsDropped(int priority) {
+        return this.requestQueue.getRequestsDropped(priority);
+    }
+
+    /**
+     * @param priority REQUEST_PRIORITY_CONTROL or REQUEST_PRIORITY_DISPLAY.
+     * @return The number of requests of the given priority whose send failed.
+     */
+    public long getRequestsFailed(int priority) {
+        return this.requestQueue.getRequestsFailed(priority);
+    }
+
+    /**
+     * @param priority REQUEST_PRIORITY_CONTROL or REQUEST_PRIORITY_DISPLAY.
+     * @return The mean time between queueing and sending a request of the given priority, in nanoseconds.
+     */
+    public long getAverageRequestLatency(int priority) {
+        return this.requestQueue.getAverageLatency(priority);
+    }
+
+    /**
+     * @param priority REQUEST_PRIORITY_CONTROL or REQUEST_PRIORITY_DISPLAY.
+     * @return The longest time between queueing and sending any request of the given priority, in nanoseconds.
+     */
+    public long getMaxRequestLatency(int priority) {
+        return this.requestQueue.getMaxLatency(priority);
+    }
 
     /**
      * Sends a request over to the NIHostIntegrationAgent, and reads a response. Blocking.
+     * Bypasses our request queue; but, like queued requests, is recorded if we're recording traffic.
+     *
+     * @param message The raw data to be sent as a request.
+     * @return The raw data received as a response; or a 0-byte array if no response was received.
+     */
+    public byte[] sendRequest(byte[] message) {
+        this.recordRequest(message);
+
+        final byte[] response = this.exchangeRequest(message);
+        this.recordResponse(response);
+
+        return response;
+    }
+
+    /**
+     * Sends a request over our transport, and reads a response. Blocking. Used by sendRequest().
      *
      * @param message The raw data to be sent as a request.
      * @return The raw data received as a response; or a 0-byte array if no response was received.
      */
-    abstract public byte[] sendRequest(byte[] message);
+    abstract protected byte[] exchangeRequest(byte[] message);
+
+    /**
+     * Records a request we're sending outside of our request queue, if we're recording traffic.
+     */
+    protected void recordRequest(byte[] message) {
+        final NITrafficRecorder recorder = trafficRecorder;
+        if (recorder != null) {
+            recorder.record(this.deviceId, NITrafficRecorder.DIRECTION_REQUEST, message, message.length);
+        }
+    }
+
+    /**
+     * Records the NIHostIntegrationAgent's response to a blocking request, if we're recording traffic.
+     */
+    protected void recordResponse(byte[] response) {
+        final NITrafficRecorder recorder = trafficRecorder;
+        if ((recorder != null) && (response != null)) {
+            recorder.record(this.deviceId, NITrafficRecorder.DIRECTION_RESPONSE, response, response.length);
+        }
+    }
 
     /**
      * Requests focus from the NIHostIntegrationAgent.
@@ -452,10 +938,30 @@ public abstract class AbstractNIHostInterop {
         this.pushRequest(NI_WHOLE_MSG_REQUEST_FOCUS);
     }
 
+    /**
+     * @return True iff we may not have focus, and will request it with our next display update.
+     */
+    public boolean needsFocus() {
+        return this.needsFocus.get();
+    }
+
+    /**
+     * Requests focus from the NIHostIntegrationAgent, but only if we haven't requested it yet,
+     * or if we've been notified that our focus changed since we last requested it.
+     */
+    public void requestFocusIfNeeded() {
+        if (this.needsFocus.getAndSet(false)) {
+            this.requestFocus();
+        }
+    }
+
     /**
      * Sets the colors of the device's various button LEDs.
+     *
+     * @param rawLedColors The raw color of each LED.
+     * @return True iff the update was queued; false if it was dropped, and so has to be sent again.
      */
-    public void setLedColors(byte[] rawLedColors) {
+    public boolean setLedColors(byte[] rawLedColors) {
 
         // Allocate a buffer in which we can build our LED message.
         byte[] message = new byte[8 + rawLedColors.length];
@@ -469,7 +975,7 @@ public abstract class AbstractNIHostInterop {
         // ... and add in the body of raw LED colors.
         messageToSend.put(rawLedColors);
 
-        this.pushRequest(messageToSend.array());
+        return this.pushRequest(messageToSend.array());
     }
 
     /**
@@ -520,11 +1026,196 @@ public abstract class AbstractNIHostInterop {
     }
 
     /**
-     * Called to run a notification server for a short period of time (such as a second or two).
-     * Runs on its own thread called by the executor; called repeatedly.
+     * Waits for, and handles, incoming notifications. Runs on its own thread called by the executor; called repeatedly
+     * until we're shut down. Implementations should block until a notification arrives, or until wakeNotificationWaiter()
+     * is called; rather than waking periodically.
      */
     abstract void pollForNotifications();
 
+    /**
+     * Wakes our notification thread, if it's waiting for a notification, so it notices that we're shutting down.
+     * Called after isShutdown has been set; may be called before our connection has been fully set up.
+     */
+    protected void wakeNotificationWaiter() {
+        // By default, we rely on the notification thread waking up on its own.
+    }
+
+    /**
+     * Records that our notification thread woke up without a notification to handle.
+     */
+    protected void recordIdleWakeup() {
+        this.idleWakeups.incrementAndGet();
+    }
+
+    /**
+     * @return The number of times our notification thread woke up without a notification to handle.
+     */
+    public long getIdleWakeups() {
+        return this.idleWakeups.get();
+    }
+
+    /**
+     * @return The time between subscribing to notifications and receiving the first one, in microseconds;
+     * or -1 if we haven't received one yet.
+     */
+    public long getTimeToFirstNotification() {
+        final long time = this.timeToFirstNotification;
+        return (time < 0) ? -1 : TimeUnit.NANOSECONDS.toMicros(time);
+    }
+
+    /**
+     * Notes the arrival of a notification, for our time-to-first-notification metric.
+     */
+    private void recordNotificationReceived() {
+        if ((this.timeToFirstNotification < 0) && (this.subscribedAt != 0)) {
+            this.timeToFirstNotification = System.nanoTime() - this.subscribedAt;
+        }
+    }
+
+    /**
+     * Queues a received notification to be handled on our notification dispatch thread.
+     * Must only be called from the single thread that receives notifications.
+     *
+     * @param rawNotification The notification, exactly as received from the NIHostIntegrationAgent.
+     */
+    protected void dispatchNotification(byte[] rawNotification) {
+        this.dispatchNotification(rawNotification, rawNotification.length);
+    }
+
+    /**
+     * Queues a received notification to be handled on our notification dispatch thread.
+     * The notification is copied, so the caller may reuse its buffer as soon as this returns.
+     * Must only be called from the single thread that receives notifications.
+     *
+     * @param rawNotification The buffer containing the notification, exactly as received from the NIHostIntegrationAgent.
+     * @param length          The length of the notification, from the start of the buffer.
+     */
+    protected void dispatchNotification(byte[] rawNotification, int length) {
+        this.recordNotificationReceived();
+
+        final NITrafficRecorder recorder = trafficRecorder;
+        if (recorder != null) {
+            recorder.record(this.deviceId, NITrafficRecorder.DIRECTION_NOTIFICATION, rawNotification, length);
+        }
+
+        if (!this.notificationDispatcher.offer(rawNotification, length)) {
+            this.warnIfFirstDrop();
+        }
+    }
+
+    /**
+     * Claims storage into which a received notification can be copied directly, for backends that
+     * receive notifications in native memory. Must be followed by publishNotification(), unless it returns null.
+     *
+     * @param length The length of the received notification.
+     * @return Storage for at least the given number of bytes; or null if the notification has to be dropped.
+     */
+    protected byte[] claimNotificationBuffer(int length) {
+        this.recordNotificationReceived();
+
+        byte[] buffer = this.notificationDispatcher.claim(length);
+        if (buffer == null) {
+            this.warnIfFirstDrop();
+        }
+
+        this.claimedNotification = buffer;
+        return buffer;
+    }
+
+    /**
+     * Queues the notification copied into storage from claimNotificationBuffer() to be handled.
+     *
+     * @param length The length of the notification.
+     */
+    protected void publishNotification(int length) {
+        final NITrafficRecorder recorder = trafficRecorder;
+        if (recorder != null) {
+            recorder.record(this.deviceId, NITrafficRecorder.DIRECTION_NOTIFICATION, this.claimedNotification, length);
+        }
+
+        this.notificationDispatcher.publish(length);
+    }
+
+    /**
+     * Warns about dropped notifications -- but only on the first drop; the drop counter tells the rest of the story.
+     */
+    private void warnIfFirstDrop() {
+        if (this.notificationDispatcher.getDropped() == 1) {
+            this.debugPrint("Notification queue full; dropping notifications.");
+        }
+    }
+
+    /**
+     * Replaces the recording our connections write their traffic into; so traffic can be recorded without setting
+     * the recording's system properties before we're first loaded, e.g. from tests.
+     *
+     * @param recorder The recorder to write into; or null to stop recording.
+     */
+    static void setTrafficRecorder(NITrafficRecorder recorder) {
+        trafficRecorder = recorder;
+    }
+
+    /**
+     * If we were asked to record our traffic but couldn't, says why -- once, from the first connection with a host.
+     */
+    private void reportRecorderFailure() {
+        final Exception failure = NITrafficRecorder.getCreationFailure();
+        if ((failure == null) || (this.host == null) || hasReportedRecorderFailure.getAndSet(true)) {
+            return;
+        }
+
+        this.errorPrint("Couldn't create the NIHIA traffic recording at " + System.getProperty(NITrafficRecorder.RECORD_PROPERTY) + "; traffic won't be recorded.", failure);
+    }
+
+    /**
+     * Reports the first notification whose handling threw; the failure counter tells the rest of the story.
+     */
+    private void reportNotificationFailure(RuntimeException ex) {
+        this.errorPrint("Failed to handle a notification from the NIHostIntegrationAgent.", ex);
+    }
+
+    /**
+     * @return The number of notifications that have been handled.
+     */
+    public long getNotificationsDispatched() {
+        return this.notificationDispatcher.getDispatched();
+    }
+
+    /**
+     * @return The number of notifications dropped because we'd fallen too far behind.
+     */
+    public long getNotificationsDropped() {
+        return this.notificationDispatcher.getDropped();
+    }
+
+    /**
+     * @return The number of notifications whose handling threw an exception.
+     */
+    public long getNotificationsFailed() {
+        return this.notificationDispatcher.getFailed();
+    }
+
+    /**
+     * @return The largest number of received notifications that have been waiting to be handled at once.
+     */
+    public int getNotificationBacklogPeak() {
+        return this.notificationDispatcher.getPeakBacklog();
+    }
+
+    /**
+     * @return The number of knob events merged into an earlier event, rather than being handled separately.
+     */
+    public long getKnobEventsMerged() {
+        return (this.eventCoalescer == null) ? 0 : this.eventCoalescer.getKnobEventsMerged();
+    }
+
+    /**
+     * @return The number of pad pressure events replaced by a later one, rather than being handled separately.
+     */
+    public long getPadEventsMerged() {
+        return (this.eventCoalescer == null) ? 0 : this.eventCoalescer.getPadEventsMerged();
+    }
+
     /**
      * Acknowledges a connection by returning the name of the notification port.
      */
@@ -551,17 +1242,27 @@ public abstract class AbstractNIHostInterop {
         messageBuffer.get(rawMessage);
 
         // ... and perform our exchange.
+        this.connectionState = ConnectionState.SUBSCRIBING;
+        if (this.subscribedAt == 0) {
+            this.subscribedAt = System.nanoTime();
+        }
+
         byte[] result = this.sendRequest(rawMessage);
-        if (!this.responseWasSuccess(result)) {
+        if ((result == null) || !this.responseWasSuccess(result)) {
             throw new IOException("NIHostIntegrationAgent did not accept our notification socket.");
         }
 
-        // We've now subscribed to notifications -- set up a notification listener.
-        notificationExecutor.submit(() -> {
-            while (!this.isShutdown.get()) {
-                this.pollForNotifications();
-            }
-        });
+        // Remember our port, so any retries can reuse it.
+        this.subscribedNotificationPort = notificationPortName;
+
+        // We've now subscribed to notifications -- set up a notification listener, if we don't already have one.
+        if (!this.isPolling.getAndSet(true)) {
+            this.notificationExecutor.submit(() -> {
+                while (!this.isShutdown.get()) {
+                    this.pollForNotifications();
+                }
+            });
+        }
     }
 
     /**
@@ -581,6 +1282,7 @@ public abstract class AbstractNIHostInterop {
 
         // Request information about connected devices.
         // We'll be sent information about connected devices as a notification.
+        AbstractNIHostInterop.deviceRegistry.markDiscoveryStarted(this.deviceId);
         this.pushRequest(NI_WHOLE_MSG_GET_DEVICE_STATE);
     }
 
@@ -622,21 +1324,19 @@ public abstract class AbstractNIHostInterop {
 
     /**
      * Handles a notification from the NIHostIntegrationAgent.
+     *
+     * @param notificationData The raw notification, as a little-endian buffer. Only valid until this returns.
      */
-    protected void handleNotification(byte[] rawNotification) {
-
-        // We'll handle the raw data as a stream of little-endian values.
-        ByteBuffer notificationData = ByteBuffer.wrap(rawNotification);
-        notificationData.order(ByteOrder.LITTLE_ENDIAN);
+    protected void handleNotification(ByteBuffer notificationData) {
 
         // Handle each possible message type.
         var notification = notificationData.getInt();
         switch (notification) {
             case NI_NOTIFICATION_DEVICE_STATE -> this.handleDeviceStateChanged(notificationData);
-            case NI_NOTIFICATION_ACK -> this.debugPrint("Subscribed to events via NIHostIntegrationAgent.");
+            case NI_NOTIFICATION_ACK -> this.handleSubscriptionAcknowledged();
             case NI_NOTIFICATION_CLAIM_CHANGED -> this.handleClaimChanged(notificationData.getInt() == NI_SUCCESS);
             case NI_NOTIFICATION_CLIENT -> this.handleClientNotification(notificationData);
-            case NI_NOTIFICATION_BUTTON -> this.handleButtonEvent(notificationData, rawNotification);
+            case NI_NOTIFICATION_BUTTON -> this.handleButtonEvent(notificationData);
             case NI_NOTIFICATION_KNOB -> this.handleKnobEvent(notificationData);
             case NI_NOTIFICATION_ENCODER -> this.handleEncoderEvent(notificationData);
             case NI_NOTIFICATION_TOUCHSTRIP -> this.handleTouchstripEvent(notificationData);
@@ -651,7 +1351,8 @@ public abstract class AbstractNIHostInterop {
      */
     private void handlePadEvent(ByteBuffer notificationData) {
 
-        if (this.eventHandler == null) {
+        // Without a host, there's nowhere to deliver events.
+        if ((this.eventCoalescer == null) || (this.host == null)) {
             return;
         }
 
@@ -666,7 +1367,17 @@ public abstract class AbstractNIHostInterop {
             notificationData.getInt();
             final long pressure = Integer.toUnsignedLong(notificationData.getInt());
 
-            this.scheduleImmediateTask(() -> this.eventHandler.handlePadEvent(padNumber, pressure));
+            // Queue the event; aftertouch will be merged with any that's still waiting for the host.
+            this.eventCoalescer.addPadEvent(padNumber, pressure);
+        }
+    }
+
+    /**
+     * Handles the NIHostIntegrationAgent's acknowledgement of our notification subscription.
+     */
+    private void handleSubscriptionAcknowledged() {
+        if (this.subscriptionAcknowledged.complete(null)) {
+            this.debugPrint("Subscribed to events via NIHostIntegrationAgent.");
         }
     }
 
@@ -701,7 +1412,7 @@ public abstract class AbstractNIHostInterop {
         var number = data.getInt();
         switch (number) {
             case NI_NOTIFICATION_CLIENT_FOCUS_CHANGED:
-                this.handleFocusChanged();
+                this.handleFocusChanged(data);
                 return;
 
             case NI_NOTIFICATION_CLIENT_ACQUIRE:
@@ -733,8 +1444,21 @@ public abstract class AbstractNIHostInterop {
     /**
      * Handles receipt of 'focus changed' events.
      */
-    private void handleFocusChanged() {
-        // Nothing to do, currently.
+    private void handleFocusChanged(ByteBuffer data) {
+
+        // Note: we haven't verified this notification's payload against a capture from real hardware; we're assuming
+        // it leads with a status word that reads NI_SUCCESS once focus is ours. Log it, so that can be checked.
+        final byte[] payload = new byte[data.remaining()];
+        data.duplicate().get(payload);
+        this.debugPrint("Focus changed; payload: [%s].", HexFormat.of().formatHex(payload));
+
+        // If the notification confirms that we have focus, there's nothing to do.
+        if ((data.remaining() >= 4) && (data.getInt() == NI_SUCCESS)) {
+            return;
+        }
+
+        // Otherwise, we may have lost focus; request it again along with our next display update.
+        this.needsFocus.set(true);
     }
 
     /**
@@ -742,13 +1466,13 @@ public abstract class AbstractNIHostInterop {
      *
      * @param data The raw data for the relevant event.
      */
-    private void handleButtonEvent(ByteBuffer data, byte[] raw) {
+    private void handleButtonEvent(ByteBuffer data) {
 
-        if (this.eventHandler == null) {
+        // Without a host, there's nowhere to deliver events.
+        if ((this.eventCoalescer == null) || (this.host == null)) {
             return;
         }
 
-
         // Discard the data that's irrelevant to us...
         data.getInt();
         data.getInt();
@@ -761,7 +1485,7 @@ public abstract class AbstractNIHostInterop {
             case NI_NOTIFICATION_BUTTON_STATE, NI_NOTIFICATION_BUTTON_STATE_MULTI -> {
                 final int button = data.getInt();
                 final int state = data.getInt();
-                this.scheduleImmediateTask(() -> this.eventHandler.handleButtonEvent(button, (state % 2 == 0) ? ButtonEvent.UP : ButtonEvent.DOWN));
+                this.eventCoalescer.addButtonEvent(button, (state % 2 == 0) ? ButtonEvent.UP : ButtonEvent.DOWN);
             }
             case NI_NOTIFICATION_BUTTON_STATE_UNKNOWN -> {
                 this.debugPrint("Unknown button event type (%x) -- %x / %x / %x", type, data.getInt(), data.getInt(), data.getInt());
@@ -778,7 +1502,8 @@ public abstract class AbstractNIHostInterop {
      */
     private void handleKnobEvent(ByteBuffer data) {
 
-        if (this.eventHandler == null) {
+        // Without a host, there's nowhere to deliver events.
+        if ((this.eventCoalescer == null) || (this.host == null)) {
             return;
         }
 
@@ -791,7 +1516,8 @@ public abstract class AbstractNIHostInterop {
         final int knob = data.getInt();
         final int encoder = data.getInt();
 
-        this.scheduleImmediateTask(() -> this.eventHandler.handleKnobEvent(knob, encoder));
+        // Queue the event; it'll be merged with any turn of the same knob that's still waiting for the host.
+        this.eventCoalescer.addKnobEvent(knob, encoder);
     }
 
 
@@ -806,7 +1532,8 @@ public abstract class AbstractNIHostInterop {
      */
     private void handleEncoderEvent(ByteBuffer data) {
 
-        if (this.eventHandler == null) {
+        // Without a host, there's nowhere to deliver events.
+        if ((this.eventCoalescer == null) || (this.host == null)) {
             return;
         }
 
@@ -822,8 +1549,7 @@ public abstract class AbstractNIHostInterop {
         // If this was the opposite direction, flip the sign on our encoder value.
         encoderValue *= encoderDirection;
 
-        long finalEncoderValue = encoderValue;
-        this.scheduleImmediateTask(() -> this.eventHandler.handleMainEncoderEvent(finalEncoderValue));
+        this.eventCoalescer.addMainEncoderEvent(encoderValue);
     }
 
     /**
@@ -871,8 +1597,14 @@ public abstract class AbstractNIHostInterop {
 
     /**
      * Used to indicate that our polling thread should stop.
+     * Connections fetched with createInterop() may be shared; their users should call release(), instead.
      */
     public void shutdown() {
         this.isShutdown.set(true);
+        this.connectionState = ConnectionState.SHUT_DOWN;
+        this.wakeNotificationWaiter();
+        this.notificationExecutor.shutdown();
+        this.notificationDispatcher.shutdown();
+        this.requestQueue.shutdown();
     }
 }
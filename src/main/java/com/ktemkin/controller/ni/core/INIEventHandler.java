@@ -28,6 +28,40 @@ public interface INIEventHandler {
      */
     void handleKnobEvent(int rawContinuousId, int newValue);
 
+    /**
+     * Converts the raw encoder value of a single knob turn into the number of steps it moves the knob.
+     * Before consecutive turns are merged, each is decoded on its own, and their steps are added up; so
+     * handlers whose decoding isn't linear should override this, along with the merged handleKnobEvent.
+     * By default, the raw value is passed through unchanged.
+     *
+     * @param rawContinuousId The index of the knob that's been turned.
+     * @param rawValue        The raw encoder value for the turn.
+     * @return The number of steps the turn moves the knob.
+     */
+    default int decodeKnobTurn(int rawContinuousId, int rawValue) {
+        return rawValue;
+    }
+
+    /**
+     * Called when several consecutive turns of the same knob, in the same direction, have been merged.
+     * By default, the average turn is replayed once per merged turn; the last replayed turn also carries whatever
+     * the average doesn't divide evenly, so the replayed turns always add up to the merged total. That's only
+     * faithful when decodeKnobTurn isn't overridden, and so the steps are the sum of the raw values.
+     *
+     * @param rawContinuousId The index of the knob that's been turned.
+     * @param steps           The sum of every merged turn's steps, as returned by decodeKnobTurn.
+     * @param turns           The number of turns merged into this event; always at least one.
+     */
+    default void handleKnobEvent(int rawContinuousId, long steps, int turns) {
+        final int averageValue = (int) (steps / turns);
+        final int remainder = (int) (steps % turns);
+
+        for (int i = 0; i < turns - 1; ++i) {
+            this.handleKnobEvent(rawContinuousId, averageValue);
+        }
+        this.handleKnobEvent(rawContinuousId, averageValue + remainder);
+    }
+
     /**
      * Called when a new "main encoder rotated" event has occurred.
      * Note that directional input is handled over MIDI.
@@ -0,0 +1,449 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import de.mossgrabers.framework.daw.IHost;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+
+/**
+ * In-process stand-in for the NIHostIntegrationAgent.
+ *
+ * Speaks the same handshake and notification protocol as the real agent, but never leaves the JVM;
+ * which lets the whole NI stack (display, LEDs, and input notifications) run on platforms NI doesn't
+ * support, such as Linux. Enabled by setting the system property {@value #LOOPBACK_PROPERTY} to true.
+ *
+ * @author Kate Temkin
+ */
+public class LoopbackNIHostInterop extends AbstractNIHostInterop {
+
+    /**
+     * System property that, when set to true, makes createInterop() return loopback connections.
+     */
+    public static final String LOOPBACK_PROPERTY = "drivenbykate.nihia.loopback";
+    /**
+     * System property that sets the serial of the device the loopback agent reports as connected.
+     */
+    public static final String LOOPBACK_SERIAL_PROPERTY = "drivenbykate.nihia.loopback.serial";
+    /**
+     * System property that sets the number of subscriptions the loopback agent ignores before acknowledging one;
+     * used to exercise our connection retries.
+     */
+    public static final String LOOPBACK_DROPPED_ACKS_PROPERTY = "drivenbykate.nihia.loopback.droppedAcks";
+    /**
+     * The serial reported as connected, if none is provided via {@value #LOOPBACK_SERIAL_PROPERTY}.
+     */
+    private static final String DEFAULT_LOOPBACK_SERIAL = "LOOPBACK";
+    /**
+     * Placeholder queued to wake our notification thread when we shut down. Never delivered.
+     */
+    private static final byte[] WAKE_FOR_SHUTDOWN = new byte[0];
+
+    //
+    // Note that the fields below are deliberately left without initializers: our superclass' constructor
+    // runs the handshake (and starts polling) before our own initializers would run, so we set them up
+    // in bootstrapConnections(), instead.
+    //
+
+    /**
+     * Notifications waiting to be delivered, as if they'd arrived on our notification port.
+     */
+    private BlockingQueue<byte[]> pendingNotifications;
+    /**
+     * The name of the request port the emulated agent handed us.
+     */
+    private String requestPortName;
+    /**
+     * The number of requests pushed to the emulated agent without waiting for a response.
+     */
+    private AtomicLong requestsPushed;
+    /**
+     * The total number of bytes pushed to the emulated agent.
+     */
+    private AtomicLong bytesPushed;
+    /**
+     * The number of requests sent to the emulated agent that expected a response.
+     */
+    private AtomicLong requestsSent;
+    /**
+     * The number of notifications we've delivered, as if they'd arrived on our notification port.
+     */
+    private AtomicLong notificationsDelivered;
+    /**
+     * The number of subscriptions the emulated agent will still ignore, rather than acknowledge.
+     */
+    private AtomicInteger acknowledgementsToDrop;
+    /**
+     * Optional observer that sees every request pushed to the emulated agent.
+     */
+    private volatile Consumer<ByteBuffer> requestObserver;
+
+
+    /**
+     * Creates a new loopback connection, which emulates the NIHostIntegrationAgent in-process.
+     *
+     * @param deviceId     The DeviceID for the relevant NI device.
+     * @param deviceSerial The device's serial; or null / empty string for a non-device-specific connection.
+     * @param eventHandler The set of callbacks to use to handle notification events. May be null.
+     * @param host         The host to use for debug printing and scheduling. Cannot be null if eventHandler is provided.
+     * @param tryToUseMidi If set, we'll try to use MIDI on Maschine devices, instead of claiming all events.
+     */
+    LoopbackNIHostInterop(int deviceId, String deviceSerial, INIEventHandler eventHandler, IHost host, boolean tryToUseMidi) throws IOException {
+        super(deviceId, deviceSerial, eventHandler, host, tryToUseMidi);
+    }
+
+    /**
+     * @return True iff NI connections should be made to the in-process loopback agent.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(LOOPBACK_PROPERTY);
+    }
+
+    /**
+     * @return The serial of the device the loopback agent reports as connected.
+     */
+    public static String getLoopbackSerial() {
+        return System.getProperty(LOOPBACK_SERIAL_PROPERTY, DEFAULT_LOOPBACK_SERIAL);
+    }
+
+    /**
+     * Bootstraps our connection, performing the same handshake we'd perform with a real agent.
+     */
+    @Override
+    protected void bootstrapConnections() throws IOException {
+        this.pendingNotifications = new LinkedBlockingQueue<>();
+        this.requestsPushed = new AtomicLong();
+        this.bytesPushed = new AtomicLong();
+        this.requestsSent = new AtomicLong();
+        this.notificationsDelivered = new AtomicLong();
+        this.acknowledgementsToDrop = new AtomicInteger(Integer.getInteger(LOOPBACK_DROPPED_ACKS_PROPERTY, 0));
+
+        // Perform our handshake against the emulated agent...
+        byte[] rawMessage = this.buildHandshakeMessage(this.isKontrol ? NI_SOFTWARE_ID_KONTROL : NI_SOFTWARE_ID_MASCHINE2);
+        this.recordRequest(rawMessage);
+        byte[] rawResponse = this.answerHandshake(rawMessage);
+        this.recordResponse(rawResponse);
+
+        String[] portNames = this.parseHandshakeResponse(rawResponse);
+        this.requestPortName = portNames[0];
+
+        // ... and finish our bootstrapping.
+        this.subscribeToNotifications(portNames[1]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isUsableForDisplay() {
+        return (this.requestPortName != null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void transmitRequest(byte[] message, int length) {
+        this.handleRequest(ByteBuffer.wrap(message, 0, length).slice());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void transmitRequest(ByteBuffer message, int length) {
+        this.handleRequest(message.duplicate().position(0).limit(length).slice());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected byte[] exchangeRequest(byte[] message) {
+        this.requestsSent.incrementAndGet();
+
+        // The only exchange that expects a response is our notification port acknowledgement.
+        // Accept it, and then let our client know it's subscribed, as the real agent would -- unless we've been
+        // asked to play an agent that's slow to acknowledge.
+        if (readMessageId(ByteBuffer.wrap(message)) == NI_MSG_ACKNOLWEDGE_NOTIFICATION_PORT) {
+            if (this.acknowledgementsToDrop.getAndUpdate(n -> Math.max(n - 1, 0)) == 0) {
+                this.injectNotification(newNotification(NI_NOTIFICATION_ACK, 0).array());
+            }
+        }
+
+        return newNotification(NI_SUCCESS, 0).array();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void pollForNotifications() {
+        byte[] notification;
+
+        // Wait for as long as it takes for a notification -- or for shutdown -- to arrive.
+        try {
+            notification = this.pendingNotifications.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (notification == WAKE_FOR_SHUTDOWN) {
+            this.recordIdleWakeup();
+            return;
+        }
+
+        this.notificationsDelivered.incrementAndGet();
+        this.dispatchNotification(notification);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void wakeNotificationWaiter() {
+        if (this.pendingNotifications != null) {
+            this.pendingNotifications.add(WAKE_FOR_SHUTDOWN);
+        }
+    }
+
+    /**
+     * Queues a raw notification, as if it had been sent to us by the NIHostIntegrationAgent.
+     *
+     * @param rawNotification The notification, exactly as it would arrive on the notification port.
+     */
+    public void injectNotification(byte[] rawNotification) {
+        this.pendingNotifications.add(rawNotification);
+    }
+
+    /**
+     * Queues a sequence of raw notifications, in order. Useful for replaying a captured event stream.
+     *
+     * @param rawNotifications The notifications to be delivered.
+     */
+    public void injectNotifications(Iterable<byte[]> rawNotifications) {
+        for (byte[] rawNotification : rawNotifications) {
+            this.injectNotification(rawNotification);
+        }
+    }
+
+    /**
+     * Queues a button press or release notification.
+     *
+     * @param button  The NI button number.
+     * @param pressed True for a press; false for a release.
+     */
+    public void injectButtonEvent(int button, boolean pressed) {
+        ByteBuffer notification = newNotification(NI_NOTIFICATION_BUTTON, 5 * 4);
+        notification.putInt(0);
+        notification.putInt(0);
+        notification.putInt(NI_NOTIFICATION_BUTTON_STATE);
+        notification.putInt(button);
+        notification.putInt(pressed ? 1 : 0);
+
+        this.injectNotification(notification.array());
+    }
+
+    /**
+     * Queues a knob rotation notification.
+     *
+     * @param knob  The NI knob number.
+     * @param delta The raw, signed encoder delta.
+     */
+    public void injectKnobEvent(int knob, int delta) {
+        ByteBuffer notification = newNotification(NI_NOTIFICATION_KNOB, 5 * 4);
+        notification.putInt(0);
+        notification.putInt(0);
+        notification.putInt(0);
+        notification.putInt(knob);
+        notification.putInt(delta);
+
+        this.injectNotification(notification.array());
+    }
+
+    /**
+     * Queues a pad pressure notification for a single pad.
+     *
+     * @param pad      The NI pad number.
+     * @param pressure The raw pad pressure; zero for a release.
+     */
+    public void injectPadEvent(int pad, long pressure) {
+        ByteBuffer notification = newNotification(NI_NOTIFICATION_PAD_TOUCH, 6 * 4);
+        notification.putInt(0);
+        notification.putInt(0);
+        notification.putInt(0);
+        notification.putInt(pad);
+        notification.putInt(0);
+        notification.putInt((int) pressure);
+
+        this.injectNotification(notification.array());
+    }
+
+    /**
+     * Sets an observer that sees each request pushed to the emulated agent, such as display and LED data.
+     * The observer is called on our request writer thread, and must not hold on to the buffer it's given.
+     *
+     * @param observer The observer to call; or null to remove any existing observer.
+     */
+    public void setRequestObserver(Consumer<ByteBuffer> observer) {
+        this.requestObserver = observer;
+    }
+
+    /**
+     * @return The number of requests pushed to the emulated agent.
+     */
+    public long getRequestsPushed() {
+        return this.requestsPushed.get();
+    }
+
+    /**
+     * @return The total number of bytes pushed to the emulated agent.
+     */
+    public long getBytesPushed() {
+        return this.bytesPushed.get();
+    }
+
+    /**
+     * @return The number of requests sent to the emulated agent that expected a response.
+     */
+    public long getRequestsSent() {
+        return this.requestsSent.get();
+    }
+
+    /**
+     * @return The number of notifications delivered, as if they'd arrived on our notification port.
+     */
+    public long getNotificationsDelivered() {
+        return this.notificationsDelivered.get();
+    }
+
+    /**
+     * @return The number of notifications waiting to be delivered.
+     */
+    public int getPendingNotificationCount() {
+        return this.pendingNotifications.size();
+    }
+
+    //
+    // Emulated agent.
+    //
+
+    /**
+     * Answers a handshake the way the NIHostIntegrationAgent does: with a success marker, followed by
+     * the length-prefixed, null-terminated names of our request and notification ports.
+     */
+    private byte[] answerHandshake(byte[] rawMessage) {
+        ByteBuffer message = ByteBuffer.wrap(rawMessage);
+        message.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Reject anything that isn't a handshake, as the real agent would.
+        int messageId = message.getInt();
+        if ((messageId != NI_MSG_HANDSHAKE) && (messageId != NI_MSG_CONNECT)) {
+            return newNotification(0, 0).array();
+        }
+
+        String suffix = String.format("%04x.%s", this.deviceId, this.isGlobalConnection ? "global" : getLoopbackSerial());
+        byte[] requestPort = ("loopback.request." + suffix).getBytes(StandardCharsets.US_ASCII);
+        byte[] notificationPort = ("loopback.notification." + suffix).getBytes(StandardCharsets.US_ASCII);
+
+        ByteBuffer response = newNotification(NI_SUCCESS, 4 + requestPort.length + 1 + 4 + notificationPort.length + 1);
+        response.putInt(requestPort.length + 1);
+        response.put(requestPort);
+        response.put((byte) 0);
+        response.putInt(notificationPort.length + 1);
+        response.put(notificationPort);
+        response.put((byte) 0);
+
+        return response.array();
+    }
+
+    /**
+     * Handles a request pushed to the emulated agent, responding with any notifications the agent would send.
+     */
+    private void handleRequest(ByteBuffer request) {
+        this.requestsPushed.incrementAndGet();
+        this.bytesPushed.addAndGet(request.remaining());
+
+        Consumer<ByteBuffer> observer = this.requestObserver;
+        if (observer != null) {
+            observer.accept(request.asReadOnlyBuffer());
+        }
+
+        // Respond to the few requests that the real agent answers with a notification.
+        if (matches(request, NI_WHOLE_MSG_GET_DEVICE_STATE)) {
+            this.reportConnectedDevice();
+        } else if (matches(request, NI_WHOLE_MSG_ACQUIRE)) {
+            this.injectClientNotification(NI_NOTIFICATION_CLIENT_ACQUIRE, NI_SUCCESS);
+        } else if (matches(request, NI_WHOLE_MSG_REQUEST_FOCUS)) {
+            this.injectClientNotification(NI_NOTIFICATION_CLIENT_FOCUS_CHANGED, NI_SUCCESS);
+        }
+    }
+
+    /**
+     * Reports our loopback device as connected, as the agent does in response to a device state request.
+     */
+    private void reportConnectedDevice() {
+        byte[] serial = getLoopbackSerial().getBytes(StandardCharsets.US_ASCII);
+
+        ByteBuffer notification = newNotification(NI_NOTIFICATION_DEVICE_STATE, 3 * 4 + serial.length + 1);
+        notification.putInt(NI_SUCCESS);
+        notification.putInt(this.deviceId);
+        notification.putInt(serial.length + 1);
+        notification.put(serial);
+        notification.put((byte) 0);
+
+        this.injectNotification(notification.array());
+    }
+
+    /**
+     * Queues a 'client state changed' notification with a single argument.
+     */
+    private void injectClientNotification(int type, int argument) {
+        ByteBuffer notification = newNotification(NI_NOTIFICATION_CLIENT, 2 * 4);
+        notification.putInt(type);
+        notification.putInt(argument);
+
+        this.injectNotification(notification.array());
+    }
+
+    /**
+     * Creates a little-endian notification buffer with the given ID, and room for the given number of bytes of body.
+     */
+    private static ByteBuffer newNotification(int notificationId, int bodyLength) {
+        ByteBuffer notification = ByteBuffer.allocate(4 + bodyLength);
+        notification.order(ByteOrder.LITTLE_ENDIAN);
+        notification.putInt(notificationId);
+
+        return notification;
+    }
+
+    /**
+     * Reads the little-endian message ID from the start of a request, or zero if it's too short to have one.
+     */
+    private static int readMessageId(ByteBuffer request) {
+        if (request.remaining() < 4) {
+            return 0;
+        }
+
+        return request.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+    }
+
+    /**
+     * Returns true iff the given request is exactly the given whole message.
+     */
+    private static boolean matches(ByteBuffer request, byte[] wholeMessage) {
+        return request.duplicate().position(0).equals(ByteBuffer.wrap(wholeMessage));
+    }
+}
@@ -10,13 +10,8 @@ import de.mossgrabers.framework.daw.IHost;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.CharBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 
 /**
@@ -25,9 +20,10 @@ import java.util.concurrent.Executors;
 public class MacOSNIHostInterop extends AbstractNIHostInterop {
 
     /**
-     * Executor that handles notifications off of the main callback thread.
+     * How long we'll go without a single notification before assuming the agent has stopped sending them, and re-subscribing.
      */
-    private final ExecutorService notificationExecutor = Executors.newCachedThreadPool();
+    private static final double NOTIFICATION_STALL_SECONDS = 30;
+
     /**
      * The port we'll use to send requests to the NIHostIntegrationAgent.
      */
@@ -45,9 +41,13 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
      */
     private String notificationPortName;
     /**
-     * Count how many times the other side has failed to send us a notification; useful for detecting stalls
+     * The run loop our notification thread waits in; or null if it hasn't started waiting yet.
+     */
+    private volatile CFRunLoop notificationRunLoop;
+    /**
+     * The number of notifications our callback has received; used to detect stalls.
      */
-    private int notificationTimeoutCount;
+    private volatile long notificationsReceived;
 
     /**
      * Creates a new interface for connecting to the NIHostIntegrationAgent.
@@ -91,63 +91,19 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
         synchronized (this.commsLock) {
             CoreFoundationLibrary cfl = CoreFoundationLibrary.INSTANCE;
 
-            byte[] deviceSerial = this.deviceSerialBytes.array();
-
             // Create a bootstrap port connection, which we'll use to send a handshake.
             CFMessagePort bootstrapPort = this.openPortByName(NI_BOOTSTRAP_PORT, false);
 
-            // Build the message we'll use.
-            byte[] rawMessage = new byte[NI_MSG_HANDSHAKE_LENGTH + deviceSerial.length + 1];
-            ByteBuffer messageBuffer = ByteBuffer.wrap(rawMessage);
-            messageBuffer.order(ByteOrder.LITTLE_ENDIAN);
-
-            if (deviceSerial.length == 0) {
-                messageBuffer.putInt(NI_MSG_HANDSHAKE);           // Connect to the server, but not to specific hardware.
-            } else {
-                messageBuffer.putInt(NI_MSG_CONNECT);             // Connect to a port for a specific piece of hardware.
-            }
-            //
-            messageBuffer.putInt(this.deviceId);                  // The device type.
-            if (this.isKontrol) {
-                messageBuffer.putInt(NI_SOFTWARE_ID_KONTROL);     // The "NI software" that's connecting is KK.
-            } else {
-                messageBuffer.putInt(NI_SOFTWARE_ID_MASCHINE2);   // The "NI software" that's connecting is Maschine.
-            }
-            messageBuffer.putInt(NI_HEADER_CONSTANT);             // Unknown. Possibly protocol version?
-            messageBuffer.putInt(deviceSerial.length + 1);        // The length of the serial number that follows, plus a NULL.
-
-            if (deviceSerial.length != 0) {
-                messageBuffer.put(deviceSerial);                    // The serial number of the device we want to control, if any.
-                messageBuffer.put((byte) 0);                          // A null terminator for after the device serial.
-            }
+            // Perform our handshake, identifying as whichever NI software normally drives this device...
+            byte[] rawMessage = this.buildHandshakeMessage(this.isKontrol ? NI_SOFTWARE_ID_KONTROL : NI_SOFTWARE_ID_MASCHINE2);
+            this.recordRequest(rawMessage);
+            byte[] rawResponse = this.sendOnMachPort(bootstrapPort, rawMessage, rawMessage.length, true);
+            this.recordResponse(rawResponse);
 
-            // ... and perform our exchange.
-            byte[] rawResponse = this.sendOnMachPort(bootstrapPort, rawMessage, true);
-            if (rawResponse.length == 0) {
-                throw new IOException("NIHostIntegrationAgent did not reply. Failing out.");
-            }
-
-            // Interpret our response a variety of ways...
-            ByteBuffer response = ByteBuffer.wrap(rawResponse);
-            response.order(ByteOrder.LITTLE_ENDIAN);
-            if (rawResponse.length == 4) {
-                throw new IOException("NIHostIntegrationAgent reports an error. Failing out.");
-            }
-
-            // ... so we can extract our target data.
-            int checkVal = response.getInt();
-            int requestPortLength = response.getInt();
-
-            if (checkVal != NI_SUCCESS) {
-                throw new IOException("Failed to communicate!");
-            }
-
-            // Finally, extract the core port name we need...
-            CharBuffer responseChars = StandardCharsets.US_ASCII.decode(response);
-            String requestPortName = responseChars.subSequence(0, requestPortLength - 1).toString();
-
-            int notificationPortLength = response.getInt(8 + requestPortLength);
-            this.notificationPortName = responseChars.subSequence(requestPortLength + 4, requestPortLength + 4 + notificationPortLength - 1).toString();
+            // ... extract the names of the ports we've been given...
+            String[] portNames = this.parseHandshakeResponse(rawResponse);
+            String requestPortName = portNames[0];
+            this.notificationPortName = portNames[1];
 
             // ... open our ports...
             this.requestPort = this.openPortByName(requestPortName, false);
@@ -179,9 +135,24 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
      * {@inheritDoc}
      */
     @Override
-    public void pushRequest(byte[] data) {
+    protected void transmitRequest(byte[] data, int length) {
+        synchronized (this.commsLock) {
+            this.sendOnMachPort(this.requestPort, data, length, false);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void transmitRequest(ByteBuffer data, int length) {
+        CoreFoundationLibrary cfl = CoreFoundationLibrary.INSTANCE;
+
         synchronized (this.commsLock) {
-            this.sendOnMachPort(this.requestPort, data, false);
+            // Wrap our buffer rather than copying it; using the null allocator ensures CoreFoundation never frees it.
+            CFDataRef dataToSend = cfl.CFDataCreateWithBytesNoCopy(CoreFoundationLibrary.kCFAllocatorDefault, Native.getDirectBufferPointer(data), length, CoreFoundationLibrary.kCFAllocatorNull);
+            this.sendOnMachPort(this.requestPort, dataToSend, false);
         }
     }
 
@@ -190,9 +161,9 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
      * {@inheritDoc}
      */
     @Override
-    public byte[] sendRequest(byte[] data) {
+    protected byte[] exchangeRequest(byte[] data) {
         synchronized (this.commsLock) {
-            return this.sendOnMachPort(this.requestPort, data, true);
+            return this.sendOnMachPort(this.requestPort, data, data.length, true);
         }
     }
 
@@ -205,27 +176,48 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
         CoreFoundationLibrary cfl = CoreFoundationLibrary.INSTANCE;
         CFRunLoop runLoop = cfl.CFRunLoopGetCurrent();
 
-        // If this is our first time running in this thread, attach ourselves to the main runloop.
+        // If this is our first time running in this thread, attach ourselves to its runloop.
         if (!cfl.CFRunLoopContainsSource(runLoop, this.notificationSource, CoreFoundationLibrary.kCFRunLoopCommonModes)) {
-            cfl.CFRunLoopAddSource(cfl.CFRunLoopGetCurrent(), this.notificationSource, CoreFoundationLibrary.kCFRunLoopCommonModes);
+            cfl.CFRunLoopAddSource(runLoop, this.notificationSource, CoreFoundationLibrary.kCFRunLoopCommonModes);
+        }
+
+        // Publish our runloop, so shutdown can stop it; and make sure we didn't miss a shutdown while doing so.
+        this.notificationRunLoop = runLoop;
+        if (this.isShutdown.get()) {
+            return;
         }
 
-        // Run a Grand Central Dispatch runloop for long enough to handle any potential events.
-        // We're running for one second, here -- the time we spend here doesn't precisely matter,
-        // but it does set the amount of time it may take us to shut down vs the amount of CPU time
-        // wasted popping into this thread to re-issue the runloop.
-        var status = cfl.CFRunLoopRunInMode(CoreFoundationLibrary.kCFRunLoopDefaultMode, 10, true);
+        // Stay in the runloop, handling notifications as they arrive, until we're stopped. We only come back out
+        // if we've gone a long stretch without any notifications at all, to check whether the agent has stalled.
+        long receivedBefore = this.notificationsReceived;
+        var status = cfl.CFRunLoopRunInMode(CoreFoundationLibrary.kCFRunLoopDefaultMode, NOTIFICATION_STALL_SECONDS, false);
+
         switch (status) {
-            case CoreFoundationLibrary.kCFRunLoopRunHandledSource -> this.notificationTimeoutCount = 0;
+            case CoreFoundationLibrary.kCFRunLoopRunStopped -> {
+                // We've been woken up to shut down.
+            }
             case CoreFoundationLibrary.kCFRunLoopTimedOut -> {
-                this.notificationTimeoutCount += 1;
-                if (this.notificationTimeoutCount > 2) {
+                if (this.notificationsReceived == receivedBefore) {
+                    this.recordIdleWakeup();
                     this.debugPrint("WARNING: Messages seem to have stopped! Panic-restarting comms, if we can.");
                     this.subscribeToEvents();
-                    this.notificationTimeoutCount = 0;
                 }
             }
-            default -> this.debugPrint("Error!");
+            default -> {
+                this.recordIdleWakeup();
+                this.debugPrint("Notification runloop exited unexpectedly (%d).", status);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void wakeNotificationWaiter() {
+        CFRunLoop runLoop = this.notificationRunLoop;
+        if (runLoop != null) {
+            CoreFoundationLibrary.INSTANCE.CFRunLoopStop(runLoop);
         }
     }
 
@@ -239,13 +231,23 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
             return null;
         }
 
-        // Delegate the raw notification back to the platform-independent code.
-        final byte[] notification = this.convertCFData(data, false);
+        // Copy the raw notification straight from the CFData into our notification queue...
+        CoreFoundationLibrary cfl = CoreFoundationLibrary.INSTANCE;
+        this.notificationsReceived += 1;
+        int length = cfl.CFDataGetLength(data);
+
+        byte[] buffer = this.claimNotificationBuffer(length);
+        if (buffer == null) {
+            return null;
+        }
 
-        if (this.notificationExecutor != null) {
-            this.notificationExecutor.submit(() -> this.handleNotification(notification));
+        if (length > 0) {
+            cfl.CFDataGetBytePtr(data).read(0, buffer, 0, length);
         }
 
+        // ... and delegate it back to the platform-independent code.
+        this.publishNotification(length);
+
         return null;
     }
 
@@ -256,9 +258,18 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
     /**
      * Sends simple data on a mach port, and receive the response.
      */
-    private byte[] sendOnMachPort(CFMessagePort port, byte[] message, boolean collectResponse) {
+    private byte[] sendOnMachPort(CFMessagePort port, byte[] message, int length, boolean collectResponse) {
+        CoreFoundationLibrary cfl = CoreFoundationLibrary.INSTANCE;
+        CFDataRef dataToSend = cfl.CFDataCreate(CoreFoundationLibrary.kCFAllocatorDefault, message, length);
+
+        return this.sendOnMachPort(port, dataToSend, collectResponse);
+    }
+
+    /**
+     * Sends a CFData on a mach port, and receive the response. Releases the CFData once it's been sent.
+     */
+    private byte[] sendOnMachPort(CFMessagePort port, CFDataRef dataToSend, boolean collectResponse) {
         CoreFoundationLibrary cfl = CoreFoundationLibrary.INSTANCE;
-        CFDataRef dataToSend = cfl.CFDataCreate(CoreFoundationLibrary.kCFAllocatorDefault, message, message.length);
 
         try {
             // Send the relevant data, and wait for a response.
@@ -317,10 +328,13 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
         int kCFStringEncodingASCII = 0x0600;
         int kCFStringEncodingUTF8 = 0x08000100;
 
+        int kCFRunLoopRunFinished = 1;
+        int kCFRunLoopRunStopped = 2;
         int kCFRunLoopTimedOut = 3;
         int kCFRunLoopRunHandledSource = 4;
 
         public static CFAllocatorRef kCFAllocatorDefault = new CFAllocator_global(NINSTANCE.getGlobalVariableAddress("kCFAllocatorDefault")).value;
+        public static CFAllocatorRef kCFAllocatorNull = new CFAllocator_global(NINSTANCE.getGlobalVariableAddress("kCFAllocatorNull")).value;
         public static CFStringRef kCFRunLoopDefaultMode = new CFStringRef_global(NINSTANCE.getGlobalVariableAddress("kCFRunLoopDefaultMode")).value;
         public static CFStringRef kCFRunLoopCommonModes = new CFStringRef_global(NINSTANCE.getGlobalVariableAddress("kCFRunLoopCommonModes")).value;
 
@@ -331,6 +345,8 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
 
         CFDataRef CFDataCreate(CFAllocatorRef allocator, final byte[] data, final int length);
 
+        CFDataRef CFDataCreateWithBytesNoCopy(CFAllocatorRef allocator, final Pointer bytes, final long length, CFAllocatorRef bytesDeallocator);
+
         Pointer CFDataGetBytePtr(CFDataRef data);
 
         int CFDataGetLength(CFDataRef data);
@@ -359,6 +375,8 @@ public class MacOSNIHostInterop extends AbstractNIHostInterop {
 
         boolean CFRunLoopContainsSource(CFRunLoop runLoop, CFRunLoopSource source, CFStringRef modeName);
 
+        void CFRunLoopStop(CFRunLoop runLoop);
+
         public interface CFMessagePortCallback extends Callback {
             CFDataRef invoke(CFMessagePort local, int messageId, CFDataRef data, Pointer info);
         }
@@ -0,0 +1,143 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ * Shares connections to the NIHostIntegrationAgent across everything in this process that talks to a given device.
+ *
+ * Each (device ID, serial) pair gets a single connection -- and so a single set of ports, a single notification
+ * thread, and a single request writer -- no matter how many surfaces and displays use it. Connections are reference
+ * counted; the last user to release a connection shuts it down.
+ *
+ * @author Kate Temkin
+ */
+class NIConnectionPool {
+
+    /**
+     * Identifies a single connection: a device type, and either a device serial or the empty string for a global connection.
+     */
+    record Key(int deviceId, String serial) {
+    }
+
+    /**
+     * Creates a new connection, on behalf of the pool.
+     */
+    @FunctionalInterface
+    interface Connector {
+        /**
+         * @return The new connection; or null if connections aren't possible on this platform.
+         */
+        AbstractNIHostInterop connect() throws IOException;
+    }
+
+    /**
+     * Each connection we know of; including those that are still coming up. Completed with null if a connection isn't possible.
+     */
+    private final ConcurrentHashMap<Key, CompletableFuture<AbstractNIHostInterop>> connections = new ConcurrentHashMap<>();
+
+
+    /**
+     * Fetches a reference to the connection for the given key; creating the connection if there isn't one.
+     * Each successful call must be balanced by a call to release().
+     *
+     * @param key       The connection to fetch.
+     * @param connector Creates the connection, if we need a new one.
+     * @return The connection; or null if connections aren't possible on this platform.
+     */
+    AbstractNIHostInterop acquire(Key key, Connector connector) throws IOException {
+        while (true) {
+            final CompletableFuture<AbstractNIHostInterop> created = new CompletableFuture<>();
+            final CompletableFuture<AbstractNIHostInterop> existing = this.connections.putIfAbsent(key, created);
+
+            // If nobody has this connection yet, it's up to us to create it.
+            if (existing == null) {
+                return this.connect(key, created, connector);
+            }
+
+            // Otherwise, wait for whoever's creating it, and take a reference -- unless the connection is already
+            // on its way out, in which case we'll get it out of the way and try again.
+            final AbstractNIHostInterop interop = awaitConnection(existing);
+            if ((interop == null) || interop.retain()) {
+                return interop;
+            }
+
+            this.connections.remove(key, existing);
+        }
+    }
+
+    /**
+     * Returns true iff we have a connection for the given key, or are in the process of creating one.
+     */
+    boolean contains(Key key) {
+        return this.connections.containsKey(key);
+    }
+
+    /**
+     * Drops a reference to a connection. If it was the last one, the connection is removed from the pool and shut down.
+     *
+     * @param key     The key the connection was acquired with.
+     * @param interop The connection being released.
+     */
+    void release(Key key, AbstractNIHostInterop interop) {
+        if (!interop.releaseReference()) {
+            return;
+        }
+
+        final CompletableFuture<AbstractNIHostInterop> entry = this.connections.get(key);
+        if ((entry != null) && (entry.getNow(null) == interop)) {
+            this.connections.remove(key, entry);
+        }
+
+        interop.shutdown();
+    }
+
+    /**
+     * Creates the connection for a key we've just claimed, and publishes it to anyone waiting on it.
+     */
+    private AbstractNIHostInterop connect(Key key, CompletableFuture<AbstractNIHostInterop> entry, Connector connector) throws IOException {
+        final AbstractNIHostInterop interop;
+
+        try {
+            interop = connector.connect();
+        } catch (IOException | RuntimeException ex) {
+            // Don't leave a failed connection in the pool; the next caller should get a fresh attempt.
+            this.connections.remove(key, entry);
+            entry.completeExceptionally(ex);
+            throw ex;
+        }
+
+        // If connections aren't possible here, don't keep the entry around.
+        if (interop == null) {
+            this.connections.remove(key, entry);
+        }
+
+        entry.complete(interop);
+        return interop;
+    }
+
+    /**
+     * Waits for a connection being created by another caller.
+     */
+    private static AbstractNIHostInterop awaitConnection(CompletableFuture<AbstractNIHostInterop> entry) throws IOException {
+        try {
+            return entry.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an NIHostIntegrationAgent connection.");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+
+            throw new IOException("Failed to connect to the NIHostIntegrationAgent.", ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Keeps track of the NI devices the NIHostIntegrationAgent has told us about, by device type.
+ *
+ * Rather than waiting a fixed time for the agent to report connected devices, callers can wait on the
+ * first device-state notification for a device type; which resumes them as soon as it arrives.
+ *
+ * @author Kate Temkin
+ */
+class NIDeviceRegistry {
+
+    /**
+     * The state we keep for each device type.
+     */
+    private final Map<Integer, DeviceType> deviceTypes = new HashMap<>();
+
+
+    /**
+     * Notes that we've asked the agent which devices of the given type are connected.
+     * Used as the start time when reporting how long discovery took.
+     *
+     * @param deviceId The NI device identifier for the device type.
+     */
+    synchronized void markDiscoveryStarted(int deviceId) {
+        final DeviceType deviceType = this.getDeviceType(deviceId);
+        if (deviceType.discoveryStarted == 0) {
+            deviceType.discoveryStarted = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records that a device has been connected, and wakes anyone waiting on its device type.
+     *
+     * @param deviceId The NI device identifier for the device type.
+     * @param serial   The device's serial.
+     */
+    void addDevice(int deviceId, String serial) {
+        final CompletableFuture<Void> reported;
+
+        synchronized (this) {
+            final DeviceType deviceType = this.getDeviceType(deviceId);
+            deviceType.serials.add(serial);
+            reported = deviceType.markReported();
+        }
+
+        reported.complete(null);
+    }
+
+    /**
+     * Records that a device has been disconnected.
+     *
+     * @param deviceId The NI device identifier for the device type.
+     * @param serial   The device's serial.
+     */
+    void removeDevice(int deviceId, String serial) {
+        final CompletableFuture<Void> reported;
+
+        synchronized (this) {
+            final DeviceType deviceType = this.getDeviceType(deviceId);
+            deviceType.serials.remove(serial);
+            reported = deviceType.markReported();
+        }
+
+        reported.complete(null);
+    }
+
+    /**
+     * If one and only one device of a given type is present, returns its serial number.
+     * If the agent hasn't yet reported on that device type, waits for its first report, up to a deadline.
+     *
+     * @param deviceId The NI device identifier for the device type.
+     * @param timeout  The longest we'll wait for the agent's first report, in milliseconds.
+     * @return The device's serial; or null if there isn't exactly one device of the given type.
+     */
+    String getSingleDeviceSerial(int deviceId, long timeout) {
+        final CompletableFuture<Void> reported;
+
+        synchronized (this) {
+            reported = this.getDeviceType(deviceId).reported;
+        }
+
+        try {
+            reported.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException | TimeoutException ex) {
+            // We'll just work with whatever we know so far.
+        }
+
+        synchronized (this) {
+            final Set<String> serials = this.getDeviceType(deviceId).serials;
+            return (serials.size() == 1) ? serials.iterator().next() : null;
+        }
+    }
+
+    /**
+     * @param deviceId The NI device identifier for the device type.
+     * @return The time between asking the agent for devices of the given type and its first report,
+     * in milliseconds; or -1 if it hasn't reported yet.
+     */
+    synchronized long getDiscoveryTime(int deviceId) {
+        final DeviceType deviceType = this.getDeviceType(deviceId);
+        if ((deviceType.discoveryStarted == 0) || (deviceType.discoveryFinished == 0)) {
+            return -1;
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(deviceType.discoveryFinished - deviceType.discoveryStarted);
+    }
+
+    /**
+     * Fetches the state for a given device type, creating it if necessary. Must be called with our lock held.
+     */
+    private DeviceType getDeviceType(int deviceId) {
+        return this.deviceTypes.computeIfAbsent(deviceId, k -> new DeviceType());
+    }
+
+
+    /**
+     * What we know about a single device type.
+     */
+    private static class DeviceType {
+
+        /**
+         * The serials of each connected device of this type.
+         */
+        final Set<String> serials = new LinkedHashSet<>();
+
+        /**
+         * Completed once the agent first reports on this device type.
+         */
+        final CompletableFuture<Void> reported = new CompletableFuture<>();
+
+        /**
+         * The time at which we asked the agent about this device type; or 0 if we haven't.
+         */
+        long discoveryStarted;
+
+        /**
+         * The time at which the agent first reported on this device type; or 0 if it hasn't.
+         */
+        long discoveryFinished;
+
+        /**
+         * Records the agent's first report, if this is it.
+         *
+         * @return The future to be completed -- outside of any lock -- to wake any waiters.
+         */
+        CompletableFuture<Void> markReported() {
+            if (this.discoveryFinished == 0) {
+                this.discoveryFinished = System.nanoTime();
+            }
+
+            return this.reported;
+        }
+    }
+}
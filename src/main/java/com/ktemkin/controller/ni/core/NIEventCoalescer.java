@@ -0,0 +1,415 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import de.mossgrabers.framework.utils.ButtonEvent;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+
+/**
+ * Merges redundant knob and pad-pressure events between host ticks, so a fast encoder spin or a held pad
+ * results in a single host task, rather than one per sample.
+ *
+ * Events are kept in arrival order. A knob event is merged into that knob's pending event, if it turns the
+ * same way; its raw value is kept alongside the pending event's, since the handler's decoding of raw values
+ * isn't linear, and each turn has to be decoded on its own before the steps are added up. A pad's aftertouch
+ * replaces that pad's pending aftertouch. Note-on and note-off transitions are never merged, and always reach the event handler in the
+ * order they arrived.
+ *
+ * Button and main encoder events are carried through the same batches, unmerged, so that all input from a
+ * device stays in order; and so no event, of any kind, needs its own task object. Nothing is merged across
+ * them, since they can change how later input is handled: a turn made while shift is held, say, decodes
+ * differently than one made before shift was pressed.
+ *
+ * @author Kate Temkin
+ */
+class NIEventCoalescer {
+
+    /**
+     * The number of events each batch can hold before it has to grow.
+     */
+    private static final int INITIAL_BATCH_CAPACITY = 64;
+    /**
+     * The number of knobs and pads whose pending events we track. Higher numbers are passed through unmerged.
+     */
+    private static final int MAX_TRACKED_CONTROLS = 64;
+    /**
+     * Every possible button event, indexed by ordinal; cached, since values() copies on every call.
+     */
+    private static final ButtonEvent[] BUTTON_EVENTS = ButtonEvent.values();
+
+    /**
+     * Event types, as stored in our batches.
+     */
+    private static final int EVENT_KNOB = 0;
+    private static final int EVENT_PAD_TRANSITION = 1;
+    private static final int EVENT_PAD_AFTERTOUCH = 2;
+    private static final int EVENT_BUTTON = 3;
+    private static final int EVENT_MAIN_ENCODER = 4;
+
+    /**
+     * The handler that receives our merged events.
+     */
+    private final INIEventHandler eventHandler;
+    /**
+     * Schedules a task to be run on the host's thread.
+     */
+    private final Consumer<Runnable> scheduler;
+    /**
+     * The single task we schedule to drain our pending events.
+     */
+    private final Runnable drainTask = this::drain;
+    /**
+     * Protects our pending batch, and the indices that point into it.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The batch events are currently being added to.
+     */
+    private Batch pending = new Batch();
+    /**
+     * The batch currently being delivered. Swapped with the pending batch on each drain, so neither is reallocated.
+     */
+    private Batch delivering = new Batch();
+    /**
+     * For each knob, the index of its event in the pending batch; or -1 if it has none.
+     */
+    private final int[] pendingKnobEvent = new int[MAX_TRACKED_CONTROLS];
+    /**
+     * For each pad, the index of its aftertouch event in the pending batch; or -1 if it has none.
+     */
+    private final int[] pendingPadAftertouch = new int[MAX_TRACKED_CONTROLS];
+    /**
+     * For each pad, whether the most recent event we've seen left it held down.
+     */
+    private final boolean[] isPadDown = new boolean[MAX_TRACKED_CONTROLS];
+
+    /**
+     * The number of knob events folded into an earlier event.
+     */
+    private final AtomicLong knobEventsMerged = new AtomicLong();
+    /**
+     * The number of pad pressure events replaced by a later one.
+     */
+    private final AtomicLong padEventsMerged = new AtomicLong();
+    /**
+     * The number of drain tasks run on the host's thread.
+     */
+    private final AtomicLong drainsRun = new AtomicLong();
+
+
+    /**
+     * Creates a new coalescer.
+     *
+     * @param eventHandler The handler that receives merged events.
+     * @param scheduler    Schedules a task to be run on the host's thread.
+     */
+    NIEventCoalescer(INIEventHandler eventHandler, Consumer<Runnable> scheduler) {
+        this.eventHandler = eventHandler;
+        this.scheduler = scheduler;
+
+        Arrays.fill(this.pendingKnobEvent, -1);
+        Arrays.fill(this.pendingPadAftertouch, -1);
+    }
+
+    /**
+     * Adds a knob rotation event.
+     *
+     * @param knob     The NI knob number.
+     * @param rawValue The raw encoder value, as reported by the NIHostIntegrationAgent.
+     */
+    void addKnobEvent(int knob, int rawValue) {
+        boolean isFirst;
+
+        synchronized (this.lock) {
+            final Batch batch = this.pending;
+            isFirst = (batch.size == 0);
+
+            // If this knob already has an event waiting, and it's turning the same way, fold this turn into it.
+            // We keep the turn's raw value, rather than a sum, so it can be decoded on its own when it's delivered.
+            final int existing = isTracked(knob) ? this.pendingKnobEvent[knob] : -1;
+            if ((existing >= 0) && ((batch.values[existing] < 0) == (rawValue < 0))) {
+                batch.addTurn(existing, rawValue);
+                this.knobEventsMerged.incrementAndGet();
+                return;
+            }
+
+            final int index = batch.add(EVENT_KNOB, knob, rawValue);
+            batch.addTurn(index, rawValue);
+            if (isTracked(knob)) {
+                this.pendingKnobEvent[knob] = index;
+            }
+        }
+
+        if (isFirst) {
+            this.scheduler.accept(this.drainTask);
+        }
+    }
+
+    /**
+     * Adds a pad pressure event.
+     *
+     * @param pad      The NI pad number.
+     * @param pressure The new pressure; or 0 if the pad's been released.
+     */
+    void addPadEvent(int pad, long pressure) {
+        boolean isFirst;
+
+        synchronized (this.lock) {
+            final Batch batch = this.pending;
+            isFirst = (batch.size == 0);
+
+            if (!isTracked(pad)) {
+                batch.add(EVENT_PAD_TRANSITION, pad, pressure);
+            }
+
+            // If the pad was already down and is still down, this is aftertouch; only the latest value matters.
+            else if ((pressure != 0) && this.isPadDown[pad]) {
+                final int existing = this.pendingPadAftertouch[pad];
+                if (existing >= 0) {
+                    batch.values[existing] = pressure;
+                    this.padEventsMerged.incrementAndGet();
+                    return;
+                }
+
+                this.pendingPadAftertouch[pad] = batch.add(EVENT_PAD_AFTERTOUCH, pad, pressure);
+            }
+
+            // Otherwise, this is a note-on or note-off, which must be delivered as-is.
+            else {
+                // Any aftertouch still waiting from before a release is moot; drop it rather than send it.
+                final int existing = this.pendingPadAftertouch[pad];
+                if ((pressure == 0) && (existing >= 0)) {
+                    batch.types[existing] = -1;
+                    this.padEventsMerged.incrementAndGet();
+                }
+
+                this.pendingPadAftertouch[pad] = -1;
+                this.isPadDown[pad] = (pressure != 0);
+                batch.add(EVENT_PAD_TRANSITION, pad, pressure);
+            }
+        }
+
+        if (isFirst) {
+            this.scheduler.accept(this.drainTask);
+        }
+    }
+
+    /**
+     * Adds a button press or release event. Never merged.
+     *
+     * @param button The NI button number.
+     * @param event  The button event that occurred.
+     */
+    void addButtonEvent(int button, ButtonEvent event) {
+        this.addUnmergedEvent(EVENT_BUTTON, button, event.ordinal());
+    }
+
+    /**
+     * Adds a main encoder rotation event. Never merged.
+     *
+     * @param value The signed encoder value.
+     */
+    void addMainEncoderEvent(long value) {
+        this.addUnmergedEvent(EVENT_MAIN_ENCODER, 0, value);
+    }
+
+    /**
+     * Adds an event that's always delivered exactly as it arrived.
+     */
+    private void addUnmergedEvent(int type, int id, long value) {
+        boolean isFirst;
+
+        synchronized (this.lock) {
+            isFirst = (this.pending.size == 0);
+            this.pending.add(type, id, value);
+
+            // Later knob turns and aftertouch have to be delivered after this event; so they can't merge into earlier ones.
+            Arrays.fill(this.pendingKnobEvent, -1);
+            Arrays.fill(this.pendingPadAftertouch, -1);
+        }
+
+        if (isFirst) {
+            this.scheduler.accept(this.drainTask);
+        }
+    }
+
+    /**
+     * Delivers every pending event to our handler. Runs on the host's thread.
+     */
+    private void drain() {
+        final Batch batch;
+
+        // Swap our batches, so new events can be added while we deliver these.
+        synchronized (this.lock) {
+            batch = this.pending;
+            this.pending = this.delivering;
+            this.delivering = batch;
+
+            Arrays.fill(this.pendingKnobEvent, -1);
+            Arrays.fill(this.pendingPadAftertouch, -1);
+        }
+
+        this.drainsRun.incrementAndGet();
+
+        for (int i = 0; i < batch.size; ++i) {
+            final int id = batch.ids[i];
+
+            switch (batch.types[i]) {
+                case EVENT_KNOB -> this.deliverKnobEvent(batch, i);
+                case EVENT_PAD_TRANSITION, EVENT_PAD_AFTERTOUCH -> this.eventHandler.handlePadEvent(id, batch.values[i]);
+                case EVENT_BUTTON -> this.eventHandler.handleButtonEvent(id, BUTTON_EVENTS[(int) batch.values[i]]);
+                case EVENT_MAIN_ENCODER -> this.eventHandler.handleMainEncoderEvent(batch.values[i]);
+                default -> {
+                    // Dropped while it was waiting.
+                }
+            }
+        }
+
+        batch.size = 0;
+        batch.turnCount = 0;
+    }
+
+    /**
+     * Decodes each of a knob event's turns, in the order they arrived, and delivers their steps as one event.
+     * Decoding happens here, on the host's thread, so it sees the state left by every event delivered before it.
+     */
+    private void deliverKnobEvent(Batch batch, int index) {
+        final int knob = batch.ids[index];
+
+        long steps = 0;
+        for (int turn = batch.firstTurns[index]; turn >= 0; turn = batch.nextTurns[turn]) {
+            steps += this.eventHandler.decodeKnobTurn(knob, batch.turnValues[turn]);
+        }
+
+        this.eventHandler.handleKnobEvent(knob, steps, batch.turns[index]);
+    }
+
+    /**
+     * @return The number of knob events folded into an earlier event.
+     */
+    long getKnobEventsMerged() {
+        return this.knobEventsMerged.get();
+    }
+
+    /**
+     * @return The number of pad pressure events replaced by a later one.
+     */
+    long getPadEventsMerged() {
+        return this.padEventsMerged.get();
+    }
+
+    /**
+     * @return The number of drain tasks that have run on the host's thread.
+     */
+    long getDrainsRun() {
+        return this.drainsRun.get();
+    }
+
+    /**
+     * Returns true iff we track pending events for the given knob or pad number.
+     */
+    private static boolean isTracked(int id) {
+        return (id >= 0) && (id < MAX_TRACKED_CONTROLS);
+    }
+
+    /**
+     * An ordered list of events, stored as parallel arrays so adding an event doesn't allocate.
+     */
+    private static class Batch {
+
+        /**
+         * The type of each event; or -1 if it was dropped while waiting.
+         */
+        int[] types = new int[INITIAL_BATCH_CAPACITY];
+        /**
+         * The knob or pad number each event applies to.
+         */
+        int[] ids = new int[INITIAL_BATCH_CAPACITY];
+        /**
+         * The raw value of a knob event's first turn, or the pad pressure, for each event.
+         */
+        long[] values = new long[INITIAL_BATCH_CAPACITY];
+        /**
+         * For knob events, the number of turns the event represents.
+         */
+        int[] turns = new int[INITIAL_BATCH_CAPACITY];
+        /**
+         * For knob events, the index of the event's first and last turns; or -1 if it has none.
+         */
+        int[] firstTurns = new int[INITIAL_BATCH_CAPACITY];
+        int[] lastTurns = new int[INITIAL_BATCH_CAPACITY];
+        /**
+         * The number of events in the batch.
+         */
+        int size;
+
+        /**
+         * The raw value of each knob turn in the batch.
+         */
+        int[] turnValues = new int[INITIAL_BATCH_CAPACITY];
+        /**
+         * For each knob turn, the index of the next turn belonging to the same event; or -1 if it's the last.
+         */
+        int[] nextTurns = new int[INITIAL_BATCH_CAPACITY];
+        /**
+         * The number of knob turns in the batch.
+         */
+        int turnCount;
+
+        /**
+         * Appends an event, growing the batch if needed.
+         *
+         * @return The index of the new event.
+         */
+        int add(int type, int id, long value) {
+            if (this.size == this.types.length) {
+                final int capacity = this.types.length * 2;
+                this.types = Arrays.copyOf(this.types, capacity);
+                this.ids = Arrays.copyOf(this.ids, capacity);
+                this.values = Arrays.copyOf(this.values, capacity);
+                this.turns = Arrays.copyOf(this.turns, capacity);
+                this.firstTurns = Arrays.copyOf(this.firstTurns, capacity);
+                this.lastTurns = Arrays.copyOf(this.lastTurns, capacity);
+            }
+
+            this.types[this.size] = type;
+            this.ids[this.size] = id;
+            this.values[this.size] = value;
+            this.turns[this.size] = 0;
+            this.firstTurns[this.size] = -1;
+            this.lastTurns[this.size] = -1;
+
+            return this.size++;
+        }
+
+        /**
+         * Appends a knob turn to the given knob event, growing the batch if needed.
+         */
+        void addTurn(int index, int rawValue) {
+            if (this.turnCount == this.turnValues.length) {
+                final int capacity = this.turnValues.length * 2;
+                this.turnValues = Arrays.copyOf(this.turnValues, capacity);
+                this.nextTurns = Arrays.copyOf(this.nextTurns, capacity);
+            }
+
+            final int turn = this.turnCount++;
+            this.turnValues[turn] = rawValue;
+            this.nextTurns[turn] = -1;
+
+            if (this.lastTurns[index] >= 0) {
+                this.nextTurns[this.lastTurns[index]] = turn;
+            } else {
+                this.firstTurns[index] = turn;
+            }
+            this.lastTurns[index] = turn;
+            this.turns[index] += 1;
+        }
+    }
+}
@@ -12,8 +12,14 @@ import de.mossgrabers.framework.graphics.IBitmap;
 import de.mossgrabers.framework.graphics.IGraphicsConfiguration;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -26,18 +32,19 @@ import java.util.concurrent.TimeUnit;
 public class NIGraphicDisplay extends AbstractGraphicDisplay {
 
     /**
-     * NI displays send a lot of redundant frames, so we can choose to skip a few.
-     * This reduces refresh rate, but saves CPU and USB bandwidth. 0 disables frameskip.
+     * The default rate at which changed frames are sent to the displays.
      */
-    private static final int FRAMESKIP = 5;
+    private static final int DEFAULT_TARGET_FPS = 30;
 
-    /** How many frames we are into the frameskip. */
-    private int currentFrame = 0;
+    /**
+     * The default minimum time between two frames sent to the displays, in milliseconds.
+     */
+    private static final int DEFAULT_MIN_FRAME_INTERVAL = 10;
 
     /**
      * The header that precedes data sent to the left display.
      */
-    private static final byte[] DISPLAY_HEADER_LEFT =
+    static final byte[] DISPLAY_HEADER_LEFT =
             {
                     (byte) 0x44, // Command ('Dsd')
                     (byte) 0x73,
@@ -94,7 +101,7 @@ public class NIGraphicDisplay extends AbstractGraphicDisplay {
     /**
      * The header that precedes data sent to the right display.
      */
-    private static final byte[] DISPLAY_HEADER_RIGHT =
+    static final byte[] DISPLAY_HEADER_RIGHT =
             {
                     (byte) 0x44, // Command ('Dsd')
                     (byte) 0x73,
@@ -146,7 +153,7 @@ public class NIGraphicDisplay extends AbstractGraphicDisplay {
                     (byte) 0xFF, // Half the image size in _pixels_, MSB
                     (byte) 0x00, // Half the image size in _pixels_, LSB
             };
-    private static final byte[] DISPLAY_FOOTER =
+    static final byte[] DISPLAY_FOOTER =
             {
                     (byte) 0x03, // ???
                     (byte) 0x00,
@@ -158,12 +165,37 @@ public class NIGraphicDisplay extends AbstractGraphicDisplay {
                     (byte) 0x00,
                     (byte) 0x00,
             };
+    /**
+     * The width of each of the physical displays, in pixels.
+     */
+    static final int SCREEN_WIDTH = 480;
+    /**
+     * The height of each of the physical displays, in pixels.
+     */
+    static final int SCREEN_HEIGHT = 272;
     /**
      * The size of the display content. 2Bpp on a 480 * 272 display.
      */
-    private static final int DISPLAY_DATA_SZ = 480 * 272 * 2;
+    private static final int DISPLAY_DATA_SZ = SCREEN_WIDTH * SCREEN_HEIGHT * 2;
     private static final int DISPLAY_PACKET_SIZE = DISPLAY_HEADER_LEFT.length + DISPLAY_DATA_SZ + DISPLAY_FOOTER.length;
 
+    /**
+     * Offset of the little-endian "size of the data to follow" field in our headers.
+     */
+    private static final int HEADER_SIZE_OFFSET = 16;
+    /**
+     * The value of the size field, minus the size of the pixel data; e.g. 0x3fc1c for a full update.
+     */
+    private static final int HEADER_SIZE_OVERHEAD = 0x0003fc1c - DISPLAY_DATA_SZ;
+    /**
+     * Offset of the big-endian X position, Y position, width and height fields in our headers.
+     */
+    private static final int HEADER_REGION_OFFSET = 28;
+    /**
+     * Offset of the big-endian, 24-bit "half the image size in pixels" field in our headers.
+     */
+    private static final int HEADER_PIXEL_PAIRS_OFFSET = 37;
+
     //
     // Display constants.
     //
@@ -172,26 +204,76 @@ public class NIGraphicDisplay extends AbstractGraphicDisplay {
      * Executor used to update screen data in the background.
      */
     private final ScheduledExecutorService executor;
+    /**
+     * Worker that encodes the left display, while the rendering thread encodes the right one.
+     * Only created once we have a connection to send the encoded frames over.
+     */
+    private final ExecutorService encodeExecutor;
     /**
      * Our connection to the Native Instruments host integration service.
      */
     private final AbstractNIHostInterop niConnection;
     /**
-     * Memory that stores packets to be issued to the left display.
+     * True iff we fetched our connection ourselves, and so must release it when we shut down.
+     */
+    private final boolean ownsConnection;
+    /**
+     * The state of the left display.
      */
-    private final byte[] byteStoreLeft = new byte[DISPLAY_PACKET_SIZE];
+    private final Screen leftScreen;
     /**
-     * Memory that stores packets to be issued to the left display.
+     * The state of the right display.
      */
-    private final byte[] byteStoreRight = new byte[DISPLAY_PACKET_SIZE];
+    private final Screen rightScreen;
     /**
      * Lock that ensures we don't render into the screen while it's being sent.
      */
     private final Object screenBufferUpdateLock = new Object();
     /**
-     * True iff the display is currently running.
+     * True once the display has been shut down.
+     */
+    private volatile boolean isShutdown = false;
+
+    /**
+     * The minimum time between two frames sent to the displays, in nanoseconds.
+     */
+    private volatile long frameInterval = computeFrameInterval(DEFAULT_TARGET_FPS, DEFAULT_MIN_FRAME_INTERVAL);
+
+    /**
+     * True iff a send is already scheduled on our executor; it'll pick up the newest content when it runs.
+     */
+    private boolean isSendScheduled = false;
+
+    /**
+     * The time at which the last frame was sent, in nanoseconds.
+     */
+    private long lastSendTime = System.nanoTime();
+
+    /** Statistics: frames that were sent to the displays. */
+    private long framesSent = 0;
+
+    /** Statistics: frames that were dropped because they were identical to the content already queued. */
+    private long framesSkipped = 0;
+
+    /** Statistics: frames that were replaced by a newer frame before their scheduled send. */
+    private long framesCoalesced = 0;
+
+    /** Statistics: screens that weren't pushed along with a sent frame, since their content didn't change. */
+    private long screensSkipped = 0;
+
+    /** Statistics: screens that were updated by sending only their changed region. */
+    private long partialUpdates = 0;
+
+    /** Statistics: bytes that didn't need to be sent, thanks to partial updates. */
+    private long bytesAvoided = 0;
+
+    /** Statistics: sends that were postponed, since the previous frames were still waiting to go out. */
+    private long sendsDeferred = 0;
+
+    /**
+     * True iff we should send only the changed region of a screen, rather than the whole screen.
      */
-    private boolean isShutdown = false;
+    private volatile boolean isPartialUpdates = true;
 
 
     //
@@ -214,7 +296,10 @@ public class NIGraphicDisplay extends AbstractGraphicDisplay {
         // Create a connection to the NIHostIntegrationAgent, which actually performs the display scan-out.
         // Note: this NIConnection is made without an event handler; and so we try to enable MIDI.
         this.niConnection = AbstractNIHostInterop.createInterop(deviceId, deviceSerial, null, host, true);
-        this.fillInHeaderAndFooter();
+        this.ownsConnection = true;
+        this.encodeExecutor = createEncodeExecutor(this.niConnection);
+        this.leftScreen = new Screen(this.niConnection, DISPLAY_HEADER_LEFT);
+        this.rightScreen = new Screen(this.niConnection, DISPLAY_HEADER_RIGHT);
     }
 
 
@@ -232,43 +317,89 @@ public class NIGraphicDisplay extends AbstractGraphicDisplay {
 
         // Create a connection to the NIHostIntegrationAgent, which actually performs the display scanout.
         this.niConnection = interop;
-        this.fillInHeaderAndFooter();
+        this.ownsConnection = false;
+        this.encodeExecutor = createEncodeExecutor(this.niConnection);
+        this.leftScreen = new Screen(this.niConnection, DISPLAY_HEADER_LEFT);
+        this.rightScreen = new Screen(this.niConnection, DISPLAY_HEADER_RIGHT);
     }
 
     /**
-     * Converts a raw set of 32-bit RGB888 pixels into an RGB565 / RGB16 pixel.
+     * Creates the worker that encodes the left display.
      *
-     * @param red   The 32-bit red intensity.
-     * @param green The 32-bit green intensity.
-     * @param blue  The 32-bit blue intensity.
-     * @return The closes RGB565 color.
-     */
-    private static int sPixelFromRGB(final int red, final int green, final int blue) {
-        int pixel = (red & 0xF8) >> 3;
-        pixel <<= 6;
-        pixel += (green & 0xFC) >> 2;
-        pixel <<= 5;
-        pixel += (blue & 0xF8) >> 3;
-        return pixel;
+     * @param interop The connection our frames are sent over.
+     * @return The encode worker; or null if we have no connection, and so will never encode.
+     */
+    private static ExecutorService createEncodeExecutor(final AbstractNIHostInterop interop) {
+        if (interop == null) {
+            return null;
+        }
+
+        return Executors.newSingleThreadExecutor(task -> {
+            final Thread thread = new Thread(task, "NI display encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
-     * Fills in the header and footer bytes for our raw messages.
+     * Converts a 32-bit ARGB pixel (as read little-endian from our BGRA bitmap) into an RGB565 / RGB16 pixel.
+     *
+     * @param argb The 32-bit pixel; the alpha channel is ignored.
+     * @return The closest RGB565 color.
      */
-    private void fillInHeaderAndFooter() {
+    private static int sPixelFromARGB(final int argb) {
+        return ((argb >> 8) & 0xF800) | ((argb >> 5) & 0x07E0) | ((argb >> 3) & 0x001F);
+    }
 
-        // Fill in the headers at the beginning of our buffers...
-        for (int i = 0; i < DISPLAY_HEADER_LEFT.length; ++i) {
-            this.byteStoreLeft[i] = DISPLAY_HEADER_LEFT[i];
-            this.byteStoreRight[i] = DISPLAY_HEADER_RIGHT[i];
-        }
+    /**
+     * Computes the time between two frames from our pacing settings.
+     *
+     * @param targetFps        The rate at which changed frames should be sent.
+     * @param minFrameInterval The minimum time between two frames, in milliseconds.
+     * @return The time between two frames, in nanoseconds.
+     */
+    private static long computeFrameInterval(final int targetFps, final int minFrameInterval) {
+        final long targetInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, targetFps);
+        return Math.max(targetInterval, TimeUnit.MILLISECONDS.toNanos(Math.max(0, minFrameInterval)));
+    }
 
-        // ... and the footers at the end.
-        for (int i = 0; i < DISPLAY_FOOTER.length; ++i) {
-            final int footerOffset = this.byteStoreLeft.length - DISPLAY_FOOTER.length;
-            this.byteStoreLeft[footerOffset + i] = DISPLAY_FOOTER[i];
-            this.byteStoreRight[footerOffset + i] = DISPLAY_FOOTER[i];
+    /**
+     * Stores a single pixel into one of our byte stores, in the big-endian order the display expects.
+     *
+     * @param store The byte store to write into.
+     * @param index The index of the pixel's first byte.
+     * @param pixel The RGB565 pixel to store.
+     * @return True iff the stored pixel changed.
+     */
+    static boolean storePixel(final ByteBuffer store, final int index, final int pixel) {
+        final short value = (short) pixel;
+
+        if (store.getShort(index) == value) {
+            return false;
         }
+
+        store.putShort(index, value);
+        return true;
+    }
+
+    /**
+     * Configures how often frames are sent to the displays. Changed frames are sent at most at the target
+     * frame rate, and never closer together than the minimum interval; the last frame of a burst is always sent.
+     *
+     * @param targetFps        The rate at which changed frames should be sent.
+     * @param minFrameInterval The minimum time between two frames, in milliseconds.
+     */
+    public void setFramePacing(final int targetFps, final int minFrameInterval) {
+        this.frameInterval = computeFrameInterval(targetFps, minFrameInterval);
+    }
+
+    /**
+     * Configures whether only the changed regions of the displays are sent, rather than whole screens.
+     *
+     * @param isPartialUpdates True iff we should send only changed regions.
+     */
+    public void setPartialUpdates(final boolean isPartialUpdates) {
+        this.isPartialUpdates = isPartialUpdates;
     }
 
     /**
@@ -300,6 +431,29 @@ public class NIGraphicDisplay extends AbstractGraphicDisplay {
             this.host.error("Display shutdown interrupted.", ex);
             Thread.currentThread().interrupt();
         }
+
+        // Give our last frame a moment to go out; sends no longer retry, so this can't wait forever.
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                this.executor.shutdownNow();
+                if (!this.executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    this.host.error("Display send executor did not end in 5 seconds.");
+                }
+            }
+        } catch (final InterruptedException ex) {
+            this.executor.shutdownNow();
+            this.host.error("Display send executor interrupted.", ex);
+            Thread.currentThread().interrupt();
+        }
+
+        if (this.encodeExecutor != null) {
+            this.encodeExecutor.shutdown();
+        }
+
+        if (this.ownsConnection && (this.niConnection != null)) {
+            this.niConnection.release();
+        }
     }
 
     /**
@@ -312,51 +466,114 @@ public class NIGraphicDisplay extends AbstractGraphicDisplay {
             return;
         }
 
-        // Handle our frameskip.
-        this.currentFrame += 1;
-        if ((this.currentFrame % FRAMESKIP) != 0) {
-            return;
-        }
-
         // Copy to the buffer
         synchronized (this.screenBufferUpdateLock) {
+            this.leftScreen.isChanged = false;
+            this.rightScreen.isChanged = false;
+
             image.encode((imageBuffer, width, height) -> {
+                final IntBuffer pixels = imageBuffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                final int screenSplitBoundary = width / 2;
 
-                // Start filling our buffers right after the display header.
-                int leftIndex = DISPLAY_HEADER_LEFT.length;
-                int rightIndex = DISPLAY_HEADER_RIGHT.length;
+                // Encode the left display on our worker, while we encode the right one ourselves.
+                Future<?> leftEncode = null;
+                try {
+                    leftEncode = this.encodeExecutor.submit(() -> encodeScreen(this.leftScreen, pixels, width, height, 0));
+                } catch (final RejectedExecutionException ex) {
+                    encodeScreen(this.leftScreen, pixels, width, height, 0);
+                }
 
-                final int screenSplitBoundary = width / 2;
+                encodeScreen(this.rightScreen, pixels, width, height, screenSplitBoundary);
 
-                for (int y = 0; y < height; y++) {
-                    for (int x = 0; x < width; x++) {
-                        final int blue = imageBuffer.get();
-                        final int green = imageBuffer.get();
-                        final int red = imageBuffer.get();
-                        imageBuffer.get(); // Drop unused Alpha
-
-                        final int pixel = sPixelFromRGB(red, green, blue);
-
-                        // If this is on the left half of our final image, stick the pixels
-                        // in the left byte store...
-                        if (x < screenSplitBoundary) {
-                            this.byteStoreLeft[leftIndex + 1] = (byte) (pixel & 0x00FF);
-                            this.byteStoreLeft[leftIndex] = (byte) ((pixel & 0xFF00) >> 8);
-                            leftIndex += 2;
-                        }
-                        // Otherwise, we'll render into the buffer for the right screen.
-                        else {
-                            this.byteStoreRight[rightIndex + 1] = (byte) (pixel & 0x00FF);
-                            this.byteStoreRight[rightIndex] = (byte) ((pixel & 0xFF00) >> 8);
-                            rightIndex += 2;
-                        }
-                    }
+                // Our bitmap's buffer is only valid until we return, so wait for the left display to be done.
+                if (leftEncode != null) {
+                    this.awaitEncode(leftEncode);
                 }
 
                 imageBuffer.rewind();
             });
 
-            this.executor.submit(this::sendDisplayData);
+            // Each screen only needs to be sent if its own half of the frame changed -- or if we may
+            // have lost focus, in which case the device may be showing someone else's content.
+            final boolean needsFocus = this.niConnection.needsFocus();
+            if (needsFocus) {
+                this.leftScreen.markAll();
+                this.rightScreen.markAll();
+            }
+
+            // If nothing changed since the last frame we queued, there's nothing to do.
+            final boolean isChanged = this.leftScreen.isChanged || this.rightScreen.isChanged || needsFocus;
+            final boolean isPending = this.leftScreen.isPending() || this.rightScreen.isPending();
+            if (!isPending || (!isChanged && this.isSendScheduled)) {
+                this.framesSkipped++;
+                return;
+            }
+
+            // If a send is already scheduled, it'll pick up this frame instead of the one it was scheduled for.
+            if (this.isSendScheduled) {
+                this.framesCoalesced++;
+                return;
+            }
+
+            // Otherwise, schedule a send for as soon as our pacing allows.
+            final long delay = Math.max(0, this.lastSendTime + this.frameInterval - System.nanoTime());
+            this.scheduleSend(delay);
+        }
+    }
+
+    /**
+     * Encodes one half of our bitmap into the byte store of the relevant display.
+     * Only touches the given screen, so both halves can be encoded at the same time.
+     *
+     * @param screen  The display to encode into.
+     * @param pixels  The bitmap's pixels, as 32-bit ARGB values. Only read with absolute indices.
+     * @param width   The width of the whole bitmap, in pixels.
+     * @param height  The height of the whole bitmap, in pixels.
+     * @param xOffset The X position in the bitmap at which this display starts.
+     */
+    static void encodeScreen(final Screen screen, final IntBuffer pixels, final int width, final int height, final int xOffset) {
+        final int[] row = screen.rowBuffer;
+        final ByteBuffer store = screen.byteStore;
+        final int screenWidth = Math.min(width / 2, SCREEN_WIDTH);
+
+        // Start filling our buffer right after the display header.
+        int index = DISPLAY_HEADER_LEFT.length;
+
+        for (int y = 0; y < height; y++) {
+            pixels.get((y * width) + xOffset, row, 0, screenWidth);
+
+            for (int x = 0; x < screenWidth; x++) {
+                if (storePixel(store, index, sPixelFromARGB(row[x]))) {
+                    screen.markChanged(x, y);
+                }
+                index += 2;
+            }
+        }
+    }
+
+    /**
+     * Waits for the encoding of a display to finish. Keeps waiting if interrupted, since the bitmap's
+     * buffer must not be released while it's still being read.
+     *
+     * @param encode The pending encode.
+     */
+    private void awaitEncode(final Future<?> encode) {
+        boolean wasInterrupted = false;
+
+        while (true) {
+            try {
+                encode.get();
+                break;
+            } catch (final InterruptedException ex) {
+                wasInterrupted = true;
+            } catch (final ExecutionException ex) {
+                this.host.error("Display encoding failed.", ex.getCause());
+                break;
+            }
+        }
+
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -366,10 +583,313 @@ public class NIGraphicDisplay extends AbstractGraphicDisplay {
         }
 
         synchronized (this.screenBufferUpdateLock) {
-            // Update our displays.
-            this.niConnection.pushRequest(this.byteStoreLeft);
-            this.niConnection.pushRequest(this.byteStoreRight);
-            this.niConnection.requestFocus();
+            this.isSendScheduled = false;
+            if (!this.leftScreen.isPending() && !this.rightScreen.isPending()) {
+                return;
+            }
+
+            this.lastSendTime = System.nanoTime();
+            this.framesSent++;
+
+            // Update only the displays whose content changed...
+            final boolean isLeftQueued = this.sendScreen(this.leftScreen);
+            final boolean isRightQueued = this.sendScreen(this.rightScreen);
+
+            // ... and make sure they're showing our data, if we've lost focus since our last frame.
+            this.niConnection.requestFocusIfNeeded();
+
+            // If a screen couldn't be queued because its earlier frames are still going out, try again
+            // once they've had time to; the screen keeps its changed region until then.
+            if (!isLeftQueued || !isRightQueued) {
+
+                // Once we or our connection are shut down, nothing will ever drain its queue; so stop retrying.
+                if (this.isShutdown || this.niConnection.isShutdown.get()) {
+                    return;
+                }
+
+                this.sendsDeferred++;
+                this.scheduleSend(this.frameInterval);
+            }
+        }
+    }
+
+    /**
+     * Schedules a send on our executor, unless it's already been shut down.
+     * Must be called with the screenBufferUpdateLock held.
+     *
+     * @param delay The time to wait before sending, in nanoseconds.
+     */
+    private void scheduleSend(final long delay) {
+        try {
+            this.executor.schedule(this::sendDisplayData, delay, TimeUnit.NANOSECONDS);
+            this.isSendScheduled = true;
+        } catch (final RejectedExecutionException ex) {
+            this.isSendScheduled = false;
+        }
+    }
+
+    /**
+     * Queues a screen's content to be pushed to the device, if it has changed since it was last sent.
+     * Must be called with the screenBufferUpdateLock held.
+     *
+     * @param screen The screen to be updated.
+     * @return True iff the screen is up-to-date or queued; false if it has to be retried later.
+     */
+    private boolean sendScreen(final Screen screen) {
+        if (!screen.isPending()) {
+            this.screensSkipped++;
+            return true;
+        }
+
+        // Our packets are sent asynchronously, so we can only assemble into one that isn't still waiting to go out.
+        final ByteBuffer packet = screen.claimPacketStore(this.niConnection);
+        if (packet == null) {
+            return false;
+        }
+
+        // Send just the changed region, unless we've been asked to always send the whole screen.
+        if (!this.isPartialUpdates) {
+            screen.markAll();
+        }
+
+        final int length = screen.buildRegionPacket(packet);
+        if (!this.niConnection.pushRequest(packet, length)) {
+            return false;
+        }
+
+        if (length < DISPLAY_PACKET_SIZE) {
+            this.partialUpdates++;
+            this.bytesAvoided += DISPLAY_PACKET_SIZE - length;
+        }
+
+        screen.clearRegion();
+        return true;
+    }
+
+    /**
+     * @return The number of frames that were sent to the displays.
+     */
+    public long getFramesSent() {
+        synchronized (this.screenBufferUpdateLock) {
+            return this.framesSent;
+        }
+    }
+
+    /**
+     * @return The number of frames that were dropped because their content didn't change.
+     */
+    public long getFramesSkipped() {
+        synchronized (this.screenBufferUpdateLock) {
+            return this.framesSkipped;
+        }
+    }
+
+    /**
+     * @return The number of frames that were replaced by a newer frame before they could be sent.
+     */
+    public long getFramesCoalesced() {
+        synchronized (this.screenBufferUpdateLock) {
+            return this.framesCoalesced;
+        }
+    }
+
+    /**
+     * @return The number of times a screen wasn't pushed along with a frame, since its content was unchanged.
+     */
+    public long getScreensSkipped() {
+        synchronized (this.screenBufferUpdateLock) {
+            return this.screensSkipped;
+        }
+    }
+
+    /**
+     * @return The number of times a screen was updated by sending only its changed region.
+     */
+    public long getPartialUpdates() {
+        synchronized (this.screenBufferUpdateLock) {
+            return this.partialUpdates;
+        }
+    }
+
+    /**
+     * @return The number of bytes that didn't need to be sent, thanks to partial updates.
+     */
+    public long getBytesAvoided() {
+        synchronized (this.screenBufferUpdateLock) {
+            return this.bytesAvoided;
+        }
+    }
+
+    /**
+     * @return The number of sends postponed because the previous frames were still waiting to go out.
+     */
+    public long getSendsDeferred() {
+        synchronized (this.screenBufferUpdateLock) {
+            return this.sendsDeferred;
+        }
+    }
+
+
+    /**
+     * The state of one of the two physical displays.
+     */
+    static class Screen {
+
+        /**
+         * Memory that stores this display's current pixels. Laid out like a full-screen packet,
+         * so a pixel's offset is the same here as in a packet that covers the whole display.
+         */
+        final ByteBuffer byteStore;
+
+        /**
+         * Receives one row of this display's pixels from the bitmap while encoding.
+         */
+        final int[] rowBuffer = new int[SCREEN_WIDTH];
+
+        /**
+         * Memory in which we assemble the packets sent to this display. Provided by our interop, so it can be
+         * handed to native code without being copied. There are two, so we can assemble a packet while the
+         * previous one is still waiting to be sent.
+         */
+        final ByteBuffer[] packetStores = new ByteBuffer[2];
+
+        /**
+         * The index of the packet store we'll try to assemble our next packet into.
+         */
+        int nextPacketStore = 0;
+
+        /**
+         * True iff the most recent encode changed this display's content.
+         */
+        boolean isChanged = false;
+
+        //
+        // Bounds of the region that has changed since we last sent this display, inclusive.
+        // Starts out as the whole display, so the first frame is always sent in full.
+        //
+        int minX = 0;
+        int minY = 0;
+        int maxX = SCREEN_WIDTH - 1;
+        int maxY = SCREEN_HEIGHT - 1;
+
+        /**
+         * Allocates the packet buffers for a display, and fills in the parts of the packets that never change.
+         *
+         * @param interop The interop the packets will be sent with; or null if we don't have one.
+         * @param header  The header that precedes data sent to this display.
+         */
+        Screen(final AbstractNIHostInterop interop, final byte[] header) {
+            this.byteStore = ByteBuffer.allocate(DISPLAY_PACKET_SIZE).order(ByteOrder.BIG_ENDIAN);
+
+            // Our packets always start with the same header; they only need their geometry patched.
+            for (int i = 0; i < this.packetStores.length; i++) {
+                this.packetStores[i] = allocatePacket(interop);
+                this.packetStores[i].put(0, header);
+            }
+        }
+
+        /**
+         * Allocates a buffer large enough for a full-screen packet; pixels are stored big-endian.
+         */
+        private static ByteBuffer allocatePacket(final AbstractNIHostInterop interop) {
+            final ByteBuffer packet = (interop != null) ? interop.allocateRequestBuffer(DISPLAY_PACKET_SIZE) : ByteBuffer.allocateDirect(DISPLAY_PACKET_SIZE);
+            return packet.order(ByteOrder.BIG_ENDIAN);
+        }
+
+        /**
+         * Adds a changed pixel to the region to be sent.
+         */
+        void markChanged(final int x, final int y) {
+            this.isChanged = true;
+            this.minX = Math.min(this.minX, x);
+            this.minY = Math.min(this.minY, y);
+            this.maxX = Math.max(this.maxX, x);
+            this.maxY = Math.max(this.maxY, y);
+        }
+
+        /**
+         * Marks the whole display as needing to be sent.
+         */
+        void markAll() {
+            this.minX = 0;
+            this.minY = 0;
+            this.maxX = SCREEN_WIDTH - 1;
+            this.maxY = SCREEN_HEIGHT - 1;
+        }
+
+        /**
+         * Marks the display as fully sent.
+         */
+        void clearRegion() {
+            this.minX = Integer.MAX_VALUE;
+            this.minY = Integer.MAX_VALUE;
+            this.maxX = -1;
+            this.maxY = -1;
+        }
+
+        /**
+         * @return True iff this display has content that hasn't been sent yet.
+         */
+        boolean isPending() {
+            return this.maxX >= 0;
+        }
+
+        /**
+         * Finds a packet store that isn't still waiting to be sent, alternating between our stores.
+         *
+         * @param interop The interop our packets are sent with.
+         * @return A packet store that's safe to assemble into; or null if they're all still waiting to be sent.
+         */
+        ByteBuffer claimPacketStore(final AbstractNIHostInterop interop) {
+            for (int i = 0; i < this.packetStores.length; i++) {
+                final ByteBuffer store = this.packetStores[this.nextPacketStore];
+                this.nextPacketStore = (this.nextPacketStore + 1) % this.packetStores.length;
+
+                if (!interop.isRequestPending(store)) {
+                    return store;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Assembles a packet that updates only the changed region of this display.
+         * The region is widened to an even X position and width, since the display transfers pixels in pairs.
+         *
+         * @param packet The packet store to assemble the packet in.
+         * @return The length of the assembled packet.
+         */
+        int buildRegionPacket(final ByteBuffer packet) {
+            final int x = this.minX & ~1;
+            final int y = this.minY;
+            final int width = (this.maxX | 1) - x + 1;
+            final int height = this.maxY - y + 1;
+            final int rowSize = width * 2;
+            final int dataSize = rowSize * height;
+            final int pixelPairs = (width * height) / 2;
+
+            // Patch the header for our region. The size is little-endian; the geometry is big-endian...
+            packet.putInt(HEADER_SIZE_OFFSET, Integer.reverseBytes(dataSize + HEADER_SIZE_OVERHEAD));
+
+            packet.putShort(HEADER_REGION_OFFSET, (short) x);
+            packet.putShort(HEADER_REGION_OFFSET + 2, (short) y);
+            packet.putShort(HEADER_REGION_OFFSET + 4, (short) width);
+            packet.putShort(HEADER_REGION_OFFSET + 6, (short) height);
+
+            packet.put(HEADER_PIXEL_PAIRS_OFFSET, (byte) (pixelPairs >> 16));
+            packet.putShort(HEADER_PIXEL_PAIRS_OFFSET + 1, (short) pixelPairs);
+
+            // ... copy in the region's rows...
+            int offset = DISPLAY_HEADER_LEFT.length;
+            for (int row = y; row < y + height; row++) {
+                packet.put(offset, this.byteStore, DISPLAY_HEADER_LEFT.length + ((row * SCREEN_WIDTH) + x) * 2, rowSize);
+                offset += rowSize;
+            }
+
+            // ... and finish with our footer.
+            packet.put(offset, DISPLAY_FOOTER);
+            return offset + DISPLAY_FOOTER.length;
         }
     }
 }
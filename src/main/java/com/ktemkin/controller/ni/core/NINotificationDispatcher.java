@@ -0,0 +1,268 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+
+/**
+ * Hands raw notifications from the thread that receives them over to a single dispatch thread.
+ *
+ * Notifications are held in a fixed-size ring between one producer (the pipe or port reader) and one
+ * consumer, so they're always handled in the order they arrived -- a pad's note-off can never overtake
+ * its note-on. If the consumer falls a full ring behind, new notifications are dropped and counted,
+ * rather than stalling the reader.
+ *
+ * Each slot in the ring owns a reusable buffer, which the producer copies each notification into, and
+ * which is handed to the consumer as a little-endian view. Once warmed up, dispatch never allocates.
+ *
+ * @author Kate Temkin
+ */
+class NINotificationDispatcher {
+
+    /**
+     * The raw storage for each slot in our ring. Always a power of two in number.
+     */
+    private final byte[][] slots;
+    /**
+     * A little-endian view over each slot's storage, handed to our handler.
+     */
+    private final ByteBuffer[] slotViews;
+    /**
+     * The length of the notification held in each slot.
+     */
+    private final int[] slotLengths;
+    /**
+     * Mask used to turn a sequence number into a ring index.
+     */
+    private final int mask;
+    /**
+     * The sequence number of the next notification to be dispatched. Only advanced by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * The sequence number of the next notification to be queued. Only advanced by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The callback that handles each notification, on our dispatch thread.
+     * The buffer it's given is only valid until it returns.
+     */
+    private final Consumer<ByteBuffer> handler;
+    /**
+     * Told about the first exception our handler throws; later ones are only counted.
+     */
+    private final Consumer<RuntimeException> failureHandler;
+    /**
+     * The single thread on which all notifications are handled.
+     */
+    private final Thread consumer;
+    /**
+     * Set to true once we should stop dispatching.
+     */
+    private final AtomicBoolean isShutdown = new AtomicBoolean(false);
+    /**
+     * True while the dispatch thread is (about to be) parked waiting for work.
+     */
+    private volatile boolean isConsumerParked;
+
+    /**
+     * The number of notifications handed to our handler.
+     */
+    private final AtomicLong dispatched = new AtomicLong();
+    /**
+     * The number of notifications dropped because the ring was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * The number of notifications whose handler threw.
+     */
+    private final AtomicLong failed = new AtomicLong();
+    /**
+     * The largest number of notifications we've seen waiting at once.
+     */
+    private volatile int peakBacklog;
+
+
+    /**
+     * Creates a new dispatcher, and starts its dispatch thread.
+     *
+     * @param handler        The callback that handles each notification.
+     * @param failureHandler Told about the first exception thrown by our handler.
+     * @param capacity       The number of notifications that may be waiting at once; rounded up to a power of two.
+     * @param maximumSize    The size of the largest notification we expect; larger ones cause their slot to grow.
+     * @param name           The name to give our dispatch thread.
+     */
+    NINotificationDispatcher(Consumer<ByteBuffer> handler, Consumer<RuntimeException> failureHandler, int capacity, int maximumSize, String name) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+
+        this.slots = new byte[size][];
+        this.slotViews = new ByteBuffer[size];
+        this.slotLengths = new int[size];
+        this.mask = size - 1;
+        this.handler = handler;
+        this.failureHandler = failureHandler;
+
+        for (int i = 0; i < size; ++i) {
+            this.allocateSlot(i, maximumSize);
+        }
+
+        this.consumer = new Thread(this::dispatchLoop, name);
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * Copies a notification into our ring, and queues it for dispatch.
+     * Must only be called from a single producer thread at a time.
+     *
+     * @param notification The buffer containing the raw notification.
+     * @param length       The length of the notification, from the start of the buffer.
+     * @return True iff the notification was queued; false if it was dropped.
+     */
+    boolean offer(byte[] notification, int length) {
+        final byte[] slot = this.claim(length);
+        if (slot == null) {
+            return false;
+        }
+
+        System.arraycopy(notification, 0, slot, 0, length);
+        this.publish(length);
+
+        return true;
+    }
+
+    /**
+     * Claims the storage for the next notification, so the producer can copy a notification straight into it.
+     * Must be followed by a call to publish(), unless this returns null.
+     *
+     * @param length The length of the notification to be stored.
+     * @return Storage for at least the given number of bytes; or null if the ring is full, and the notification was dropped.
+     */
+    byte[] claim(int length) {
+        final long sequence = this.tail.get();
+
+        if ((sequence - this.head.get()) >= this.slots.length) {
+            this.dropped.incrementAndGet();
+            return null;
+        }
+
+        final int index = (int) sequence & this.mask;
+        if (this.slots[index].length < length) {
+            this.allocateSlot(index, length);
+        }
+
+        return this.slots[index];
+    }
+
+    /**
+     * Queues the notification most recently copied into claimed storage for dispatch.
+     *
+     * @param length The length of the notification.
+     */
+    void publish(int length) {
+        final long sequence = this.tail.get();
+        final int backlog = (int) (sequence - this.head.get());
+
+        // Fill in the slot before advancing our tail, so the consumer never sees a partial notification.
+        this.slotLengths[(int) sequence & this.mask] = length;
+        this.tail.set(sequence + 1);
+
+        if (backlog + 1 > this.peakBacklog) {
+            this.peakBacklog = backlog + 1;
+        }
+
+        if (this.isConsumerParked) {
+            LockSupport.unpark(this.consumer);
+        }
+    }
+
+    /**
+     * (Re-)allocates the storage for a given slot. Only called by the producer, for slots the consumer doesn't own.
+     */
+    private void allocateSlot(int index, int size) {
+        this.slots[index] = new byte[size];
+        this.slotViews[index] = ByteBuffer.wrap(this.slots[index]).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Body of our dispatch thread: hands each notification to our handler, in order.
+     */
+    private void dispatchLoop() {
+        while (!this.isShutdown.get()) {
+            final long sequence = this.head.get();
+
+            // If there's nothing waiting, park until the producer (or shutdown()) wakes us.
+            // We re-check after announcing that we're parking, so we can't miss a wake-up; and spurious
+            // wake-ups just bring us back around this loop.
+            if (sequence == this.tail.get()) {
+                this.isConsumerParked = true;
+                if ((sequence == this.tail.get()) && !this.isShutdown.get()) {
+                    LockSupport.park(this);
+                }
+                this.isConsumerParked = false;
+                continue;
+            }
+
+            final int index = (int) sequence & this.mask;
+            final ByteBuffer notification = this.slotViews[index];
+            notification.clear().limit(this.slotLengths[index]);
+
+            try {
+                this.handler.accept(notification);
+                this.dispatched.incrementAndGet();
+            } catch (RuntimeException e) {
+                // One malformed notification mustn't stop the rest from being delivered.
+                if (this.failed.incrementAndGet() == 1) {
+                    this.failureHandler.accept(e);
+                }
+            }
+
+            // Only hand the slot back to the producer once we're done with its contents.
+            this.head.set(sequence + 1);
+        }
+    }
+
+    /**
+     * Stops dispatching. Notifications still waiting are discarded.
+     */
+    void shutdown() {
+        this.isShutdown.set(true);
+        LockSupport.unpark(this.consumer);
+    }
+
+    /**
+     * @return The number of notifications handed to our handler.
+     */
+    long getDispatched() {
+        return this.dispatched.get();
+    }
+
+    /**
+     * @return The number of notifications dropped because we'd fallen too far behind.
+     */
+    long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return The number of notifications whose handler threw an exception.
+     */
+    long getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * @return The largest number of notifications that have been waiting at once.
+     */
+    int getPeakBacklog() {
+        return this.peakBacklog;
+    }
+}
@@ -0,0 +1,304 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Queues outbound requests to the NIHostIntegrationAgent, and sends them from a dedicated writer thread,
+ * so callers never block on the agent's I/O.
+ *
+ * Requests are sent in order within each priority; control requests (LEDs, focus, acquisition) always go
+ * out ahead of bulk display frames. Each priority has a bounded depth; requests that don't fit are dropped
+ * and counted, rather than blocking the caller.
+ *
+ * @author Kate Temkin
+ */
+class NIRequestQueue {
+
+    /**
+     * Priority for small, input-critical requests, such as LED updates and focus requests.
+     */
+    static final int PRIORITY_CONTROL = 0;
+    /**
+     * Priority for bulk display data.
+     */
+    static final int PRIORITY_DISPLAY = 1;
+    /**
+     * The number of priorities we support.
+     */
+    private static final int PRIORITY_COUNT = 2;
+
+    /**
+     * The connection whose transport actually sends our requests.
+     */
+    private final AbstractNIHostInterop interop;
+    /**
+     * The maximum number of requests that may wait at each priority.
+     */
+    private final int[] capacities;
+    /**
+     * The requests waiting at each priority, in order.
+     */
+    private final ArrayDeque<Request>[] queues;
+    /**
+     * Buffers that have been queued, but haven't yet been completely sent. Their owners must not modify them.
+     */
+    private final Set<ByteBuffer> pendingBuffers = Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * Protects our queues and pending buffers.
+     */
+    private final Object lock = new Object();
+    /**
+     * The thread that sends all of our requests.
+     */
+    private final Thread writer;
+    /**
+     * Set to true once we should stop sending.
+     */
+    private volatile boolean isShutdown;
+    /**
+     * True once we've reported a failed send; only touched by our writer thread.
+     */
+    private boolean hasReportedFailure;
+
+    //
+    // Per-priority statistics.
+    //
+    private final AtomicLong[] requestsSent = newCounters();
+    private final AtomicLong[] requestsDropped = newCounters();
+    private final AtomicLong[] requestsFailed = newCounters();
+    private final AtomicLong[] totalLatency = newCounters();
+    private final AtomicLong[] maxLatency = newCounters();
+
+
+    /**
+     * Creates a new request queue, and starts its writer thread.
+     *
+     * @param interop         The connection whose transport actually sends requests.
+     * @param controlCapacity The number of control requests that may be waiting at once.
+     * @param displayCapacity The number of display requests that may be waiting at once.
+     * @param name            The name to give our writer thread.
+     */
+    @SuppressWarnings("unchecked")
+    NIRequestQueue(AbstractNIHostInterop interop, int controlCapacity, int displayCapacity, String name) {
+        this.interop = interop;
+        this.capacities = new int[]{controlCapacity, displayCapacity};
+        this.queues = new ArrayDeque[]{new ArrayDeque<Request>(controlCapacity), new ArrayDeque<Request>(displayCapacity)};
+
+        this.writer = new Thread(this::writeLoop, name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a control request. The request is copied, so the caller may reuse its array immediately.
+     *
+     * @param message The raw request.
+     * @param length  The number of bytes from the start of the array to send.
+     * @return True iff the request was queued; false if it was dropped.
+     */
+    boolean enqueue(byte[] message, int length) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(message, 0, copy, 0, length);
+
+        return this.enqueue(PRIORITY_CONTROL, new Request(copy, null, length));
+    }
+
+    /**
+     * Queues a display request. The buffer is sent in place; it must not be modified until isPending() says it's been sent.
+     *
+     * @param message A direct buffer containing the raw request.
+     * @param length  The number of bytes from the start of the buffer to send.
+     * @return True iff the request was queued; false if it was dropped.
+     */
+    boolean enqueue(ByteBuffer message, int length) {
+        return this.enqueue(PRIORITY_DISPLAY, new Request(null, message, length));
+    }
+
+    /**
+     * Adds a request to the relevant queue, if there's room.
+     */
+    private boolean enqueue(int priority, Request request) {
+        synchronized (this.lock) {
+            final ArrayDeque<Request> queue = this.queues[priority];
+
+            if (this.isShutdown || (queue.size() >= this.capacities[priority])) {
+                this.requestsDropped[priority].incrementAndGet();
+                return false;
+            }
+
+            if (request.buffer != null) {
+                this.pendingBuffers.add(request.buffer);
+            }
+
+            queue.addLast(request);
+            this.lock.notifyAll();
+        }
+
+        return true;
+    }
+
+    /**
+     * @param buffer A buffer previously passed to enqueue().
+     * @return True iff the buffer is waiting to be sent, or is being sent; and so must not be modified.
+     */
+    boolean isPending(ByteBuffer buffer) {
+        synchronized (this.lock) {
+            return this.pendingBuffers.contains(buffer);
+        }
+    }
+
+    /**
+     * Body of our writer thread: sends each request, highest priority first.
+     */
+    private void writeLoop() {
+        while (true) {
+            Request request = null;
+            int priority = 0;
+
+            // Wait for something to send...
+            synchronized (this.lock) {
+                while (!this.isShutdown) {
+                    for (priority = 0; priority < PRIORITY_COUNT; ++priority) {
+                        request = this.queues[priority].pollFirst();
+                        if (request != null) {
+                            break;
+                        }
+                    }
+
+                    if (request != null) {
+                        break;
+                    }
+
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            if (request == null) {
+                return;
+            }
+
+            // ... send it, outside of our lock...
+            try {
+                if (request.buffer != null) {
+                    this.interop.transmitRequest(request.buffer, request.length);
+                } else {
+                    this.interop.transmitRequest(request.bytes, request.length);
+                }
+
+                final long latency = System.nanoTime() - request.enqueuedAt;
+                this.requestsSent[priority].incrementAndGet();
+                this.totalLatency[priority].addAndGet(latency);
+                this.maxLatency[priority].accumulateAndGet(latency, Math::max);
+            } catch (RuntimeException e) {
+                // A failed send mustn't stop the requests behind it. Only the first is reported; the counter tells the rest.
+                if (!this.hasReportedFailure) {
+                    this.hasReportedFailure = true;
+                    this.interop.errorPrint("Failed to send a request to the NIHostIntegrationAgent.", e);
+                }
+                this.requestsFailed[priority].incrementAndGet();
+            }
+
+            // ... and hand its buffer back to its owner.
+            if (request.buffer != null) {
+                synchronized (this.lock) {
+                    this.pendingBuffers.remove(request.buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops sending requests. Requests still waiting are discarded.
+     */
+    void shutdown() {
+        synchronized (this.lock) {
+            this.isShutdown = true;
+
+            for (ArrayDeque<Request> queue : this.queues) {
+                queue.clear();
+            }
+            this.pendingBuffers.clear();
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of requests sent at the given priority.
+     */
+    long getRequestsSent(int priority) {
+        return this.requestsSent[priority].get();
+    }
+
+    /**
+     * @return The number of requests dropped at the given priority, because too many were already waiting.
+     */
+    long getRequestsDropped(int priority) {
+        return this.requestsDropped[priority].get();
+    }
+
+    /**
+     * @return The number of requests at the given priority whose send failed.
+     */
+    long getRequestsFailed(int priority) {
+        return this.requestsFailed[priority].get();
+    }
+
+    /**
+     * @return The mean time from queueing to sent for requests at the given priority, in nanoseconds.
+     */
+    long getAverageLatency(int priority) {
+        final long sent = this.requestsSent[priority].get();
+        return (sent == 0) ? 0 : (this.totalLatency[priority].get() / sent);
+    }
+
+    /**
+     * @return The longest time from queueing to sent for any request at the given priority, in nanoseconds.
+     */
+    long getMaxLatency(int priority) {
+        return this.maxLatency[priority].get();
+    }
+
+    /**
+     * Creates one counter per priority.
+     */
+    private static AtomicLong[] newCounters() {
+        final AtomicLong[] counters = new AtomicLong[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; ++i) {
+            counters[i] = new AtomicLong();
+        }
+
+        return counters;
+    }
+
+
+    /**
+     * A single queued request; either an array or a buffer.
+     */
+    private static class Request {
+
+        final byte[] bytes;
+        final ByteBuffer buffer;
+        final int length;
+        final long enqueuedAt = System.nanoTime();
+
+        Request(byte[] bytes, ByteBuffer buffer, int length) {
+            this.bytes = bytes;
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
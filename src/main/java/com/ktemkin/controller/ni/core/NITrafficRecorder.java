@@ -0,0 +1,293 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Records the traffic between us and the NIHostIntegrationAgent into a memory-mapped log, for later replay
+ * with NITrafficReplayer. Enabled by setting the system property {@value #RECORD_PROPERTY} to the path of
+ * the log file to create.
+ *
+ * Display pushes make up nearly all of our traffic by volume, and would fill a log within seconds; so by
+ * default, only their headers are recorded. {@value #RECORD_DISPLAY_PROPERTY} can be set to "full" to record
+ * them whole, or to "none" to leave them out.
+ *
+ * The log is a fixed-size, append-only file: a short header, followed by one record per message. Space for
+ * each record is reserved with a single atomic add, and the record is written straight into the mapping;
+ * so recording never allocates, and never takes a lock. Once the log is full, further messages are counted
+ * and dropped.
+ *
+ * Each record is laid out, little-endian, as:
+ *
+ *   int   length     the length of the message body; written last, so a zero marks the end of the log
+ *   long  timestamp  nanoseconds since recording started
+ *   short deviceId   the device ID of the connection the message belongs to
+ *   byte  direction  DIRECTION_NOTIFICATION, DIRECTION_REQUEST, DIRECTION_RESPONSE, or DIRECTION_DISPLAY_HEADER
+ *   byte[length]     the raw message
+ *
+ * @author Kate Temkin
+ */
+class NITrafficRecorder {
+
+    /**
+     * System property that, when set to a file path, turns on recording to that file.
+     */
+    static final String RECORD_PROPERTY = "drivenbykate.nihia.record";
+    /**
+     * System property that sets the size of the recording, in megabytes.
+     */
+    static final String RECORD_SIZE_PROPERTY = "drivenbykate.nihia.record.size";
+    /**
+     * System property that sets how much of each display push is recorded: "full", "headers", or "none".
+     */
+    static final String RECORD_DISPLAY_PROPERTY = "drivenbykate.nihia.record.display";
+    /**
+     * The size of a recording, if none is provided via {@value #RECORD_SIZE_PROPERTY}.
+     */
+    private static final int DEFAULT_RECORD_SIZE_MB = 64;
+    /**
+     * The number of bytes kept from each display push when only headers are recorded. Covers the display
+     * header NIGraphicDisplay sends, which identifies the screen and the region being updated.
+     */
+    static final int DISPLAY_HEADER_RECORD_SIZE = 44;
+
+    /**
+     * Magic number at the start of each log: 'NIHT'.
+     */
+    static final int LOG_MAGIC = 0x5448494e;
+    /**
+     * The version of the log format we write.
+     */
+    static final int LOG_VERSION = 1;
+    /**
+     * The size of the log's header: the magic number and version.
+     */
+    static final int LOG_HEADER_SIZE = 8;
+    /**
+     * The size of the fixed part of each record, before the message itself.
+     */
+    static final int RECORD_HEADER_SIZE = 4 + 8 + 2 + 1;
+
+    /**
+     * Direction for notifications received from the agent.
+     */
+    static final byte DIRECTION_NOTIFICATION = 0;
+    /**
+     * Direction for requests sent to the agent.
+     */
+    static final byte DIRECTION_REQUEST = 1;
+    /**
+     * Direction for the agent's responses to blocking requests, such as our handshake and subscription.
+     */
+    static final byte DIRECTION_RESPONSE = 2;
+    /**
+     * Direction for display pushes sent to the agent, of which only the first DISPLAY_HEADER_RECORD_SIZE bytes were kept.
+     */
+    static final byte DIRECTION_DISPLAY_HEADER = 3;
+
+    /**
+     * How much of each display push we record.
+     */
+    enum DisplayRecording {
+        FULL,
+        HEADERS,
+        NONE
+    }
+
+    /**
+     * Why the recording requested by our system properties couldn't be created; or null if it could be, or wasn't requested.
+     * Kept for our connections to report, since we're created before anything we could report it to.
+     */
+    private static volatile Exception creationFailure;
+
+    /**
+     * The mapping we record into.
+     */
+    private final MappedByteBuffer log;
+    /**
+     * How much of each display push we record.
+     */
+    private final DisplayRecording displayRecording;
+    /**
+     * The offset at which the next record will be written. May run past the end of the log, once it's full.
+     */
+    private final AtomicLong writePosition = new AtomicLong(LOG_HEADER_SIZE);
+    /**
+     * The time at which recording started; our timestamps are relative to it.
+     */
+    private final long startTime = System.nanoTime();
+
+    /**
+     * The number of messages recorded.
+     */
+    private final AtomicLong recorded = new AtomicLong();
+    /**
+     * The number of messages dropped because the log was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+
+    /**
+     * Creates a new recording, replacing any existing file at the given path.
+     *
+     * @param path             The file to record into.
+     * @param size             The size of the recording, in bytes.
+     * @param displayRecording How much of each display push to record.
+     */
+    NITrafficRecorder(Path path, int size, DisplayRecording displayRecording) throws IOException {
+        this.displayRecording = displayRecording;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        this.log.order(ByteOrder.LITTLE_ENDIAN);
+        this.log.putInt(0, LOG_MAGIC);
+        this.log.putInt(4, LOG_VERSION);
+    }
+
+    /**
+     * Creates a recorder as configured by our system properties.
+     *
+     * @return The new recorder; or null if recording isn't enabled, or the recording couldn't be created.
+     *         In the latter case, the reason is available from getCreationFailure().
+     */
+    static NITrafficRecorder fromSystemProperties() {
+        final String path = System.getProperty(RECORD_PROPERTY);
+        if ((path == null) || path.isEmpty()) {
+            return null;
+        }
+
+        try {
+            final String display = System.getProperty(RECORD_DISPLAY_PROPERTY, DisplayRecording.HEADERS.name());
+            final DisplayRecording displayRecording = DisplayRecording.valueOf(display.toUpperCase(Locale.ROOT));
+
+            return new NITrafficRecorder(Path.of(path), Integer.getInteger(RECORD_SIZE_PROPERTY, DEFAULT_RECORD_SIZE_MB) * 1024 * 1024, displayRecording);
+        } catch (IOException | RuntimeException ex) {
+            creationFailure = ex;
+            return null;
+        }
+    }
+
+    /**
+     * @return Why the recording requested by our system properties couldn't be created; or null if there was no failure.
+     */
+    static Exception getCreationFailure() {
+        return creationFailure;
+    }
+
+    /**
+     * Records a message held in an array.
+     *
+     * @param deviceId  The device ID of the connection the message belongs to.
+     * @param direction DIRECTION_NOTIFICATION, DIRECTION_REQUEST, or DIRECTION_RESPONSE.
+     * @param message   The raw message.
+     * @param length    The length of the message, from the start of the array.
+     */
+    void record(int deviceId, byte direction, byte[] message, int length) {
+        final long timestamp = System.nanoTime() - this.startTime;
+        final int offset = this.reserve(length);
+        if (offset < 0) {
+            return;
+        }
+
+        this.log.put(offset + RECORD_HEADER_SIZE, message, 0, length);
+        this.commit(offset, timestamp, deviceId, direction, length);
+    }
+
+    /**
+     * Records a message held in a buffer.
+     *
+     * @param deviceId  The device ID of the connection the message belongs to.
+     * @param direction DIRECTION_NOTIFICATION, DIRECTION_REQUEST, or DIRECTION_RESPONSE.
+     * @param message   The buffer containing the raw message.
+     * @param length    The length of the message, from the start of the buffer.
+     */
+    void record(int deviceId, byte direction, ByteBuffer message, int length) {
+        final long timestamp = System.nanoTime() - this.startTime;
+        final int offset = this.reserve(length);
+        if (offset < 0) {
+            return;
+        }
+
+        this.log.put(offset + RECORD_HEADER_SIZE, message, 0, length);
+        this.commit(offset, timestamp, deviceId, direction, length);
+    }
+
+    /**
+     * Records a display push, as much of it as we've been configured to.
+     *
+     * @param deviceId The device ID of the connection the push belongs to.
+     * @param message  The buffer containing the raw display push.
+     * @param length   The length of the push, from the start of the buffer.
+     */
+    void recordDisplay(int deviceId, ByteBuffer message, int length) {
+        switch (this.displayRecording) {
+            case FULL -> this.record(deviceId, DIRECTION_REQUEST, message, length);
+            case HEADERS -> this.record(deviceId, DIRECTION_DISPLAY_HEADER, message, Math.min(length, DISPLAY_HEADER_RECORD_SIZE));
+            case NONE -> {
+                // Not recorded.
+            }
+        }
+    }
+
+    /**
+     * Reserves space for a record.
+     *
+     * @return The offset of the reserved space; or -1 if the log is full, and the message has been dropped.
+     */
+    private int reserve(int length) {
+        if (length <= 0) {
+            return -1;
+        }
+
+        final long size = RECORD_HEADER_SIZE + length;
+        final long offset = this.writePosition.getAndAdd(size);
+
+        // Leave room for a zero length after our record, so readers always find the end of the log.
+        if (offset + size + 4 > this.log.capacity()) {
+            this.dropped.incrementAndGet();
+            return -1;
+        }
+
+        return (int) offset;
+    }
+
+    /**
+     * Fills in a record's header, once its body has been written. The length goes in last, as it marks the record complete.
+     */
+    private void commit(int offset, long timestamp, int deviceId, byte direction, int length) {
+        this.log.putLong(offset + 4, timestamp);
+        this.log.putShort(offset + 12, (short) deviceId);
+        this.log.put(offset + 14, direction);
+        this.log.putInt(offset, length);
+
+        this.recorded.incrementAndGet();
+    }
+
+    /**
+     * @return The number of messages recorded.
+     */
+    long getRecorded() {
+        return this.recorded.get();
+    }
+
+    /**
+     * @return The number of messages dropped because the log was full.
+     */
+    long getDropped() {
+        return this.dropped.get();
+    }
+}
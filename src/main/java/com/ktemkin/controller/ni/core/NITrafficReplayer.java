@@ -0,0 +1,182 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Plays back NIHostIntegrationAgent traffic captured by NITrafficRecorder; so a real session's input load can
+ * be reproduced on any platform, and the code that handles it benchmarked deterministically.
+ *
+ * Notifications can either be fed straight into a connection's notification handler, at their original pace
+ * or accelerated; or extracted, to be injected into a LoopbackNIHostInterop and dispatched as if they'd just
+ * arrived from the agent.
+ *
+ * @author Kate Temkin
+ */
+public class NITrafficReplayer {
+
+    /**
+     * Replay speed that delivers every notification as quickly as possible, ignoring the original timing.
+     */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /**
+     * The recording being played back.
+     */
+    private final ByteBuffer log;
+
+
+    /**
+     * Opens a recording for playback.
+     *
+     * @param path The recording to open.
+     */
+    public NITrafficReplayer(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        if ((this.log.capacity() < NITrafficRecorder.LOG_HEADER_SIZE) || (this.log.getInt(0) != NITrafficRecorder.LOG_MAGIC)) {
+            throw new IOException("Not an NIHIA traffic recording: " + path);
+        }
+        if (this.log.getInt(4) != NITrafficRecorder.LOG_VERSION) {
+            throw new IOException("Unsupported NIHIA traffic recording version " + this.log.getInt(4) + ".");
+        }
+    }
+
+    /**
+     * Feeds each recorded notification for the given connection's device type into its notification handler, on the
+     * calling thread; just as they'd be handled had they arrived from the agent.
+     *
+     * @param target The connection whose handler should receive the notifications.
+     * @param speed  The playback speed relative to the original session (e.g. 2.0 for double speed);
+     *               or AS_FAST_AS_POSSIBLE to ignore the original timing.
+     * @return The number of notifications replayed.
+     */
+    public long replay(AbstractNIHostInterop target, double speed) {
+        final byte[] storage = new byte[AbstractNIHostInterop.NOTIFICATION_MAXIMUM_SIZE];
+        final ByteBuffer notification = ByteBuffer.wrap(storage).order(ByteOrder.LITTLE_ENDIAN);
+
+        final long playbackStart = System.nanoTime();
+        long firstTimestamp = -1;
+        long replayed = 0;
+
+        for (int offset = NITrafficRecorder.LOG_HEADER_SIZE; hasRecordAt(offset); offset = nextRecord(offset)) {
+            if (!this.isNotificationFor(offset, target.deviceId)) {
+                continue;
+            }
+
+            // If we're keeping the original pace, wait until this notification's moment comes around.
+            final long timestamp = this.log.getLong(offset + 4);
+            if (firstTimestamp < 0) {
+                firstTimestamp = timestamp;
+            }
+            if (speed > 0) {
+                final long due = playbackStart + (long) ((timestamp - firstTimestamp) / speed);
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            // Copy the notification into our reusable buffer, and hand it over.
+            final int length = this.log.getInt(offset);
+            if (length > storage.length) {
+                continue;
+            }
+
+            this.log.get(offset + NITrafficRecorder.RECORD_HEADER_SIZE, storage, 0, length);
+            notification.clear().limit(length);
+            target.handleNotification(notification);
+
+            ++replayed;
+        }
+
+        return replayed;
+    }
+
+    /**
+     * Extracts each recorded notification for a given device type, in order; e.g. for LoopbackNIHostInterop.injectNotifications().
+     *
+     * @param deviceId The device ID whose notifications should be extracted.
+     * @return The raw notifications.
+     */
+    public List<byte[]> getNotifications(int deviceId) {
+        final List<byte[]> notifications = new ArrayList<>();
+
+        for (int offset = NITrafficRecorder.LOG_HEADER_SIZE; hasRecordAt(offset); offset = nextRecord(offset)) {
+            if (this.isNotificationFor(offset, deviceId)) {
+                final byte[] notification = new byte[this.log.getInt(offset)];
+                this.log.get(offset + NITrafficRecorder.RECORD_HEADER_SIZE, notification);
+                notifications.add(notification);
+            }
+        }
+
+        return notifications;
+    }
+
+    /**
+     * @return The number of complete records in the recording, in every direction.
+     */
+    public long getRecordCount() {
+        long count = 0;
+        for (int offset = NITrafficRecorder.LOG_HEADER_SIZE; hasRecordAt(offset); offset = nextRecord(offset)) {
+            ++count;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The time between the first and last records in the recording, in nanoseconds.
+     */
+    public long getDuration() {
+        long first = -1;
+        long last = 0;
+
+        for (int offset = NITrafficRecorder.LOG_HEADER_SIZE; hasRecordAt(offset); offset = nextRecord(offset)) {
+            final long timestamp = this.log.getLong(offset + 4);
+            first = (first < 0) ? timestamp : Math.min(first, timestamp);
+            last = Math.max(last, timestamp);
+        }
+
+        return (first < 0) ? 0 : (last - first);
+    }
+
+    /**
+     * Returns true iff a complete record starts at the given offset.
+     */
+    private boolean hasRecordAt(int offset) {
+        if (offset + NITrafficRecorder.RECORD_HEADER_SIZE > this.log.capacity()) {
+            return false;
+        }
+
+        final int length = this.log.getInt(offset);
+        return (length > 0) && (offset + NITrafficRecorder.RECORD_HEADER_SIZE + length <= this.log.capacity());
+    }
+
+    /**
+     * Returns the offset of the record after the one at the given offset.
+     */
+    private int nextRecord(int offset) {
+        return offset + NITrafficRecorder.RECORD_HEADER_SIZE + this.log.getInt(offset);
+    }
+
+    /**
+     * Returns true iff the record at the given offset is a notification for the given device type.
+     */
+    private boolean isNotificationFor(int offset, int deviceId) {
+        return (this.log.get(offset + 14) == NITrafficRecorder.DIRECTION_NOTIFICATION) && (this.log.getShort(offset + 12) == (short) deviceId);
+    }
+}
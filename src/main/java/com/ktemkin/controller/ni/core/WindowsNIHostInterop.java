@@ -4,9 +4,11 @@
 
 package com.ktemkin.controller.ni.core;
 
+import com.sun.jna.Memory;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.WinBase;
 import com.sun.jna.platform.win32.WinNT;
 import com.sun.jna.ptr.IntByReference;
 import de.mossgrabers.framework.daw.IHost;
@@ -14,12 +16,8 @@ import de.mossgrabers.framework.utils.FrameworkException;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.CharBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -36,9 +34,9 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
      */
     private static final int MAX_IO_SIZE = 1024;
     /**
-     * Executor that handles notifications off of the main callback thread.
+     * How long we'll wait for our notification thread to stop on shutdown, before giving up on closing its handles.
      */
-    private final ExecutorService notificationExecutor = Executors.newCachedThreadPool();
+    private static final long NOTIFICATION_SHUTDOWN_TIMEOUT_MS = 1000;
     /**
      * The port we'll use to send requests to the NIHostIntegrationAgent.
      */
@@ -47,6 +45,10 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
      * The port we'll use to receive notifications from the NIHostIntegrationAgent.
      */
     private NotificationPipe notificationPort;
+    /**
+     * Event signaled when we're shutting down, so our notification thread can stop waiting.
+     */
+    private WinNT.HANDLE shutdownEvent;
 
 
     /**
@@ -92,11 +94,14 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
         NotificationPipe pipe = new NotificationPipe();
         String pipeName = "\\\\.\\pipe\\" + name;
 
-        // First, create an event source we'll use to hande incoming events.
-        pipe.event = Kernel32.INSTANCE.CreateEvent(null, true, true, null);
+        // First, create an event source we'll use to handle incoming events; it's signaled whenever our overlapped I/O completes.
+        pipe.event = Kernel32.INSTANCE.CreateEvent(null, true, false, null);
+        pipe.overlappedIo = new WinNT.OVERLAPPED();
+        pipe.overlappedIo.hEvent = pipe.event;
+        pipe.overlappedIo.write();
 
-        // First, open the pipe itself...
-        pipe.port = Kernel32.INSTANCE.CreateNamedPipe(pipeName, WinNT.PIPE_ACCESS_DUPLEX, WinNT.PIPE_TYPE_MESSAGE | WinNT.PIPE_READMODE_MESSAGE | WinNT.PIPE_WAIT, 1, MAX_IO_SIZE, MAX_IO_SIZE, 1000, null);
+        // ... and then open the pipe itself, for overlapped I/O.
+        pipe.port = Kernel32.INSTANCE.CreateNamedPipe(pipeName, WinNT.PIPE_ACCESS_DUPLEX | WinNT.FILE_FLAG_OVERLAPPED, WinNT.PIPE_TYPE_MESSAGE | WinNT.PIPE_READMODE_MESSAGE | WinNT.PIPE_WAIT, 1, MAX_IO_SIZE, MAX_IO_SIZE, 1000, null);
         if (pipe.port == WinNT.INVALID_HANDLE_VALUE) {
             throw new IOException("Failed to create WinNT handle for named pipe " + pipeName + "!");
         }
@@ -109,63 +114,25 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
      */
     @Override
     protected void bootstrapConnections() throws IOException {
-        byte[] deviceSerial = this.deviceSerialBytes.array();
-
-        // Create a bootstrap port connection, which we'll use to send a handshake.
-        WinNT.HANDLE bootstrapPort = this.openPortByName(NI_BOOTSTRAP_PORT);
 
-        // Build the message we'll use.
-        byte[] rawMessage = new byte[NI_MSG_HANDSHAKE_LENGTH + deviceSerial.length + 1];
-        ByteBuffer messageBuffer = ByteBuffer.allocateDirect(NI_MSG_HANDSHAKE_LENGTH + deviceSerial.length + 1);
-        messageBuffer.order(ByteOrder.LITTLE_ENDIAN);
-
-        if (deviceSerial.length == 0) {
-            messageBuffer.putInt(NI_MSG_HANDSHAKE);           // Connect to the server, but not to specific hardware.
-        } else {
-            messageBuffer.putInt(NI_MSG_CONNECT);             // Connect to a port for a specific piece of hardware.
+        // Create the event we'll use to wake our notification thread on shutdown.
+        if (this.shutdownEvent == null) {
+            this.shutdownEvent = Kernel32.INSTANCE.CreateEvent(null, true, false, null);
         }
-        //
-        messageBuffer.putInt(this.deviceId);                  // The device type.
-        messageBuffer.putInt(NI_SOFTWARE_ID_MASCHINE2);       // The "NI software" that's connecting.
-        messageBuffer.putInt(NI_HEADER_CONSTANT);             // Unknown. Possibly protocol version?
-        messageBuffer.putInt(deviceSerial.length + 1);        // The length of the serial number that follows, plus a NULL.
-
-        if (deviceSerial.length != 0) {
-            messageBuffer.put(deviceSerial);                    // The serial number of the device we want to control, if any.
-            messageBuffer.put((byte) 0);                          // A null terminator for after the device serial.
-        }
-
-        // Ensure we have a byte array.
-        messageBuffer.rewind();
-        messageBuffer.get(rawMessage);
-
-        // ... and perform our exchange.
-        byte[] rawResponse = this.sendOnPort(bootstrapPort, rawMessage, true);
-        if ((rawResponse == null) || rawResponse.length == 0) {
-            throw new IOException("NIHostIntegrationAgent did not reply. Failing out.");
-        }
-
-        // Interpret our response a variety of ways...
-        ByteBuffer response = ByteBuffer.wrap(rawResponse);
-        response.order(ByteOrder.LITTLE_ENDIAN);
-        if (rawResponse.length == 4) {
-            throw new IOException("NIHostIntegrationAgent reports an error. Failing out.");
-        }
-
-        // ... so we can extract our target data.
-        int checkVal = response.getInt();
-        int requestPortLength = response.getInt();
 
-        if (checkVal != NI_SUCCESS) {
-            throw new IOException("Failed to communicate!");
-        }
+        // Create a bootstrap port connection, which we'll use to send a handshake.
+        WinNT.HANDLE bootstrapPort = this.openPortByName(NI_BOOTSTRAP_PORT);
 
-        // Finally, extract the core port name we need...
-        CharBuffer responseChars = StandardCharsets.US_ASCII.decode(response);
-        String requestPortName = responseChars.subSequence(0, requestPortLength - 1).toString();
+        // Perform our handshake...
+        byte[] rawMessage = this.buildHandshakeMessage(NI_SOFTWARE_ID_MASCHINE2);
+        this.recordRequest(rawMessage);
+        byte[] rawResponse = this.sendOnPort(bootstrapPort, rawMessage, rawMessage.length, true);
+        this.recordResponse(rawResponse);
 
-        int notificationPortLength = response.getInt(8 + requestPortLength);
-        String notificationPortName = responseChars.subSequence(requestPortLength + 4, requestPortLength + 4 + notificationPortLength - 1).toString();
+        // ... extract the names of the ports we've been given...
+        String[] portNames = this.parseHandshakeResponse(rawResponse);
+        String requestPortName = portNames[0];
+        String notificationPortName = portNames[1];
 
         //// ... open our ports...
         this.requestPort = this.openPortByName(requestPortName);
@@ -187,23 +154,47 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
      * {@inheritDoc}
      */
     @Override
-    public void pushRequest(byte[] data) {
-        this.sendOnPort(this.requestPort, data, false);
+    protected void transmitRequest(byte[] data, int length) {
+        this.sendOnPort(this.requestPort, data, length, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void transmitRequest(ByteBuffer data, int length) {
+        this.pushOnPort(this.requestPort, Native.getDirectBufferPointer(data), length);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public byte[] sendRequest(byte[] data) {
-        return this.sendOnPort(this.requestPort, data, true);
+    protected byte[] exchangeRequest(byte[] data) {
+        return this.sendOnPort(this.requestPort, data, data.length, true);
+    }
+
+    /**
+     * Writes data straight from native memory onto a named pipe, without reading a response.
+     */
+    private void pushOnPort(WinNT.HANDLE port, Pointer message, int length) {
+        if ((port == null) || (port == WinNT.INVALID_HANDLE_VALUE)) {
+            throw new FrameworkException("Internal consistency: trying to send on an invalid or uninitialized handle");
+        }
+
+        IntByReference actualWriteSize = new IntByReference(0);
+        boolean sent = Kernel32Extended.INSTANCE.WriteFile(port, message, length, actualWriteSize, null);
+
+        if (!sent || (actualWriteSize.getValue() != length)) {
+            this.debugPrint("Failed to push message!");
+        }
     }
 
     /**
      * Sends simple data on a named pipe, and receive the response.
      * Cannot read more than 1024B, currently; but NI never sends that much.
      */
-    private byte[] sendOnPort(WinNT.HANDLE port, byte[] message, boolean collectResponse) {
+    private byte[] sendOnPort(WinNT.HANDLE port, byte[] message, int length, boolean collectResponse) {
         int retries = 10;
         boolean sent = false;
 
@@ -217,9 +208,9 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
         // Optimization: if we're not looking for a response, don't read one.
         if (!collectResponse) {
             IntByReference actualWriteSize = new IntByReference(0);
-            sent = Kernel32.INSTANCE.WriteFile(port, message, message.length, actualWriteSize, null);
+            sent = Kernel32.INSTANCE.WriteFile(port, message, length, actualWriteSize, null);
 
-            if (!sent || (actualWriteSize.getValue() != message.length)) {
+            if (!sent || (actualWriteSize.getValue() != length)) {
                 this.debugPrint("Failed to push message!");
             }
             return null;
@@ -231,7 +222,7 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
         IntByReference bytesRead = new IntByReference(0);
 
         while (!sent && retries > 0) {
-            sent = Kernel32.INSTANCE.TransactNamedPipe(port, message, message.length, response, response.length, bytesRead, null);
+            sent = Kernel32.INSTANCE.TransactNamedPipe(port, message, length, response, response.length, bytesRead, null);
             if (sent) {
                 break;
             }
@@ -270,69 +261,69 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
     void pollForNotifications() {
         NotificationPipe pipe = this.notificationPort;
 
-        // The first time through, set up our thread state.
+        // The first time through, start listening for the agent to connect to our pipe.
         // Technically, this can be done from any thread, but why take risks?
-        if (!this.notificationPort.hasStarted.get()) {
+        if (!pipe.hasStarted.getAndSet(true)) {
             this.initializePipeServer();
         }
 
-        // Poll for new data on our pipe.
-        int status = Kernel32.INSTANCE.WaitForSingleObject(pipe.event, 1000);
-
-        // If this wait failed, return. We'll immediately be called again to give it another try.
-        if (status != WinNT.WAIT_OBJECT_0) {
+        // If we're not already waiting on I/O, start a read. If data's already waiting, we'll get it immediately.
+        if (!pipe.hasIoPending && this.startRead()) {
             return;
         }
 
-        // If we have asynchronous I/O in process, handle it before moving on.
-        if (pipe.hasIoPending) {
-            try {
-                this.handleAsyncIo();
-            } catch (PipeBusyException _ex) {
-                // Our pipe was busy, and wants us to try again.
-                // We'll get it on the next iteration.
-                return;
-            }
-        }
-
-        //
-        // Primary read.
-        //
+        // Wait until either our I/O completes, or we're asked to shut down; without any timeout.
+        WinNT.HANDLE[] waitHandles = {pipe.event, this.shutdownEvent};
+        int status = Kernel32.INSTANCE.WaitForMultipleObjects(waitHandles.length, waitHandles, false, WinBase.INFINITE);
 
-        IntByReference bytesRead = new IntByReference(0);
+        // If we were woken to shut down, there's nothing more to do.
+        if (status == WinNT.WAIT_OBJECT_0 + 1) {
+            return;
+        }
+        if (status != WinNT.WAIT_OBJECT_0) {
+            this.recordIdleWakeup();
+            this.debugPrint("Failed to wait on notification pipe (%d).", Kernel32.INSTANCE.GetLastError());
+            return;
+        }
 
-        // Start a read, attempting to fill our local buffer.
-        var readDone = Kernel32.INSTANCE.ReadFile(pipe.port, pipe.readBuffer, MAX_IO_SIZE, bytesRead, pipe.overlappedIo);
+        this.handleAsyncIo();
+    }
 
-        // If data was waiting for us, we can actually read something immediately.
-        // Handle it, and then move on to the writing state.
-        if (readDone && (bytesRead.getValue() != 0)) {
-            // Extract just the bytes we've actually read ...
-            final byte[] notificationData = Arrays.copyOfRange(pipe.readBuffer, 0, bytesRead.getValue());
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void wakeNotificationWaiter() {
+        if (this.shutdownEvent != null) {
+            Kernel32.INSTANCE.SetEvent(this.shutdownEvent);
+        }
+    }
 
-            // ... and submit them as a notification.
-            this.notificationExecutor.submit(() -> this.handleNotification(notificationData));
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdown() {
+        super.shutdown();
 
-            return;
-        }
-        // Otherwise, on en error, we'll have to handle our return code.
-        else if (!readDone) {
-            int rc = Kernel32.INSTANCE.GetLastError();
-
-            // If the I/O was marked as pending, we're still waiting on the read
-            // Mark our I/O as pending, and loop back around to our handler on the next call.
-            if (rc == WinNT.ERROR_IO_PENDING) {
-                pipe.hasIoPending = true;
+        // Our events can only be closed once our notification thread has stopped waiting on them.
+        try {
+            if (!this.notificationExecutor.awaitTermination(NOTIFICATION_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                this.debugPrint("Notification thread didn't stop; leaving its event handles open.");
                 return;
-            } else {
-                throw new FrameworkException(String.format("Failed to read on notification pipe (%d)", rc));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
 
+        if ((this.notificationPort != null) && (this.notificationPort.event != null)) {
+            Kernel32.INSTANCE.CloseHandle(this.notificationPort.event);
+            this.notificationPort.event = null;
         }
-        // Otherwise, we got a zero-length read.
-        // Print a warning.
-        else {
-            this.debugPrint("READ: got a zero-length pipe read");
+        if (this.shutdownEvent != null) {
+            Kernel32.INSTANCE.CloseHandle(this.shutdownEvent);
+            this.shutdownEvent = null;
         }
     }
 
@@ -341,48 +332,84 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
     //
 
     /**
-     * Handles any I/O pending on our notification pipe.
+     * Starts an overlapped read on our notification pipe.
+     *
+     * @return True iff the read completed immediately, and its notification has already been handled.
      */
-    private void handleAsyncIo() throws PipeBusyException {
+    private boolean startRead() {
+        NotificationPipe pipe = this.notificationPort;
+        IntByReference bytesRead = new IntByReference(0);
+
+        // Start a read, attempting to fill our native read buffer.
+        var readDone = Kernel32Extended.INSTANCE.ReadFile(pipe.port, pipe.readBuffer, MAX_IO_SIZE, bytesRead, pipe.overlappedIo.getPointer());
+
+        // If data was waiting for us, we can handle it immediately.
+        if (readDone) {
+            this.dispatchFromReadBuffer(bytesRead.getValue());
+            return true;
+        }
+
+        // Otherwise, we're either waiting on the read, or something's gone wrong.
+        int rc = Kernel32.INSTANCE.GetLastError();
+        if (rc != WinNT.ERROR_IO_PENDING) {
+            throw new FrameworkException(String.format("Failed to read on notification pipe (%d)", rc));
+        }
+
+        pipe.hasIoPending = true;
+        return false;
+    }
+
+    /**
+     * Handles the completion of the I/O pending on our notification pipe.
+     */
+    private void handleAsyncIo() {
         NotificationPipe pipe = this.notificationPort;
         IntByReference bytesTransferred = new IntByReference(0);
 
         // Get the actual result of our overlapped I/O.
-        // Note that we don't yet handle failures -- we handle them on a per-state basis.
         var resultOkay = Kernel32Extended.INSTANCE.GetOverlappedResult(pipe.port, pipe.overlappedIo.getPointer(), bytesTransferred, false);
+        if (!resultOkay) {
+            var error = Kernel32.INSTANCE.GetLastError();
 
-        if (pipe.waitingOnConnect) {
-            // If we were waiting for a GetOverlappedResult to connect, a success means we're now connected.
-            // Move to READING.
-            if (resultOkay) {
-                pipe.waitingOnConnect = false;
-                pipe.hasIoPending = false;
-            }
-            // Otherwise, we'll move on depending on what our error is.
-            else {
-                var error = Kernel32.INSTANCE.GetLastError();
-
-                // If we still have pending I/O, we'll need to try again.
-                if (error == WinNT.ERROR_IO_PENDING) {
-                    throw new PipeBusyException();
-                }
-                // Any other error is Bad. Fail out.
-                else {
-                    throw new FrameworkException(String.format("Failed to read overlapped I/O (%d).", error));
-                }
-            }
-        } else {
-
-            // If we were waiting on a read, and we got successful I/O, mark ourselves as having
-            // read data to handle, and then move on to waiting for an async write operation.
-            //
-            // Our main polling loop will handle the actual read.
-            if (resultOkay && (bytesTransferred.getValue() > 0)) {
-                pipe.hasIoPending = false;
-            } else {
-                throw new FrameworkException("Failed to handle overlapped I/O (expecting read)!");
+            // If the I/O isn't actually done yet, we'll wait on it again.
+            if (error == WinNT.ERROR_IO_INCOMPLETE) {
+                this.recordIdleWakeup();
+                return;
             }
+
+            throw new FrameworkException(String.format("Failed to complete overlapped I/O on notification pipe (%d).", error));
+        }
+
+        pipe.hasIoPending = false;
+
+        // If we were waiting for the agent to connect, we're now connected; our next pass will start reading.
+        if (pipe.waitingOnConnect) {
+            pipe.waitingOnConnect = false;
+            this.recordIdleWakeup();
+            return;
+        }
+
+        this.dispatchFromReadBuffer(bytesTransferred.getValue());
+    }
+
+    /**
+     * Queues the notification that's just been read into our native read buffer to be handled.
+     */
+    private void dispatchFromReadBuffer(int length) {
+        if (length == 0) {
+            this.recordIdleWakeup();
+            this.debugPrint("READ: got a zero-length pipe read");
+            return;
         }
+
+        // Copy the notification straight from our read buffer into the notification queue, so the buffer's free for the next read.
+        byte[] buffer = this.claimNotificationBuffer(length);
+        if (buffer == null) {
+            return;
+        }
+
+        this.notificationPort.readBuffer.read(0, buffer, 0, length);
+        this.publishNotification(length);
     }
 
     /**
@@ -391,8 +418,8 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
     private void initializePipeServer() {
         NotificationPipe pipe = this.notificationPort;
 
-        // Connect up to the notification port.
-        var connectionIssue = Kernel32.INSTANCE.ConnectNamedPipe(pipe.port, pipe.overlappedIo);
+        // Start waiting for the agent to connect to our notification port.
+        var connectionIssue = Kernel32Extended.INSTANCE.ConnectNamedPipe(pipe.port, pipe.overlappedIo.getPointer());
         if (connectionIssue) {
             throw new FrameworkException("Failed to connect to our notification pipe!");
         }
@@ -403,28 +430,20 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
         // Windows ERROR_SUCCESS bullshit.
         var status = Kernel32.INSTANCE.GetLastError();
 
-        // If the pipe is now (or already) connceted, we've done it!
-        //
-        // Kick off an event to get things started, so our first wait doesn't sit waiting for an
-        // event that will never come, and instead goes directly into read/write.
+        // If the pipe is already connected, we can move straight on to reading.
         if (status == WinNT.ERROR_PIPE_CONNECTED) {
-            var eventSet = Kernel32.INSTANCE.SetEvent(pipe.event);
-            if (!eventSet) {
-                throw new FrameworkException("Failed to issue a notification pipe event.");
-            }
+            return;
         }
-        // If we have pending I/O already, mark us as needing to handle it.
-        else if (status == WinNT.ERROR_IO_PENDING) {
-            pipe.hasIoPending = true;
 
-            // Start off our poll loop by finishing this connection.
+        // If the connection is pending, our first wait will be for it to complete.
+        if (status == WinNT.ERROR_IO_PENDING) {
+            pipe.hasIoPending = true;
             pipe.waitingOnConnect = true;
+            return;
         }
 
         // Otherwise, something's gone wrong.
-        else {
-            throw new FrameworkException(String.format("Failed to initialize our pipe server (%d).", status));
-        }
+        throw new FrameworkException(String.format("Failed to initialize our pipe server (%d).", status));
     }
 
 
@@ -435,6 +454,12 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
         Kernel32Extended INSTANCE = (Kernel32Extended) Native.load("kernel32", Kernel32Extended.class);
 
         boolean GetOverlappedResult(WinNT.HANDLE file, Pointer over, IntByReference actual, boolean wait);
+
+        boolean ConnectNamedPipe(WinNT.HANDLE pipe, Pointer over);
+
+        boolean ReadFile(WinNT.HANDLE file, Pointer buffer, int length, IntByReference actual, Pointer over);
+
+        boolean WriteFile(WinNT.HANDLE file, Pointer buffer, int length, IntByReference actual, Pointer over);
     }
 
     /**
@@ -473,19 +498,8 @@ public class WindowsNIHostInterop extends AbstractNIHostInterop {
         public boolean waitingOnConnect;
 
         /**
-         * The buffer for any read operation; avoids re-creating an unnecessary buffer. Silly optimization.
+         * The native buffer overlapped reads complete into. Must stay put for as long as a read is pending.
          */
-        public byte[] readBuffer = new byte[MAX_IO_SIZE];
-    }
-
-    //
-    // JNA
-    //
-
-    /**
-     * Exception indicating that the local pipe was busy.
-     */
-    class PipeBusyException extends IOException {
+        public Memory readBuffer = new Memory(MAX_IO_SIZE);
     }
-
 }
@@ -139,6 +139,11 @@ public class KontrolConfiguration extends CommonUIConfiguration {
         this.serialForDisplaySetting.addValueObserver(serial -> {
             this.serialForDisplay = serial;
         });
+        this.activateDisplayPacingSettings(globalSettings);
+
+        ///////////////////////////
+        // LED colors
+        this.activateLedColorMatchingSetting(globalSettings);
     }
 
 
@@ -4,6 +4,8 @@
 
 package com.ktemkin.controller.ni.kontrol;
 
+import com.ktemkin.controller.common.controller.ColorLookupTable;
+import com.ktemkin.controller.common.controller.CommonUIColorManager;
 import com.ktemkin.controller.common.mode.NoteMode;
 import com.ktemkin.controller.common.mode.NoteRepeatMode;
 import com.ktemkin.controller.common.mode.ScalesMode;
@@ -17,6 +19,7 @@ import com.ktemkin.controller.common.mode.track.SendMode;
 import com.ktemkin.controller.common.mode.track.VolumeMode;
 import com.ktemkin.controller.common.view.PlayView;
 import com.ktemkin.controller.ni.core.AbstractNIHostInterop;
+import com.ktemkin.controller.ni.core.LoopbackNIHostInterop;
 import com.ktemkin.controller.ni.core.NIGraphicDisplay;
 import com.ktemkin.controller.ni.kontrol.command.trigger.StartClipOrSceneCommand;
 import com.ktemkin.controller.ni.kontrol.controller.KontrolColorManager;
@@ -130,7 +133,7 @@ public class KontrolControllerSetup extends AbstractControllerSetup<KontrolContr
      */
     @Override
     public void init() {
-        if (OperatingSystem.get() == OperatingSystem.LINUX)
+        if ((OperatingSystem.get() == OperatingSystem.LINUX) && !LoopbackNIHostInterop.isEnabled())
             throw new FrameworkException("Komplete Kontrol MkII is not supported on Linux since there is no Native Instruments DAW Integration Host.");
 
         super.init();
@@ -188,23 +191,24 @@ public class KontrolControllerSetup extends AbstractControllerSetup<KontrolContr
             if ((serial == null) || serial.isEmpty()) {
                 serial = AbstractNIHostInterop.getSingleDeviceSerial(DEVICE_ID);
                 if (serial != null) {
-                    this.host.println("Auto-detected serial " + serial + ".");
+                    this.host.println("Auto-detected serial " + serial + " in " + AbstractNIHostInterop.getDeviceDiscoveryTime(DEVICE_ID) + " ms.");
                 }
             }
 
             if ((serial != null) && !serial.isEmpty()) {
-                var nihiaConnection = AbstractNIHostInterop.createInterop(DEVICE_ID, serial, surface, host, false);
-
-                // HACK: for some reason,  NIHIA is _way_ more reliable after the second connection.
-                //
-                // We should probably figure out why this is and correct, but for now immediately connecting
-                // again seems to make things a lot more stable.
-                nihiaConnection = AbstractNIHostInterop.createInterop(DEVICE_ID, serial, surface, host, false);
+                final var nihiaConnection = AbstractNIHostInterop.createInterop(DEVICE_ID, serial, surface, host, false);
+                this.host.println("NIHIA connection up in " + nihiaConnection.getConnectTime() + " ms (" + nihiaConnection.getConnectAttempts() + " attempt(s)).");
                 surface.addNiConnection(nihiaConnection);
 
                 final NIGraphicDisplay display = new NIGraphicDisplay(this.host, this.valueChanger.getUpperBound(), this.configuration, nihiaConnection);
                 surface.addGraphicsDisplay(display);
 
+                // Keep the display's refresh behavior in sync with our settings.
+                this.updateDisplayRefresh(display);
+                this.configuration.addSettingObserver(KontrolConfiguration.DISPLAY_TARGET_FPS, () -> this.updateDisplayRefresh(display));
+                this.configuration.addSettingObserver(KontrolConfiguration.DISPLAY_MIN_FRAME_INTERVAL, () -> this.updateDisplayRefresh(display));
+                this.configuration.addSettingObserver(KontrolConfiguration.DISPLAY_PARTIAL_UPDATES, () -> this.updateDisplayRefresh(display));
+
                 this.host.println("Graphics display set up on Kontrol with serial " + serial + ".");
             } else {
                 this.host.error("Couldn't auto-detect the device serial corresponding to this controller. Try providing it in settings.");
@@ -215,6 +219,17 @@ public class KontrolControllerSetup extends AbstractControllerSetup<KontrolContr
     }
 
 
+    /**
+     * Applies the display refresh settings to the given display.
+     *
+     * @param display The display to configure.
+     */
+    private void updateDisplayRefresh(final NIGraphicDisplay display) {
+        display.setFramePacing(this.configuration.getDisplayTargetFps(), this.configuration.getDisplayMinFrameInterval());
+        display.setPartialUpdates(this.configuration.isDisplayPartialUpdates());
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -290,6 +305,22 @@ public class KontrolControllerSetup extends AbstractControllerSetup<KontrolContr
         super.createObservers();
 
         this.configuration.registerDeactivatedItemsHandler(this.model);
+
+        // Keep the LED color matching in sync with our settings.
+        this.updateColorMatching();
+        this.configuration.addSettingObserver(KontrolConfiguration.LED_COLOR_MATCHING, this::updateColorMatching);
+    }
+
+
+    /**
+     * Applies the LED color matching setting to our color manager.
+     */
+    private void updateColorMatching() {
+        final var matching = this.configuration.isPerceptualLedColorMatching() ? ColorLookupTable.Matching.PERCEPTUAL : ColorLookupTable.Matching.NEAREST;
+        ((CommonUIColorManager) this.colorManager).setColorMatching(matching);
+
+        // Previously-resolved LED colors may no longer be the best match.
+        this.getSurface().invalidateLights();
     }
 
 
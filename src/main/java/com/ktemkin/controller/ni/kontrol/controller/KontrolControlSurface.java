@@ -18,9 +18,9 @@ import de.mossgrabers.framework.daw.midi.IMidiOutput;
 import de.mossgrabers.framework.scale.Scales;
 import de.mossgrabers.framework.utils.ButtonEvent;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -211,6 +211,32 @@ public class KontrolControlSurface extends CommonUIControlSurface<KontrolConfigu
      */
     public static final int KONTROL_SELECTED_TRACK_MUTED_BY_SOLO = 0x69;
 
+    /**
+     * The button shown by each of the leading slots of an NI_MSG_SET_LEDS frame, in order.
+     * The null slot doesn't seem to do anything; we always send it as zero.
+     */
+    private static final ButtonID[] LED_FRAME_BUTTONS = {
+            ButtonID.MUTE, ButtonID.SOLO,
+            ButtonID.ROW1_1, ButtonID.ROW1_2, ButtonID.ROW1_3, ButtonID.ROW1_4,
+            ButtonID.ROW1_5, ButtonID.ROW1_6, ButtonID.ROW1_7, ButtonID.ROW1_8,
+            ButtonID.LEFT, ButtonID.UP, ButtonID.RIGHT, ButtonID.DOWN,
+            null,
+            ButtonID.SCALES, ButtonID.REPEAT, ButtonID.SCENE1, ButtonID.UNDO, ButtonID.QUANTIZE, ButtonID.AUTOMATION,
+            ButtonID.CLIP, ButtonID.PAGE_LEFT, ButtonID.TRACK, ButtonID.LOOP, ButtonID.METRONOME, ButtonID.TAP_TEMPO,
+            ButtonID.PAGE_RIGHT, ButtonID.CONFIGURE_PITCHBEND, ButtonID.PLAY, ButtonID.RECORD, ButtonID.STOP,
+            ButtonID.BANK_LEFT, ButtonID.BANK_RIGHT, ButtonID.DELETE, ButtonID.BROWSE, ButtonID.DEVICE
+    };
+    /**
+     * The number of bytes between the buttons and the keys in an LED frame. These seem to be for alignment; or perhaps
+     * have meaning we don't yet know. We fill them with lime green, so we can see them if they do wind up doing something.
+     */
+    private static final int LED_FRAME_PADDING = 5;
+    private static final byte LED_FRAME_PADDING_COLOR = 33;
+    /**
+     * The offset of the first key-strip key in an LED frame.
+     */
+    private static final int LED_FRAME_KEYS_OFFSET = LED_FRAME_BUTTONS.length + LED_FRAME_PADDING;
+
 
     private final int requiredVersion;
     private final ValueCache valueCache = new ValueCache();
@@ -225,6 +251,31 @@ public class KontrolControlSurface extends CommonUIControlSurface<KontrolConfigu
      * The color for each of the keystrip keys, as raw Kontrol colors.
      */
     private final int[] colorForKey = new int[88];
+    /**
+     * The LED frame we're building for the next flush. The frame can be up to 130 bytes; we truncate it to what we actually use.
+     */
+    private final byte[] ledFrame = new byte[LED_FRAME_KEYS_OFFSET + 88];
+    /**
+     * The last LED frame we sent to the NIHIA.
+     */
+    private final byte[] sentLedFrame = new byte[LED_FRAME_KEYS_OFFSET + 88];
+    /**
+     * The button color each slot of ledFrame was last resolved from; so we only resolve colors that have changed.
+     */
+    private final ColorEx[] resolvedButtonColors = new ColorEx[LED_FRAME_BUTTONS.length];
+    /**
+     * True iff every button slot of ledFrame has been resolved since the frame was last invalidated.
+     */
+    private boolean ledFrameResolved = false;
+    /**
+     * True iff sentLedFrame holds what's actually on the device.
+     */
+    private boolean sentLedFrameValid = false;
+    /**
+     * The number of flushes that sent an LED frame, and the number that were skipped because nothing had changed.
+     */
+    private volatile long ledFramesSent = 0;
+    private volatile long ledFramesSkipped = 0;
     /**
      * The scale manager for this controller.
      */
@@ -254,6 +305,8 @@ public class KontrolControlSurface extends CommonUIControlSurface<KontrolConfigu
 
         var padGrid = (KontrolPseudoPadGrid) this.getPadGrid();
         padGrid.setSurface(this);
+
+        Arrays.fill(this.ledFrame, LED_FRAME_BUTTONS.length, LED_FRAME_KEYS_OFFSET, LED_FRAME_PADDING_COLOR);
     }
 
 
@@ -268,7 +321,7 @@ public class KontrolControlSurface extends CommonUIControlSurface<KontrolConfigu
             // Stop flush
             this.isConnectedToNIHIA = false;
 
-            this.niConnection.shutdown();
+            this.niConnection.release();
 
             this.sendCommand(KontrolControlSurface.CMD_GOODBYE, 0);
         }
@@ -341,9 +394,20 @@ public class KontrolControlSurface extends CommonUIControlSurface<KontrolConfigu
             this.valueCache.clearCache();
         }
 
+        this.invalidateLights();
         super.clearCache();
     }
 
+
+    /**
+     * Forgets which LED colors we've resolved and sent, so the next flushLights() rebuilds and resends the whole frame.
+     * Call this whenever the device's LEDs may no longer match what we last sent, or when color matching changes.
+     */
+    public void invalidateLights() {
+        this.ledFrameResolved = false;
+        this.sentLedFrameValid = false;
+    }
+
     /**
      * Get the protocol number of the currently connected Komplete Kontrol.
      *
@@ -391,23 +455,39 @@ public class KontrolControlSurface extends CommonUIControlSurface<KontrolConfigu
      */
     @Override
     public void handleKnobEvent(int index, int newValue) {
+        this.handleKnobEvent(index, this.decodeKnobTurn(index, newValue), 1);
+    }
+
 
-        this.host.println(String.format("knob event (%d is %d).", index, newValue));
+    /**
+     * {@inheritDocs}
+     */
+    @Override
+    public int decodeKnobTurn(int index, int rawValue) {
+        int delta = rawValue >> 27;
+        if (!this.isShiftPressed()) {
+            delta = delta >> 2;
+        } else {
+            delta = (delta < 0) ? delta : (delta >> 1);
+        }
+        if (delta < 0) {
+            delta = delta >> 2;
+        }
+
+        return delta;
+    }
+
+
+    /**
+     * {@inheritDocs}
+     */
+    @Override
+    public void handleKnobEvent(int index, long steps, int turns) {
 
-        // ... and if there's a hardware continuous control, trigger it to update.
+        // If there's a hardware continuous control, trigger it to update.
         final var mode = this.getModeManager().getActive();
         if (mode != null) {
-            int delta = newValue >> 27;
-            if (!this.isShiftPressed()) {
-                delta = delta >> 2;
-            } else {
-                delta = (delta < 0) ? delta : (delta >> 1);
-            }
-            if (delta < 0) {
-                delta = delta >> 2;
-            }
-
-            mode.onKnobValue(index, delta);
+            mode.onKnobValue(index, (int) steps);
         }
     }
 
@@ -504,73 +584,65 @@ public class KontrolControlSurface extends CommonUIControlSurface<KontrolConfigu
     /**
      * Sends the LED colors associated set for each button with `setButtonColor`.
      * Does not affect the keybed colors, which are programmed via Keyzones.
+     * <p>
+     * Only button colors that have changed since the last flush are resolved; and if the resulting frame
+     * matches the one we last sent, nothing is sent at all.
      */
     public void flushLights() {
-        var colorManager = (KontrolColorManager) this.colorManager;
-
         if (this.niConnection == null) {
             return;
         }
 
-        // Build a packet of each button color.
-        // Note: this can be up to 130; we're truncating it to what we actually use.
-        byte[] colors = new byte[42 + this.colorForKey.length];
-        ByteBuffer ledBuffer = ByteBuffer.wrap(colors);
-
-        ledBuffer.put(this.getColorForButton(ButtonID.MUTE));
-        ledBuffer.put(this.getColorForButton(ButtonID.SOLO));
-
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_1));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_2));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_3));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_4));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_5));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_6));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_7));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_8));
-
-        ledBuffer.put(this.getColorForButton(ButtonID.LEFT));
-        ledBuffer.put(this.getColorForButton(ButtonID.UP));
-        ledBuffer.put(this.getColorForButton(ButtonID.RIGHT));
-        ledBuffer.put(this.getColorForButton(ButtonID.DOWN));
-
-        // This byte doesn't seem to do anything.
-        ledBuffer.put((byte) 0);
-
-        ledBuffer.put(this.getColorForButton(ButtonID.SCALES));
-        ledBuffer.put(this.getColorForButton(ButtonID.REPEAT));
-        ledBuffer.put(this.getColorForButton(ButtonID.SCENE1));
-        ledBuffer.put(this.getColorForButton(ButtonID.UNDO));
-        ledBuffer.put(this.getColorForButton(ButtonID.QUANTIZE));
-        ledBuffer.put(this.getColorForButton(ButtonID.AUTOMATION));
-        ledBuffer.put(this.getColorForButton(ButtonID.CLIP));
-        ledBuffer.put(this.getColorForButton(ButtonID.PAGE_LEFT));
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK));
-        ledBuffer.put(this.getColorForButton(ButtonID.LOOP));
-        ledBuffer.put(this.getColorForButton(ButtonID.METRONOME));
-        ledBuffer.put(this.getColorForButton(ButtonID.TAP_TEMPO));
-        ledBuffer.put(this.getColorForButton(ButtonID.PAGE_RIGHT));
-        ledBuffer.put(this.getColorForButton(ButtonID.CONFIGURE_PITCHBEND));
-        ledBuffer.put(this.getColorForButton(ButtonID.PLAY));
-        ledBuffer.put(this.getColorForButton(ButtonID.RECORD));
-        ledBuffer.put(this.getColorForButton(ButtonID.STOP));
-        ledBuffer.put(this.getColorForButton(ButtonID.BANK_LEFT));
-        ledBuffer.put(this.getColorForButton(ButtonID.BANK_RIGHT));
-        ledBuffer.put(this.getColorForButton(ButtonID.DELETE));
-        ledBuffer.put(this.getColorForButton(ButtonID.BROWSE));
-        ledBuffer.put(this.getColorForButton(ButtonID.DEVICE));
-
-        // These bytes seem to be for alignment; or perhaps have meaning
-        // we don't yet know. I'm going to fill them with lime green,
-        // so we can see them if they do wind up doing something.
-        ledBuffer.put(new byte[]{33, 33, 33, 33, 33});
-
-        // Scan out the colors for each of our key-strip keys.
-        for (var color : this.colorForKey) {
-            ledBuffer.put((byte) color);
+        // Resolve the device color for each button whose color has changed.
+        for (int slot = 0; slot < LED_FRAME_BUTTONS.length; ++slot) {
+            final ButtonID button = LED_FRAME_BUTTONS[slot];
+            if (button == null) {
+                continue;
+            }
+
+            final ColorEx color = this.colorForButton[button.ordinal()];
+            if (!this.ledFrameResolved || (color != this.resolvedButtonColors[slot])) {
+                this.resolvedButtonColors[slot] = color;
+                this.ledFrame[slot] = this.getColorForButton(button);
+            }
+        }
+        this.ledFrameResolved = true;
+
+        // Scan out the colors for each of our key-strip keys; these are already raw device colors.
+        for (int key = 0; key < this.colorForKey.length; ++key) {
+            this.ledFrame[LED_FRAME_KEYS_OFFSET + key] = (byte) this.colorForKey[key];
+        }
+
+        // If nothing's changed since our last frame, there's no need to bother the NIHIA.
+        if (this.sentLedFrameValid && Arrays.equals(this.ledFrame, this.sentLedFrame)) {
+            this.ledFramesSkipped++;
+            return;
+        }
+
+        // If the NIHIA's queue was full, the frame was dropped; leave our record as-is, so the next flush resends.
+        if (!this.niConnection.setLedColors(this.ledFrame)) {
+            return;
         }
 
-        this.niConnection.setLedColors(colors);
+        System.arraycopy(this.ledFrame, 0, this.sentLedFrame, 0, this.ledFrame.length);
+        this.sentLedFrameValid = true;
+        this.ledFramesSent++;
+    }
+
+
+    /**
+     * @return The number of flushes that sent an LED frame to the NIHIA.
+     */
+    public long getLedFramesSent() {
+        return this.ledFramesSent;
+    }
+
+
+    /**
+     * @return The number of flushes that skipped sending, because the LEDs hadn't changed.
+     */
+    public long getLedFramesSkipped() {
+        return this.ledFramesSkipped;
     }
 
 
@@ -691,14 +763,6 @@ public class KontrolControlSurface extends CommonUIControlSurface<KontrolConfigu
          * Constructor.
          */
         public ValueCache() {
-            this.clearCache();
-        }
-
-
-        /**
-         * Clear the cache.
-         */
-        public final void clearCache() {
             for (int i = 0; i < 8; i++) {
                 final List<int[]> e = new ArrayList<>(128);
                 for (int j = 0; j < 128; j++)
@@ -709,29 +773,11 @@ public class KontrolControlSurface extends CommonUIControlSurface<KontrolConfigu
 
 
         /**
-         * KontrolProtocolControllerSetup.java
-         * Stores the value and data in the cache for the track and stateID.
-         *
-         * @param track   The track number
-         * @param stateID The state id
-         * @param value   The value
-         * @param data    Further data
-         * @return False if cache was updated otherwise the given value and data are already stored
+         * Clear the cache. Empties the existing entries in place, so clearing doesn't grow the cache.
          */
-        public boolean store(final int track, final int stateID, final int value, final int[] data) {
-            final List<int[]> trackItem = this.cache.get(track);
-            final int[] values = trackItem.get(stateID);
-
-            final int[] newValues = new int[1 + data.length];
-            newValues[0] = value;
-            if (data.length > 0)
-                System.arraycopy(data, 0, newValues, 1, data.length);
-
-            if (Arrays.equals(values, newValues))
-                return true;
-
-            trackItem.set(stateID, newValues);
-            return false;
+        public final void clearCache() {
+            for (final List<int[]> e : this.cache)
+                Collections.fill(e, new int[0]);
         }
     }
 
@@ -158,6 +158,12 @@ public class MaschineConfiguration extends CommonUIConfiguration {
         // Display.
         this.serialForDisplaySetting = globalSettings.getStringSetting("Serial Number (multi-display)", "Misc", 8, "");
         this.serialForDisplaySetting.addValueObserver(serial -> this.serialForDisplay = serial);
+        this.activateDisplayPacingSettings(globalSettings);
+
+        ///////////////////////////
+        // LED colors
+        this.activateLedColorMatchingSetting(globalSettings);
+        this.activateLedFlushIntervalSetting(globalSettings);
 
     }
 
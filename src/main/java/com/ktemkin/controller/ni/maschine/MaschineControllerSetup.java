@@ -8,6 +8,8 @@ package com.ktemkin.controller.ni.maschine;
 import com.ktemkin.controller.common.command.trigger.MuteCommand;
 import com.ktemkin.controller.common.command.trigger.SelectCommand;
 import com.ktemkin.controller.common.command.trigger.SoloCommand;
+import com.ktemkin.controller.common.controller.ColorLookupTable;
+import com.ktemkin.controller.common.controller.CommonUIColorManager;
 import com.ktemkin.controller.common.mode.NoteMode;
 import com.ktemkin.controller.common.mode.NoteRepeatMode;
 import com.ktemkin.controller.common.mode.ScalesMode;
@@ -24,6 +26,7 @@ import com.ktemkin.controller.common.view.PlayView;
 import com.ktemkin.controller.common.view.SessionView;
 import com.ktemkin.controller.common.view.ShiftView;
 import com.ktemkin.controller.ni.core.AbstractNIHostInterop;
+import com.ktemkin.controller.ni.core.LoopbackNIHostInterop;
 import com.ktemkin.controller.ni.core.NIGraphicDisplay;
 import com.ktemkin.controller.ni.kontrol.controller.KontrolColorManager;
 import com.ktemkin.controller.ni.maschine.command.continuous.MainKnobRowModeCommand;
@@ -149,7 +152,7 @@ public class MaschineControllerSetup extends AbstractControllerSetup<MaschineCon
      */
     @Override
     public void init() {
-        if (OperatingSystem.get() == OperatingSystem.LINUX)
+        if ((OperatingSystem.get() == OperatingSystem.LINUX) && !LoopbackNIHostInterop.isEnabled())
             throw new FrameworkException("Maschine is not supported on Linux since there is no Native Instruments DAW Integration Host.");
 
         super.init();
@@ -166,6 +169,17 @@ public class MaschineControllerSetup extends AbstractControllerSetup<MaschineCon
     }
 
 
+    /**
+     * Applies the display refresh settings to the given display.
+     *
+     * @param display The display to configure.
+     */
+    private void updateDisplayRefresh(final NIGraphicDisplay display) {
+        display.setFramePacing(this.configuration.getDisplayTargetFps(), this.configuration.getDisplayMinFrameInterval());
+        display.setPartialUpdates(this.configuration.isDisplayPartialUpdates());
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -214,24 +228,24 @@ public class MaschineControllerSetup extends AbstractControllerSetup<MaschineCon
             if ((serial == null) || serial.isEmpty()) {
                 serial = AbstractNIHostInterop.getSingleDeviceSerial(deviceId);
                 if (serial != null) {
-                    this.host.println("Auto-detected serial " + serial + ".");
+                    this.host.println("Auto-detected serial " + serial + " in " + AbstractNIHostInterop.getDeviceDiscoveryTime(deviceId) + " ms.");
                 }
             }
 
             if ((serial != null) && !serial.isEmpty()) {
-                var nihiaConnection = AbstractNIHostInterop.createInterop(surface.getMaschine().getDeviceId(), serial, surface, host, false);
-
-
-                // HACK: for some reason,  NIHIA is _way_ more reliable after the second connection.
-                //
-                // We should probably figure out why this is and correct, but for now immediately connecting
-                // again seems to make things a lot more stable.
-                nihiaConnection = AbstractNIHostInterop.createInterop(surface.getMaschine().getDeviceId(), serial, surface, host, false);
+                final var nihiaConnection = AbstractNIHostInterop.createInterop(surface.getMaschine().getDeviceId(), serial, surface, host, false);
+                this.host.println("NIHIA connection up in " + nihiaConnection.getConnectTime() + " ms (" + nihiaConnection.getConnectAttempts() + " attempt(s)).");
                 surface.addNiConnection(nihiaConnection);
 
                 final NIGraphicDisplay display = new NIGraphicDisplay(this.host, this.valueChanger.getUpperBound(), this.configuration, nihiaConnection);
                 surface.addGraphicsDisplay(display);
 
+                // Keep the display's refresh behavior in sync with our settings.
+                this.updateDisplayRefresh(display);
+                this.configuration.addSettingObserver(MaschineConfiguration.DISPLAY_TARGET_FPS, () -> this.updateDisplayRefresh(display));
+                this.configuration.addSettingObserver(MaschineConfiguration.DISPLAY_MIN_FRAME_INTERVAL, () -> this.updateDisplayRefresh(display));
+                this.configuration.addSettingObserver(MaschineConfiguration.DISPLAY_PARTIAL_UPDATES, () -> this.updateDisplayRefresh(display));
+
                 this.host.println("Graphics display set up on Maschine with serial " + serial + ".");
             }
         } catch (IOException ex) {
@@ -320,6 +334,15 @@ public class MaschineControllerSetup extends AbstractControllerSetup<MaschineCon
         final MaschineControlSurface surface = this.getSurface();
 
         this.configuration.registerDeactivatedItemsHandler(this.model);
+
+        // Keep the LED color matching in sync with our settings.
+        this.updateColorMatching();
+        this.configuration.addSettingObserver(MaschineConfiguration.LED_COLOR_MATCHING, this::updateColorMatching);
+
+        // ... and how often the LEDs are updated.
+        surface.setLedFlushInterval(this.configuration.getLedFlushInterval());
+        this.configuration.addSettingObserver(MaschineConfiguration.LED_FLUSH_INTERVAL, () -> surface.setLedFlushInterval(this.configuration.getLedFlushInterval()));
+
         this.createScaleObservers(this.configuration);
         this.createNoteRepeatObservers(this.configuration, surface);
 
@@ -327,6 +350,18 @@ public class MaschineControllerSetup extends AbstractControllerSetup<MaschineCon
     }
 
 
+    /**
+     * Applies the LED color matching setting to our color manager.
+     */
+    private void updateColorMatching() {
+        final var matching = this.configuration.isPerceptualLedColorMatching() ? ColorLookupTable.Matching.PERCEPTUAL : ColorLookupTable.Matching.NEAREST;
+        ((CommonUIColorManager) this.colorManager).setColorMatching(matching);
+
+        // Previously-resolved LED colors may no longer be the best match.
+        this.getSurface().invalidateLights();
+    }
+
+
     /**
      * Adds a non-MIDI button with a simple trigger handler.
      * FIXME: move to a NI base class
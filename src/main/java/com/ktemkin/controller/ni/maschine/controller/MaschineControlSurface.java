@@ -24,7 +24,13 @@ import de.mossgrabers.framework.daw.midi.MidiConstants;
 import de.mossgrabers.framework.scale.Scales;
 import de.mossgrabers.framework.utils.ButtonEvent;
 
-import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
@@ -104,11 +110,20 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
     private static final int NUM_PADS = 16;
     private static final int PAD_PRESSURE_MIN = 0x3b000000;
     private static final int PAD_PRESSURE_MAX = 0x3fffffff;
+
+    /**
+     * The button shown by each slot of an NI_MSG_SET_LEDS frame, in order.
+     */
+    private static final ButtonID[] LED_FRAME_BUTTONS = buildLedFrameLayout();
+    /**
+     * The minimum time between two LED frames, if none is configured.
+     */
+    private static final int DEFAULT_LED_FLUSH_INTERVAL_MS = 10;
     /**
-     * The color index for each button.
+     * The color index for each button. Set on the DAW's thread, and read by our LED sender; so each element is volatile.
      */
     // FIXME(ktemkin): find an elegant way to get this bound
-    private final ColorEx[] colorForButton = new ColorEx[512];
+    private final AtomicReferenceArray<ColorEx> colorForButton = new AtomicReferenceArray<>(512);
     /**
      * Tracks whether an individual pad is down,
      * so we know whether to emit NOTE_ON or aftertouch events.
@@ -123,9 +138,9 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
      */
     private final Maschine maschine;
     /**
-     * The last observed knob value for each knob.
+     * The decoded steps of the last event for each knob; summed across any turns merged into it.
      */
-    private final int[] lastKnobValue = new int[8];
+    private final long[] lastKnobValue = new long[8];
     /**
      * True if the Fixed Accent button has been pressed.
      */
@@ -134,6 +149,51 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
     // @formatter:on
     private AbstractNIHostInterop niConnection;
 
+    /**
+     * Sends LED frames in the background; so neither input handling nor the DAW's flush waits on LED I/O.
+     * Created along with our NIHIA connection, since that's what LED frames are sent over; null until then.
+     */
+    private ScheduledExecutorService ledSender;
+    /**
+     * True iff an LED frame send has been scheduled, and hasn't yet started building its frame.
+     * Further flush requests made in the meantime are coalesced into that send.
+     */
+    private final AtomicBoolean ledFlushPending = new AtomicBoolean();
+    /**
+     * True iff the next LED frame should resolve every color and be sent even if unchanged.
+     */
+    private final AtomicBoolean ledFrameStale = new AtomicBoolean(true);
+    /**
+     * The minimum time between two LED frames, in nanoseconds.
+     */
+    private volatile long ledFlushInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LED_FLUSH_INTERVAL_MS);
+    /**
+     * The time at which we last sent an LED frame.
+     */
+    private volatile long lastLedFrameTime = 0;
+
+    //
+    // LED sender state; only touched on the LED sender thread.
+    //
+    /**
+     * The LED frame we're building for the next send.
+     */
+    private final byte[] ledFrame = new byte[LED_FRAME_BUTTONS.length];
+    /**
+     * The last LED frame we sent to the NIHIA.
+     */
+    private final byte[] sentLedFrame = new byte[LED_FRAME_BUTTONS.length];
+    /**
+     * The button color each slot of ledFrame was last resolved from; so we only resolve colors that have changed.
+     */
+    private final ColorEx[] resolvedButtonColors = new ColorEx[LED_FRAME_BUTTONS.length];
+
+    /**
+     * The number of LED frames sent, and the number of sends skipped because nothing had changed.
+     */
+    private volatile long ledFramesSent = 0;
+    private volatile long ledFramesSkipped = 0;
+
 
     /**
      * Constructor.
@@ -203,19 +263,7 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
      * @return the last knob value for the given knob, decoded
      */
     public int getLastKnobValue(int index) {
-        var newValue = this.lastKnobValue[index];
-
-        int delta = newValue >> 28;
-        if (!this.isShiftPressed()) {
-            delta = delta >> 2;
-        } else {
-            delta = (delta < 0) ? delta : (delta >> 1);
-        }
-        if (delta < 0) {
-            delta = delta >> 2;
-        }
-
-        return delta;
+        return (int) this.lastKnobValue[index];
     }
 
 
@@ -336,14 +384,42 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
      */
     @Override
     public void handleKnobEvent(int rawContinuousId, int newValue) {
+        this.handleKnobEvent(rawContinuousId, this.decodeKnobTurn(rawContinuousId, newValue), 1);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int decodeKnobTurn(int rawContinuousId, int rawValue) {
+        int delta = rawValue >> 28;
+        if (!this.isShiftPressed()) {
+            delta = delta >> 2;
+        } else {
+            delta = (delta < 0) ? delta : (delta >> 1);
+        }
+        if (delta < 0) {
+            delta = delta >> 2;
+        }
+
+        return delta;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleKnobEvent(int rawContinuousId, long steps, int turns) {
         // Get the relevant knob as a CC provider..
         var knob = this.getContinuous(ContinuousID.get(ContinuousID.KNOB1, rawContinuousId));
         if (knob == null) {
             return;
         }
 
-        // ... and "send" it our update.
-        this.lastKnobValue[rawContinuousId] = newValue;
+        // ... and "send" it our decoded steps.
+        this.lastKnobValue[rawContinuousId] = steps;
         knob.update();
     }
 
@@ -363,6 +439,18 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
      * @param pressure The pressure from a pad.
      */
     protected int pressureToVelocity(final long pressure) {
+        return velocityCurve(pressure);
+    }
+
+
+    /**
+     * Applies our velocity curve to a pad pressure. Doesn't depend on the surface's state; so it's package-private,
+     * where our benchmarks can time it without a surface.
+     *
+     * @param pressure The pressure from a pad, less the minimum pressure.
+     * @return The MIDI velocity for the pressure.
+     */
+    static int velocityCurve(final long pressure) {
         final double maxPressure = PAD_PRESSURE_MAX - PAD_PRESSURE_MIN;
 
         final double maxMidiValue = 127;
@@ -409,7 +497,6 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
         if (newPressure == 0) {
             this.sendMidiEvent(MidiConstants.CMD_NOTE_OFF, note, 0);
             this.padDown[padNumber] = false;
-            this.flushLights();
         }
         // If we have a pressure, and the pad is already down, this is an aftertouch event.
         // Skip Fixed Accent aftertouch, as that's basically meaningless.
@@ -420,13 +507,44 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
         else if (!this.padDown[padNumber]) {
             this.sendMidiEvent(MidiConstants.CMD_NOTE_ON, note, velocity);
             this.padDown[padNumber] = true;
-            this.flushLights();
         }
     }
 
 
     public void addNiConnection(AbstractNIHostInterop nihiaConnection) {
         this.niConnection = nihiaConnection;
+
+        if (this.ledSender == null) {
+            this.ledSender = Executors.newSingleThreadScheduledExecutor(task -> {
+                final Thread thread = new Thread(task, "Maschine LED sender");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void internalShutdown() {
+        super.internalShutdown();
+
+        // Stop sending LED updates before we let go of the connection they're sent over.
+        if (this.ledSender != null) {
+            this.ledSender.shutdownNow();
+            try {
+                this.ledSender.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Hand back our share of the NIHIA connection; it's shut down once nothing else is using it.
+        if (this.niConnection != null) {
+            this.niConnection.release();
+        }
     }
 
 
@@ -436,7 +554,7 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
     public byte getColorForButton(ButtonID button) {
 
         var manager = (MaschineColorManager) this.colorManager;
-        var color = this.colorForButton[button.ordinal()];
+        var color = this.colorForButton.get(button.ordinal());
 
         // If we don't have a color set, default to OFF.
         if (color == null) {
@@ -454,21 +572,140 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
      * @param color  The color to make that button.
      */
     public void setButtonColor(ButtonID button, ColorEx color) {
-        this.colorForButton[button.ordinal()] = color;
+        this.colorForButton.set(button.ordinal(), color);
+    }
+
+
+    /**
+     * Sets the minimum time between two LED frames. Changes made within that time are coalesced into a single frame.
+     *
+     * @param interval The minimum interval, in milliseconds.
+     */
+    public void setLedFlushInterval(int interval) {
+        this.ledFlushInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, interval));
+    }
+
+
+    /**
+     * Forgets which LED colors we've resolved and sent, so the next frame rebuilds and resends everything.
+     * Call this whenever the device's LEDs may no longer match what we last sent, or when color matching changes.
+     */
+    public void invalidateLights() {
+        this.ledFrameStale.set(true);
+        this.flushLights();
     }
 
 
     /**
      * Flushes the state of the Maschine's lights.
+     * <p>
+     * This only requests an update, and returns immediately: the frame is built and sent on our LED sender,
+     * no sooner than the configured interval after the last one, and only if it differs from what was last sent.
      */
     public void flushLights() {
-        if (this.niConnection == null) {
+        if ((this.ledSender == null) || !this.ledFlushPending.compareAndSet(false, true)) {
             return;
         }
 
-        // Build a packet of each button color.
-        byte[] ledColors = new byte[103];
-        ByteBuffer ledBuffer = ByteBuffer.wrap(ledColors);
+        try {
+            this.ledSender.schedule(this::sendLights, this.getLedFlushDelay(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ex) {
+            // We're shutting down; there's no one left to see the lights.
+        }
+    }
+
+
+    /**
+     * @return The number of LED frames sent to the NIHIA.
+     */
+    public long getLedFramesSent() {
+        return this.ledFramesSent;
+    }
+
+
+    /**
+     * @return The number of LED sends skipped, because the LEDs hadn't changed.
+     */
+    public long getLedFramesSkipped() {
+        return this.ledFramesSkipped;
+    }
+
+
+    /**
+     * Returns how long we need to wait before the next LED frame can go out, in nanoseconds.
+     */
+    private long getLedFlushDelay() {
+        return Math.max(0, this.lastLedFrameTime + this.ledFlushInterval - System.nanoTime());
+    }
+
+
+    /**
+     * Sends an LED frame, reporting any failure; our executor would otherwise quietly swallow it. Runs on our LED sender.
+     */
+    private void sendLights() {
+        try {
+            this.buildAndSendLights();
+        } catch (RejectedExecutionException ex) {
+            // We're shutting down; there's no one left to see the lights.
+        } catch (RuntimeException ex) {
+            // Let the next flush try again, rather than leaving the lights stuck.
+            this.ledFlushPending.set(false);
+            this.host.error("Failed to send Maschine LED frame.", ex);
+        }
+    }
+
+
+    /**
+     * Builds an LED frame from the current button colors, and sends it if it's changed.
+     */
+    private void buildAndSendLights() {
+
+        // If the interval's been lengthened since we were scheduled, wait out the rest of it.
+        final long delay = this.getLedFlushDelay();
+        if (delay > 0) {
+            this.ledSender.schedule(this::sendLights, delay, TimeUnit.NANOSECONDS);
+            return;
+        }
+
+        // Accept new flush requests from here on; anything that changes while we build this frame gets another one.
+        this.ledFlushPending.set(false);
+        final boolean isStale = this.ledFrameStale.getAndSet(false);
+
+        // Resolve the device color for each button whose color has changed.
+        for (int slot = 0; slot < LED_FRAME_BUTTONS.length; ++slot) {
+            final ColorEx color = this.colorForButton.get(LED_FRAME_BUTTONS[slot].ordinal());
+            if (isStale || (color != this.resolvedButtonColors[slot])) {
+                this.resolvedButtonColors[slot] = color;
+                this.ledFrame[slot] = this.getColorForButton(LED_FRAME_BUTTONS[slot]);
+            }
+        }
+
+        // If nothing's changed since our last frame, there's no need to bother the NIHIA.
+        if (!isStale && Arrays.equals(this.ledFrame, this.sentLedFrame)) {
+            this.ledFramesSkipped++;
+            return;
+        }
+
+        // If the NIHIA's queue was full, remember that the device may not have what we last sent; the next flush resends.
+        if (!this.niConnection.setLedColors(this.ledFrame)) {
+            if (isStale) {
+                this.ledFrameStale.set(true);
+            }
+            return;
+        }
+
+        System.arraycopy(this.ledFrame, 0, this.sentLedFrame, 0, this.ledFrame.length);
+        this.lastLedFrameTime = System.nanoTime();
+        this.ledFramesSent++;
+    }
+
+
+    /**
+     * Builds the list of buttons shown by each slot of an LED frame.
+     */
+    private static ButtonID[] buildLedFrameLayout() {
+        final ButtonID[] layout = new ButtonID[103];
+        int slot = 0;
 
         //  - CHANNEL
         //  - PLUG-IN
@@ -482,60 +719,48 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
         //  - SETTINGS
         //  - AUTO
         //  - MACRO
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK)); // Channel
-        ledBuffer.put(this.getColorForButton(ButtonID.DEVICE)); // Plug-in
-        ledBuffer.put(this.getColorForButton(ButtonID.LAYOUT_ARRANGE)); // Arranger
-        ledBuffer.put(this.getColorForButton(ButtonID.LAYOUT_MIX)); // Mixer
-        ledBuffer.put(this.getColorForButton(ButtonID.BROWSE)); // Browser
-        ledBuffer.put(this.getColorForButton(ButtonID.CLIP)); // Sampling
-        ledBuffer.put(this.getColorForButton(ButtonID.PAGE_LEFT)); // Left arrow
-        ledBuffer.put(this.getColorForButton(ButtonID.PAGE_RIGHT)); // Right arrow
-        ledBuffer.put(this.getColorForButton(ButtonID.PROJECT)); // File
-        ledBuffer.put(this.getColorForButton(ButtonID.SETUP)); // Settings
-        ledBuffer.put(this.getColorForButton(ButtonID.AUTOMATION)); // Auto
-        ledBuffer.put(this.getColorForButton(ButtonID.CONVERT)); // Auto
-
-
-        //  - BUTTON 1 to BUTTON 7
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_1));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_2));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_3));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_4));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_5));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_6));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_7));
-        ledBuffer.put(this.getColorForButton(ButtonID.ROW1_8));
+        layout[slot++] = ButtonID.TRACK; // Channel
+        layout[slot++] = ButtonID.DEVICE; // Plug-in
+        layout[slot++] = ButtonID.LAYOUT_ARRANGE; // Arranger
+        layout[slot++] = ButtonID.LAYOUT_MIX; // Mixer
+        layout[slot++] = ButtonID.BROWSE; // Browser
+        layout[slot++] = ButtonID.CLIP; // Sampling
+        layout[slot++] = ButtonID.PAGE_LEFT; // Left arrow
+        layout[slot++] = ButtonID.PAGE_RIGHT; // Right arrow
+        layout[slot++] = ButtonID.PROJECT; // File
+        layout[slot++] = ButtonID.SETUP; // Settings
+        layout[slot++] = ButtonID.AUTOMATION; // Auto
+        layout[slot++] = ButtonID.CONVERT; // Macro
+
+        //  - BUTTON 1 to BUTTON 8
+        for (int i = 0; i < 8; ++i) {
+            layout[slot++] = ButtonID.get(ButtonID.ROW1_1, i);
+        }
 
         //  - VOLUME
         //  - SWING
         //  - NOTE REPEAT
         //  - TEMPO
         //  - LOCK
-        ledBuffer.put(this.getColorForButton(ButtonID.VOLUME));
-        ledBuffer.put(this.getColorForButton(ButtonID.SWING));
-        ledBuffer.put(this.getColorForButton(ButtonID.REPEAT));
-        ledBuffer.put(this.getColorForButton(ButtonID.TAP_TEMPO)); // Tempo
-        ledBuffer.put(this.getColorForButton(ButtonID.OVERDUB)); // Lock
-
+        layout[slot++] = ButtonID.VOLUME;
+        layout[slot++] = ButtonID.SWING;
+        layout[slot++] = ButtonID.REPEAT;
+        layout[slot++] = ButtonID.TAP_TEMPO; // Tempo
+        layout[slot++] = ButtonID.OVERDUB; // Lock
 
         //  - PITCH
         //  - MOD
         //  - PERFORM
         //  - NOTES
-        ledBuffer.put(this.getColorForButton(ButtonID.CONFIGURE_PITCHBEND));
-        ledBuffer.put(this.getColorForButton(ButtonID.ADD_EFFECT));
-        ledBuffer.put(this.getColorForButton(ButtonID.USER));
-        ledBuffer.put(this.getColorForButton(ButtonID.NOTE));
+        layout[slot++] = ButtonID.CONFIGURE_PITCHBEND;
+        layout[slot++] = ButtonID.ADD_EFFECT;
+        layout[slot++] = ButtonID.USER;
+        layout[slot++] = ButtonID.NOTE;
 
         //  - TRACK 1 to 8 [color]
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK_SELECT_1));
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK_SELECT_2));
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK_SELECT_3));
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK_SELECT_4));
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK_SELECT_5));
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK_SELECT_6));
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK_SELECT_7));
-        ledBuffer.put(this.getColorForButton(ButtonID.TRACK_SELECT_8));
+        for (int i = 0; i < 8; ++i) {
+            layout[slot++] = ButtonID.get(ButtonID.TRACK_SELECT_1, i);
+        }
 
         //  - RESTART
         //  - ERASE
@@ -545,27 +770,25 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
         //  - REC
         //  - STOP
         //  - SHIFT
-        ledBuffer.put(this.getColorForButton(ButtonID.LOOP));
-        ledBuffer.put(this.getColorForButton(ButtonID.DELETE));
-        ledBuffer.put(this.getColorForButton(ButtonID.TEMPO_TOUCH));
-        ledBuffer.put(this.getColorForButton(ButtonID.FOLLOW));
-        ledBuffer.put(this.getColorForButton(ButtonID.PLAY));
-        ledBuffer.put(this.getColorForButton(ButtonID.RECORD));
-        ledBuffer.put(this.getColorForButton(ButtonID.STOP));
-        ledBuffer.put(this.getColorForButton(ButtonID.SHIFT));
-
+        layout[slot++] = ButtonID.LOOP;
+        layout[slot++] = ButtonID.DELETE;
+        layout[slot++] = ButtonID.TEMPO_TOUCH;
+        layout[slot++] = ButtonID.FOLLOW;
+        layout[slot++] = ButtonID.PLAY;
+        layout[slot++] = ButtonID.RECORD;
+        layout[slot++] = ButtonID.STOP;
+        layout[slot++] = ButtonID.SHIFT;
 
         //  - FIXED VEL
         //  - PAD MODE
         //  - KEYBOARD
         //  - CHORDS
         //  - STEP
-        ledBuffer.put(this.getColorForButton(ButtonID.ACCENT));
-        ledBuffer.put(this.getColorForButton(ButtonID.DRUM));
-        ledBuffer.put(this.getColorForButton(ButtonID.SCALES));
-        ledBuffer.put(this.getColorForButton(ButtonID.LAYOUT));
-        ledBuffer.put(this.getColorForButton(ButtonID.SEQUENCER));
-
+        layout[slot++] = ButtonID.ACCENT;
+        layout[slot++] = ButtonID.DRUM;
+        layout[slot++] = ButtonID.SCALES;
+        layout[slot++] = ButtonID.LAYOUT;
+        layout[slot++] = ButtonID.SEQUENCER;
 
         //  - SCENE
         //  - PATTERN
@@ -575,36 +798,35 @@ public class MaschineControlSurface extends CommonUIControlSurface<MaschineConfi
         //  - SELECT
         //  - SOLO
         //  - MUTE
-        ledBuffer.put(this.getColorForButton(ButtonID.F1));
-        ledBuffer.put(this.getColorForButton(ButtonID.F2));
-        ledBuffer.put(this.getColorForButton(ButtonID.F3));
-        ledBuffer.put(this.getColorForButton(ButtonID.F4));
-        ledBuffer.put(this.getColorForButton(ButtonID.F5));
-        ledBuffer.put(this.getColorForButton(ButtonID.SELECT));
-        ledBuffer.put(this.getColorForButton(ButtonID.SOLO));
-        ledBuffer.put(this.getColorForButton(ButtonID.MUTE));
-
+        layout[slot++] = ButtonID.F1;
+        layout[slot++] = ButtonID.F2;
+        layout[slot++] = ButtonID.F3;
+        layout[slot++] = ButtonID.F4;
+        layout[slot++] = ButtonID.F5;
+        layout[slot++] = ButtonID.SELECT;
+        layout[slot++] = ButtonID.SOLO;
+        layout[slot++] = ButtonID.MUTE;
 
         //  - ENCODER TOP
         //  - ENCODER LEFT
         //  - ENCODER RIGHT
         //  - ENCODER BOTTOM
-        ledBuffer.put(this.getColorForButton(ButtonID.UP));
-        ledBuffer.put(this.getColorForButton(ButtonID.LEFT));
-        ledBuffer.put(this.getColorForButton(ButtonID.RIGHT));
-        ledBuffer.put(this.getColorForButton(ButtonID.DOWN));
+        layout[slot++] = ButtonID.UP;
+        layout[slot++] = ButtonID.LEFT;
+        layout[slot++] = ButtonID.RIGHT;
+        layout[slot++] = ButtonID.DOWN;
 
         //  - TOUCHSTRIP SEGMENTS 1 to 25
         for (int i = 0; i < 25; ++i) {
-            ledBuffer.put(this.getColorForButton(ButtonID.get(ButtonID.MORE_PADS1, i)));
+            layout[slot++] = ButtonID.get(ButtonID.MORE_PADS1, i);
         }
 
         //  - PADS FROM TOP 1 to 16
         for (int i = 0; i < 16; ++i) {
-            ledBuffer.put(this.getColorForButton(ButtonID.get(ButtonID.PAD1, i)));
+            layout[slot++] = ButtonID.get(ButtonID.PAD1, i);
         }
 
-        this.niConnection.setLedColors(ledColors);
+        return layout;
     }
 
 
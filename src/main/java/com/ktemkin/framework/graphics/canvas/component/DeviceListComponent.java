@@ -4,7 +4,6 @@
 
 package com.ktemkin.framework.graphics.canvas.component;
 
-import com.ktemkin.bitwig.framework.graphics.GraphicsContextImpl;
 import com.ktemkin.framework.graphics.IGraphicsContext;
 import de.mossgrabers.framework.controller.color.ColorEx;
 import de.mossgrabers.framework.graphics.*;
@@ -79,7 +78,7 @@ public class DeviceListComponent implements IComponent {
      */
     @Override
     public void draw(final IGraphicsInfo info) {
-        final IGraphicsContext gc = (GraphicsContextImpl) info.getContext();
+        final IGraphicsContext gc = (IGraphicsContext) info.getContext();
         final IGraphicsDimensions dimensions = info.getDimensions();
         final IGraphicsConfiguration configuration = info.getConfiguration();
         final double left = info.getBounds().left();
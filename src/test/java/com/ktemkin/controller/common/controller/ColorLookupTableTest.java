@@ -0,0 +1,160 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.common.controller;
+
+import com.ktemkin.controller.ableton.push.controller.PushColorManager;
+import de.mossgrabers.framework.controller.color.ColorEx;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+
+/**
+ * Checks that our color lookup tables map palette colors to their own entries, whichever way they match; and that
+ * perceptual matches are cached without ever handing one color another's match.
+ *
+ * @author Kate Temkin
+ */
+class ColorLookupTableTest {
+
+    /**
+     * The number of entries in the Push's palette.
+     */
+    private static final int PUSH_PALETTE_SIZE = 128;
+
+    /**
+     * A small palette for our perceptual tests, with its device colors.
+     */
+    private static final ColorEx[] PALETTE = {
+            ColorEx.BLACK, ColorEx.WHITE, ColorEx.fromRGB(0x40, 0x40, 0x40), ColorEx.fromRGB(0xFF, 0x00, 0x00),
+            ColorEx.fromRGB(0x00, 0xFF, 0x00), ColorEx.fromRGB(0x00, 0x00, 0xFF), ColorEx.fromRGB(0x80, 0x40, 0x00)
+    };
+    private static final int[] DEVICE_COLORS = { 0, 1, 2, 3, 4, 5, 6 };
+
+
+    @Test
+    void pushPaletteColorsMapToTheirOwnEntries() {
+        final ColorEx[] displayColors = new ColorEx[PUSH_PALETTE_SIZE];
+        final int[] deviceColors = new int[PUSH_PALETTE_SIZE];
+        for (int i = 0; i < PUSH_PALETTE_SIZE; ++i) {
+            displayColors[i] = PushColorManager.getPaletteColor(i);
+            deviceColors[i] = i;
+        }
+
+        for (final ColorLookupTable.Matching matching : ColorLookupTable.Matching.values()) {
+            final ColorLookupTable table = new ColorLookupTable(displayColors, deviceColors);
+            table.setMatching(matching);
+
+            // Where the palette repeats a color, the first entry with it is the one we expect.
+            for (int i = 0; i < PUSH_PALETTE_SIZE; ++i) {
+                assertEquals(firstEntryWithColor(displayColors, i), table.getDeviceColor(displayColors[i]), matching + " match for palette entry " + i);
+            }
+        }
+    }
+
+    @Test
+    void closeGraysMapToTheirOwnEntries() {
+        // Both of these grays quantize into the same cell; so only one of them can be that cell's nearest entry.
+        final ColorEx[] displayColors = { ColorEx.fromRGB(0x40, 0x40, 0x40), ColorEx.fromRGB(0x42, 0x42, 0x42), ColorEx.WHITE };
+        final int[] deviceColors = { 10, 11, 12 };
+        final ColorLookupTable table = new ColorLookupTable(displayColors, deviceColors);
+
+        assertEquals(10, table.getDeviceColor(displayColors[0]));
+        assertEquals(11, table.getDeviceColor(displayColors[1]));
+        assertEquals(12, table.getDeviceColor(displayColors[2]));
+    }
+
+    @Test
+    void perceptualMatchesAreCached() {
+        final ColorLookupTable table = createPerceptualTable();
+        final ColorEx color = ColorEx.fromRGB(0x30, 0x28, 0x20);
+
+        final int first = table.getDeviceColor(color);
+        assertEquals(0, table.getCacheHits());
+        assertEquals(1, table.getCacheMisses());
+
+        assertEquals(first, table.getDeviceColor(color));
+        assertEquals(first, table.getDeviceColor(color));
+        assertEquals(2, table.getCacheHits());
+        assertEquals(1, table.getCacheMisses());
+    }
+
+    @Test
+    void paletteColorsBypassThePerceptualCache() {
+        final ColorLookupTable table = createPerceptualTable();
+
+        for (int i = 0; i < PALETTE.length; ++i) {
+            assertEquals(DEVICE_COLORS[i], table.getDeviceColor(PALETTE[i]));
+        }
+        assertEquals(0, table.getCacheHits());
+        assertEquals(0, table.getCacheMisses());
+    }
+
+    @Test
+    void collidingColorsReplaceEachOtherInTheCache() {
+        // Find two colors that share a cache slot, and look differently enough to match different entries.
+        final int first = 0x203040;
+        int second = first + 1;
+        while ((ColorLookupTable.getCacheSlot(second) != ColorLookupTable.getCacheSlot(first)) || (perceptualMatch(second) == perceptualMatch(first))) {
+            ++second;
+        }
+
+        final ColorLookupTable table = createPerceptualTable();
+        final ColorEx firstColor = fromRGB(first);
+        final ColorEx secondColor = fromRGB(second);
+
+        // Each evicts the other, so every lookup misses -- but still gets its own match, never its neighbour's.
+        assertEquals(perceptualMatch(first), table.getDeviceColor(firstColor));
+        assertEquals(perceptualMatch(second), table.getDeviceColor(secondColor));
+        assertEquals(perceptualMatch(first), table.getDeviceColor(firstColor));
+        assertNotEquals(perceptualMatch(first), perceptualMatch(second));
+        assertEquals(0, table.getCacheHits());
+        assertEquals(3, table.getCacheMisses());
+    }
+
+    /**
+     * Creates a table for our small palette, matching perceptually.
+     */
+    private static ColorLookupTable createPerceptualTable() {
+        final ColorLookupTable table = new ColorLookupTable(PALETTE, DEVICE_COLORS);
+        table.setMatching(ColorLookupTable.Matching.PERCEPTUAL);
+        return table;
+    }
+
+    /**
+     * Returns the device color our small palette matches a 24-bit RGB color to; from a table that's never seen another color.
+     */
+    private static int perceptualMatch(int rgb) {
+        return createPerceptualTable().getDeviceColor(fromRGB(rgb));
+    }
+
+    /**
+     * Unpacks a 24-bit RGB color.
+     */
+    private static ColorEx fromRGB(int rgb) {
+        return ColorEx.fromRGB((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+    }
+
+    /**
+     * Returns the index of the first palette entry with the same color as a given entry.
+     */
+    private static int firstEntryWithColor(ColorEx[] palette, int index) {
+        for (int i = 0; i < index; ++i) {
+            if (toRGB(palette[i]) == toRGB(palette[index])) {
+                return i;
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Packs a color into 24-bit RGB.
+     */
+    private static int toRGB(ColorEx color) {
+        return ((int) Math.round(color.getRed() * 255) << 16) | ((int) Math.round(color.getGreen() * 255) << 8) | (int) Math.round(color.getBlue() * 255);
+    }
+}
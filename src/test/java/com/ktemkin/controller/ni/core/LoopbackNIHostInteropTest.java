@@ -0,0 +1,324 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import com.ktemkin.framework.daw.FakeHost;
+import de.mossgrabers.framework.utils.ButtonEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+
+/**
+ * Runs the NI connection stack against the in-process loopback agent: connecting, delivering notifications,
+ * sharing connections, recording and replaying traffic, and queueing requests.
+ *
+ * @author Kate Temkin
+ */
+class LoopbackNIHostInteropTest {
+
+    /**
+     * The device ID our connections claim to be for; a Maschine mk3.
+     */
+    private static final int DEVICE_ID = 0x1600;
+    /**
+     * How long we'll wait for our connection's threads to catch up, before giving up on them.
+     */
+    private static final long TIMEOUT_MS = 5000;
+    /**
+     * Marks the requests our tests push, so they can be told apart from those the connection sends on its own.
+     */
+    private static final int TEST_REQUEST_MARKER = 0x7e000000;
+
+    /**
+     * Every event our handler has received, in order.
+     */
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    /**
+     * Every connection we've created directly, so they can be shut down after each test.
+     */
+    private final List<AbstractNIHostInterop> connections = new ArrayList<>();
+
+    private FakeHost host;
+
+
+    @BeforeEach
+    void setUp() {
+        // Deliver events on the thread that handles the notification, rather than on a host thread we don't have.
+        this.host = new FakeHost();
+        this.host.setRunningScheduledTasks(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.connections.forEach(AbstractNIHostInterop::shutdown);
+
+        System.clearProperty(LoopbackNIHostInterop.LOOPBACK_PROPERTY);
+        System.clearProperty(LoopbackNIHostInterop.LOOPBACK_DROPPED_ACKS_PROPERTY);
+        AbstractNIHostInterop.setTrafficRecorder(null);
+    }
+
+    @Test
+    void connectsOnTheFirstAttempt() throws IOException {
+        final LoopbackNIHostInterop interop = this.connect(DEVICE_ID);
+
+        assertEquals(AbstractNIHostInterop.ConnectionState.CONNECTED, interop.getConnectionState());
+        assertEquals(1, interop.getConnectAttempts());
+        assertEquals(1, interop.getRequestsSent());
+        assertTrue(interop.isUsableForDisplay());
+    }
+
+    @Test
+    void retriesUntilTheSubscriptionIsAcknowledged() throws IOException {
+        System.setProperty(LoopbackNIHostInterop.LOOPBACK_DROPPED_ACKS_PROPERTY, "2");
+
+        final LoopbackNIHostInterop interop = this.connect(DEVICE_ID);
+
+        // Retries should only repeat the subscription; not the whole handshake.
+        assertEquals(AbstractNIHostInterop.ConnectionState.CONNECTED, interop.getConnectionState());
+        assertEquals(3, interop.getConnectAttempts());
+        assertEquals(3, interop.getRequestsSent());
+    }
+
+    @Test
+    void givesUpWhenTheSubscriptionIsNeverAcknowledged() {
+        System.setProperty(LoopbackNIHostInterop.LOOPBACK_DROPPED_ACKS_PROPERTY, String.valueOf(AbstractNIHostInterop.CONNECT_MAX_ATTEMPTS));
+
+        assertThrows(IOException.class, () -> this.connect(DEVICE_ID));
+    }
+
+    @Test
+    void deliversBurstsInOrder() throws IOException {
+        final int burstSize = 4 * AbstractNIHostInterop.NOTIFICATION_QUEUE_CAPACITY;
+        final LoopbackNIHostInterop interop = this.connect(DEVICE_ID);
+
+        for (int i = 0; i < burstSize; ++i) {
+            interop.injectButtonEvent(i, true);
+        }
+        awaitCondition(() -> (interop.getPendingNotificationCount() == 0) && (interop.getNotificationsDelivered() >= burstSize)
+                && (interop.getNotificationsDispatched() + interop.getNotificationsDropped() + interop.getNotificationsFailed() == interop.getNotificationsDelivered()));
+
+        // Anything we couldn't keep up with may be dropped; but what's left must arrive in the order it was sent.
+        int lastButton = -1;
+        for (final String event : this.events) {
+            final int button = Integer.parseInt(event.substring("button ".length(), event.indexOf(':')));
+            assertTrue(button > lastButton, "button " + button + " delivered after button " + lastButton);
+            lastButton = button;
+        }
+        assertTrue(burstSize - this.events.size() <= interop.getNotificationsDropped());
+        assertEquals(0, interop.getNotificationsFailed());
+    }
+
+    @Test
+    void sharesPooledConnectionsUntilTheLastRelease() throws IOException {
+        System.setProperty(LoopbackNIHostInterop.LOOPBACK_PROPERTY, "true");
+
+        final AbstractNIHostInterop first = AbstractNIHostInterop.createInterop(DEVICE_ID + 1, "", this.host.getHost());
+        final AbstractNIHostInterop second = AbstractNIHostInterop.createInterop(DEVICE_ID + 1, "", this.host.getHost());
+        assertSame(first, second);
+        assertEquals(2, first.getReferenceCount());
+
+        first.release();
+        assertEquals(1, first.getReferenceCount());
+        assertEquals(AbstractNIHostInterop.ConnectionState.CONNECTED, first.getConnectionState());
+
+        second.release();
+        assertEquals(0, first.getReferenceCount());
+        assertEquals(AbstractNIHostInterop.ConnectionState.SHUT_DOWN, first.getConnectionState());
+
+        // Once it's been shut down, the next user should get a connection of their own.
+        final AbstractNIHostInterop third = AbstractNIHostInterop.createInterop(DEVICE_ID + 1, "", this.host.getHost());
+        assertNotSame(first, third);
+        assertEquals(1, third.getReferenceCount());
+        third.release();
+    }
+
+    @Test
+    void refusesToShareWithADifferentHandler() throws IOException {
+        System.setProperty(LoopbackNIHostInterop.LOOPBACK_PROPERTY, "true");
+
+        final AbstractNIHostInterop owner = AbstractNIHostInterop.createInterop(DEVICE_ID + 2, "", new RecordingHandler(), this.host.getHost(), false);
+        assertThrows(IOException.class, () -> AbstractNIHostInterop.createInterop(DEVICE_ID + 2, "", new RecordingHandler(), this.host.getHost(), false));
+        assertEquals(1, owner.getReferenceCount());
+
+        owner.release();
+    }
+
+    @Test
+    void replaysRecordedTrafficAsItWasReceived() throws IOException {
+        final Path recording = Files.createTempFile("nihia", ".log");
+        recording.toFile().deleteOnExit();
+
+        // Record a short session...
+        AbstractNIHostInterop.setTrafficRecorder(new NITrafficRecorder(recording, 1024 * 1024, NITrafficRecorder.DisplayRecording.HEADERS));
+        final LoopbackNIHostInterop recorded = this.connect(DEVICE_ID + 3);
+        for (int i = 0; i < 8; ++i) {
+            recorded.injectButtonEvent(i, (i % 2) == 0);
+            recorded.injectPadEvent(i, (i % 2 == 0) ? 1000 + i : 0);
+        }
+        awaitCondition(() -> this.events.size() == 16);
+        recorded.shutdown();
+        AbstractNIHostInterop.setTrafficRecorder(null);
+
+        final List<String> original = new ArrayList<>(this.events);
+        this.events.clear();
+
+        // ... and play it back into a fresh connection, which should see exactly the same events.
+        final NITrafficReplayer replayer = new NITrafficReplayer(recording);
+        final List<byte[]> notifications = replayer.getNotifications(DEVICE_ID + 3);
+        assertEquals(recorded.getNotificationsDelivered(), notifications.size());
+
+        final LoopbackNIHostInterop replayed = this.connect(DEVICE_ID + 3);
+        replayed.injectNotifications(notifications);
+        awaitCondition(() -> this.events.size() == 16);
+
+        assertEquals(original, this.events);
+    }
+
+    @Test
+    void sendsControlRequestsAheadOfDisplayData() throws IOException, InterruptedException {
+        final LoopbackNIHostInterop interop = this.connect(DEVICE_ID + 4);
+        final int displayRequests = AbstractNIHostInterop.REQUEST_QUEUE_DISPLAY_CAPACITY + 2;
+        final int controlRequests = AbstractNIHostInterop.REQUEST_QUEUE_CONTROL_CAPACITY + 3;
+
+        // Hold our writer thread on a first request, so everything after it has to queue up behind it.
+        final CountDownLatch writerHeld = new CountDownLatch(1);
+        final CountDownLatch releaseWriter = new CountDownLatch(1);
+        final List<Integer> sent = new CopyOnWriteArrayList<>();
+        interop.setRequestObserver(request -> {
+            final int id = request.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+            if ((id & 0xff000000) != TEST_REQUEST_MARKER) {
+                return;
+            }
+            if (id == TEST_REQUEST_MARKER) {
+                writerHeld.countDown();
+                awaitLatch(releaseWriter);
+                return;
+            }
+            sent.add(id);
+        });
+
+        assertTrue(interop.pushRequest(testRequest(0)));
+        awaitLatch(writerHeld);
+
+        // Queue more display data than fits, and then more control requests than fit.
+        final List<ByteBuffer> displayBuffers = new ArrayList<>();
+        for (int i = 0; i < displayRequests; ++i) {
+            final ByteBuffer buffer = interop.allocateRequestBuffer(64);
+            buffer.order(ByteOrder.LITTLE_ENDIAN).putInt(0, TEST_REQUEST_MARKER | 0x10000 | i);
+            assertEquals(i < AbstractNIHostInterop.REQUEST_QUEUE_DISPLAY_CAPACITY, interop.pushRequest(buffer, 64));
+            displayBuffers.add(buffer);
+        }
+        for (int i = 0; i < controlRequests; ++i) {
+            assertEquals(i < AbstractNIHostInterop.REQUEST_QUEUE_CONTROL_CAPACITY, interop.pushRequest(testRequest(i + 1)));
+        }
+        assertTrue(interop.isRequestPending(displayBuffers.get(0)));
+
+        releaseWriter.countDown();
+        final int expected = AbstractNIHostInterop.REQUEST_QUEUE_CONTROL_CAPACITY + AbstractNIHostInterop.REQUEST_QUEUE_DISPLAY_CAPACITY;
+        awaitCondition(() -> sent.size() == expected);
+
+        // Every queued control request should go out, in order, before any of the display data behind them.
+        for (int i = 0; i < expected; ++i) {
+            final boolean isControl = i < AbstractNIHostInterop.REQUEST_QUEUE_CONTROL_CAPACITY;
+            final int index = isControl ? i + 1 : i - AbstractNIHostInterop.REQUEST_QUEUE_CONTROL_CAPACITY;
+            assertEquals(TEST_REQUEST_MARKER | (isControl ? 0 : 0x10000) | index, sent.get(i));
+        }
+
+        assertEquals(3, interop.getRequestsDropped(AbstractNIHostInterop.REQUEST_PRIORITY_CONTROL));
+        assertEquals(2, interop.getRequestsDropped(AbstractNIHostInterop.REQUEST_PRIORITY_DISPLAY));
+        assertEquals(AbstractNIHostInterop.REQUEST_QUEUE_DISPLAY_CAPACITY, interop.getRequestsSent(AbstractNIHostInterop.REQUEST_PRIORITY_DISPLAY));
+        assertFalse(interop.isRequestPending(displayBuffers.get(0)));
+    }
+
+    /**
+     * Creates a loopback connection that delivers its events to our handler, and shuts it down after the test.
+     */
+    private LoopbackNIHostInterop connect(int deviceId) throws IOException {
+        final LoopbackNIHostInterop interop = new LoopbackNIHostInterop(deviceId, "", new RecordingHandler(), this.host.getHost(), false);
+        this.connections.add(interop);
+
+        return interop;
+    }
+
+    /**
+     * Creates a small control request that our request observer will recognize as one of ours.
+     */
+    private static byte[] testRequest(int index) {
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(TEST_REQUEST_MARKER | index).array();
+    }
+
+    /**
+     * Waits for our connection's threads to bring about a condition; failing if they don't in time.
+     */
+    private static void awaitCondition(BooleanSupplier condition) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting for the loopback connection.");
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Waits for a latch to be released; failing if it isn't in time.
+     */
+    private static void awaitLatch(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Interrupted while waiting for the loopback connection.");
+        }
+    }
+
+    /**
+     * Records the button and pad events it receives.
+     */
+    private class RecordingHandler implements INIEventHandler {
+
+        @Override
+        public void handleButtonEvent(int rawButtonId, ButtonEvent event) {
+            LoopbackNIHostInteropTest.this.events.add("button " + rawButtonId + ": " + event);
+        }
+
+        @Override
+        public void handleKnobEvent(int rawContinuousId, int newValue) {
+            LoopbackNIHostInteropTest.this.events.add("knob " + rawContinuousId + ": " + newValue);
+        }
+
+        @Override
+        public void handleMainEncoderEvent(long newValue) {
+            LoopbackNIHostInteropTest.this.events.add("main encoder: " + newValue);
+        }
+
+        @Override
+        public void handlePadEvent(int padNumber, long newPressure) {
+            LoopbackNIHostInteropTest.this.events.add("pad " + padNumber + ": " + newPressure);
+        }
+    }
+}
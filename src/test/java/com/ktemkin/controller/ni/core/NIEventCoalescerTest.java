@@ -0,0 +1,221 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import de.mossgrabers.framework.utils.ButtonEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Checks that the coalescer merges knob turns and aftertouch without changing what the event handler ends up seeing.
+ *
+ * @author Kate Temkin
+ */
+class NIEventCoalescerTest {
+
+    /**
+     * A raw encoder value for a single, slow turn in each direction, as the Kontrol reports them.
+     */
+    private static final int TURN_UP = 1 << 29;
+    private static final int TURN_DOWN = -1;
+
+    /**
+     * The drain tasks the coalescer has asked us to run on the "host's thread".
+     */
+    private final List<Runnable> scheduled = new ArrayList<>();
+    /**
+     * Every event our handler has received, in order.
+     */
+    private final List<String> events = new ArrayList<>();
+
+    /**
+     * Whether our handler's shift button is held; changes how turns decode, as on the real surfaces.
+     */
+    private boolean isShiftPressed;
+    private NIEventCoalescer coalescer;
+
+
+    @BeforeEach
+    void setUp() {
+        this.coalescer = new NIEventCoalescer(new RecordingHandler(), this.scheduled::add);
+    }
+
+    @Test
+    void sameDirectionTurnsMergeIntoOneEvent() {
+        for (int i = 0; i < 4; ++i) {
+            this.coalescer.addKnobEvent(2, TURN_DOWN);
+        }
+        this.runScheduled();
+
+        // Each -1 decodes to a step down on its own; merged, they must still be four steps, not one.
+        assertEquals(List.of("knob 2: -4 in 4"), this.events);
+        assertEquals(3, this.coalescer.getKnobEventsMerged());
+        assertEquals(1, this.coalescer.getDrainsRun());
+    }
+
+    @Test
+    void mergedTurnsDecodeLikeSeparateTurns() {
+        final int[] turns = { TURN_UP, TURN_UP * 3, TURN_UP, 0x7fffffff };
+
+        long expected = 0;
+        for (final int turn : turns) {
+            this.coalescer.addKnobEvent(0, turn);
+            expected += decode(turn, false);
+        }
+        this.runScheduled();
+
+        assertEquals(List.of("knob 0: " + expected + " in 4"), this.events);
+    }
+
+    @Test
+    void directionFlipStartsANewEvent() {
+        this.coalescer.addKnobEvent(1, TURN_UP);
+        this.coalescer.addKnobEvent(1, TURN_UP);
+        this.coalescer.addKnobEvent(1, TURN_DOWN);
+        this.coalescer.addKnobEvent(1, TURN_UP);
+        this.runScheduled();
+
+        assertEquals(List.of("knob 1: 2 in 2", "knob 1: -1 in 1", "knob 1: 1 in 1"), this.events);
+        assertEquals(1, this.coalescer.getKnobEventsMerged());
+    }
+
+    @Test
+    void differentKnobsDoNotMerge() {
+        this.coalescer.addKnobEvent(0, TURN_UP);
+        this.coalescer.addKnobEvent(1, TURN_UP);
+        this.coalescer.addKnobEvent(0, TURN_UP);
+        this.runScheduled();
+
+        assertEquals(List.of("knob 0: 2 in 2", "knob 1: 1 in 1"), this.events);
+    }
+
+    @Test
+    void turnsDecodeAfterEarlierButtonsAreHandled() {
+        this.coalescer.addKnobEvent(0, TURN_UP);
+        this.coalescer.addButtonEvent(6, ButtonEvent.DOWN);
+        this.coalescer.addKnobEvent(0, TURN_UP * 2);
+        this.runScheduled();
+
+        // The second turn arrived after shift was pressed, so it has to see shift held when it's decoded.
+        assertEquals(List.of("knob 0: " + decode(TURN_UP, false) + " in 1", "button 6: DOWN", "knob 0: " + decode(TURN_UP * 2, true) + " in 1"), this.events);
+    }
+
+    @Test
+    void aftertouchKeepsOnlyTheLatestPressure() {
+        this.coalescer.addPadEvent(3, 100);
+        this.coalescer.addPadEvent(3, 200);
+        this.coalescer.addPadEvent(3, 300);
+        this.runScheduled();
+
+        assertEquals(List.of("pad 3: 100", "pad 3: 300"), this.events);
+        assertEquals(1, this.coalescer.getPadEventsMerged());
+    }
+
+    @Test
+    void aftertouchIsDroppedBeforeNoteOff() {
+        this.coalescer.addPadEvent(3, 100);
+        this.coalescer.addPadEvent(3, 200);
+        this.coalescer.addPadEvent(3, 300);
+        this.coalescer.addPadEvent(3, 0);
+        this.runScheduled();
+
+        assertEquals(List.of("pad 3: 100", "pad 3: 0"), this.events);
+        assertEquals(2, this.coalescer.getPadEventsMerged());
+    }
+
+    @Test
+    void noteOnAfterReleaseIsNotMerged() {
+        this.coalescer.addPadEvent(3, 100);
+        this.coalescer.addPadEvent(3, 0);
+        this.coalescer.addPadEvent(3, 150);
+        this.coalescer.addPadEvent(3, 160);
+        this.runScheduled();
+
+        assertEquals(List.of("pad 3: 100", "pad 3: 0", "pad 3: 150", "pad 3: 160"), this.events);
+        assertEquals(0, this.coalescer.getPadEventsMerged());
+    }
+
+    @Test
+    void eventsAfterADrainStartAFreshBatch() {
+        this.coalescer.addKnobEvent(0, TURN_UP);
+        this.runScheduled();
+        this.coalescer.addKnobEvent(0, TURN_UP);
+        this.runScheduled();
+
+        assertEquals(List.of("knob 0: 1 in 1", "knob 0: 1 in 1"), this.events);
+        assertEquals(2, this.coalescer.getDrainsRun());
+    }
+
+    /**
+     * Runs every drain task the coalescer has scheduled so far, as the host would on its next tick.
+     */
+    private void runScheduled() {
+        final List<Runnable> tasks = new ArrayList<>(this.scheduled);
+        this.scheduled.clear();
+        tasks.forEach(Runnable::run);
+    }
+
+    /**
+     * Decodes a single turn, as the Kontrol surface does.
+     */
+    private static int decode(int rawValue, boolean isShiftPressed) {
+        int delta = rawValue >> 27;
+        if (!isShiftPressed) {
+            delta = delta >> 2;
+        } else {
+            delta = (delta < 0) ? delta : (delta >> 1);
+        }
+        if (delta < 0) {
+            delta = delta >> 2;
+        }
+
+        return delta;
+    }
+
+    /**
+     * Records each event it receives; holding shift whenever button 6 is down, as the Maschine's shift button is.
+     */
+    private class RecordingHandler implements INIEventHandler {
+
+        @Override
+        public void handleButtonEvent(int rawButtonId, ButtonEvent event) {
+            if (rawButtonId == 6) {
+                NIEventCoalescerTest.this.isShiftPressed = (event != ButtonEvent.UP);
+            }
+            NIEventCoalescerTest.this.events.add("button " + rawButtonId + ": " + event);
+        }
+
+        @Override
+        public void handleKnobEvent(int rawContinuousId, int newValue) {
+            this.handleKnobEvent(rawContinuousId, this.decodeKnobTurn(rawContinuousId, newValue), 1);
+        }
+
+        @Override
+        public int decodeKnobTurn(int rawContinuousId, int rawValue) {
+            return decode(rawValue, NIEventCoalescerTest.this.isShiftPressed);
+        }
+
+        @Override
+        public void handleKnobEvent(int rawContinuousId, long steps, int turns) {
+            NIEventCoalescerTest.this.events.add("knob " + rawContinuousId + ": " + steps + " in " + turns);
+        }
+
+        @Override
+        public void handleMainEncoderEvent(long newValue) {
+            NIEventCoalescerTest.this.events.add("main encoder: " + newValue);
+        }
+
+        @Override
+        public void handlePadEvent(int padNumber, long newPressure) {
+            NIEventCoalescerTest.this.events.add("pad " + padNumber + ": " + newPressure);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.controller.ni.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Checks that the split, parallel display encoder stores and sends exactly what the original serial encoder did.
+ * The reference is a copy of the original encoder, which wrote each pixel into a plain full-screen packet.
+ *
+ * @author Kate Temkin
+ */
+class NIGraphicDisplayEncodeTest {
+
+    /**
+     * The size of the bitmap our graphics framework renders for the two NI displays.
+     */
+    private static final int WIDTH = NIGraphicDisplay.SCREEN_WIDTH * 2;
+    private static final int HEIGHT = NIGraphicDisplay.SCREEN_HEIGHT;
+
+    /**
+     * The layout of the original full-screen packets: header, 2 bytes per pixel, footer.
+     */
+    private static final int HEADER_SIZE = NIGraphicDisplay.DISPLAY_HEADER_LEFT.length;
+    private static final int DATA_SIZE = NIGraphicDisplay.SCREEN_WIDTH * NIGraphicDisplay.SCREEN_HEIGHT * 2;
+    private static final int PACKET_SIZE = HEADER_SIZE + DATA_SIZE + NIGraphicDisplay.DISPLAY_FOOTER.length;
+
+    /**
+     * Stands in for the display's encode worker.
+     */
+    private ExecutorService encodeExecutor;
+
+
+    @BeforeEach
+    void setUp() {
+        this.encodeExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.encodeExecutor.shutdownNow();
+    }
+
+    @Test
+    void firstFrameMatchesSerialEncoder() throws Exception {
+        final NIGraphicDisplay.Screen left = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_LEFT);
+        final NIGraphicDisplay.Screen right = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_RIGHT);
+        final ByteBuffer bitmap = createBitmap(1);
+
+        final byte[][] expected = encodeSerial(bitmap);
+        this.encodeParallel(left, right, bitmap);
+
+        assertPixelsMatch(expected[0], left);
+        assertPixelsMatch(expected[1], right);
+    }
+
+    @Test
+    void fullScreenPacketMatchesSerialPacket() throws Exception {
+        final NIGraphicDisplay.Screen left = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_LEFT);
+        final NIGraphicDisplay.Screen right = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_RIGHT);
+        final ByteBuffer bitmap = createBitmap(3);
+
+        final byte[][] expected = encodeSerial(bitmap);
+        this.encodeParallel(left, right, bitmap);
+
+        // The first frame of a display always covers the whole screen; so it must go out exactly as it used to.
+        assertArrayEquals(expected[0], buildPacket(left));
+        assertArrayEquals(expected[1], buildPacket(right));
+
+        // The same goes for any later frame that's forced to be sent in full.
+        left.clearRegion();
+        left.markAll();
+        assertArrayEquals(expected[0], buildPacket(left));
+    }
+
+    @Test
+    void changedFrameMatchesSerialEncoder() throws Exception {
+        final NIGraphicDisplay.Screen left = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_LEFT);
+        final NIGraphicDisplay.Screen right = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_RIGHT);
+        final ByteBuffer first = createBitmap(1);
+        final ByteBuffer second = createBitmap(1);
+
+        // Change a patch that straddles the split between the two displays.
+        for (int y = 100; y < 140; y++) {
+            for (int x = NIGraphicDisplay.SCREEN_WIDTH - 21; x < NIGraphicDisplay.SCREEN_WIDTH + 30; x++) {
+                second.putInt(((y * WIDTH) + x) * 4, 0xFF00FF00 ^ (x * y));
+            }
+        }
+
+        final byte[][] expectedFirst = encodeSerial(first);
+        final byte[][] expectedSecond = encodeSerial(second);
+
+        this.encodeParallel(left, right, first);
+        left.clearRegion();
+        right.clearRegion();
+        this.encodeParallel(left, right, second);
+
+        assertPixelsMatch(expectedSecond[0], left);
+        assertPixelsMatch(expectedSecond[1], right);
+        assertRegionMatches(expectedFirst[0], expectedSecond[0], left);
+        assertRegionMatches(expectedFirst[1], expectedSecond[1], right);
+    }
+
+    @Test
+    void unchangedFrameMarksNothing() throws Exception {
+        final NIGraphicDisplay.Screen left = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_LEFT);
+        final NIGraphicDisplay.Screen right = new NIGraphicDisplay.Screen(null, NIGraphicDisplay.DISPLAY_HEADER_RIGHT);
+        final ByteBuffer bitmap = createBitmap(7);
+
+        this.encodeParallel(left, right, bitmap);
+        left.clearRegion();
+        right.clearRegion();
+        left.isChanged = false;
+        right.isChanged = false;
+
+        this.encodeParallel(left, right, bitmap);
+        assertFalse(left.isChanged || left.isPending());
+        assertFalse(right.isChanged || right.isPending());
+    }
+
+
+    /**
+     * Checks that a display stores the same pixels, in the same byte order, as the reference packet.
+     */
+    private static void assertPixelsMatch(final byte[] expected, final NIGraphicDisplay.Screen screen) {
+        final byte[] actual = new byte[DATA_SIZE];
+        screen.byteStore.get(HEADER_SIZE, actual);
+        assertArrayEquals(Arrays.copyOfRange(expected, HEADER_SIZE, HEADER_SIZE + DATA_SIZE), actual);
+    }
+
+    /**
+     * Checks that a display marked exactly the pixels that differ between two reference packets,
+     * and that its region packet carries those pixels' rows as the reference has them.
+     */
+    private static void assertRegionMatches(final byte[] before, final byte[] after, final NIGraphicDisplay.Screen screen) {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = -1;
+        int maxY = -1;
+
+        for (int y = 0; y < NIGraphicDisplay.SCREEN_HEIGHT; y++) {
+            for (int x = 0; x < NIGraphicDisplay.SCREEN_WIDTH; x++) {
+                final int index = HEADER_SIZE + ((y * NIGraphicDisplay.SCREEN_WIDTH) + x) * 2;
+                if ((before[index] != after[index]) || (before[index + 1] != after[index + 1])) {
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    maxX = Math.max(maxX, x);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+
+        assertTrue(maxX >= 0, "test frame must change this display");
+        assertTrue(screen.isChanged);
+        assertEquals(minX, screen.minX);
+        assertEquals(minY, screen.minY);
+        assertEquals(maxX, screen.maxX);
+        assertEquals(maxY, screen.maxY);
+
+        // The region is sent widened to pixel pairs.
+        final int x = minX & ~1;
+        final int width = (maxX | 1) - x + 1;
+        final int rowSize = width * 2;
+        final byte[] packet = buildPacket(screen);
+
+        for (int row = minY; row <= maxY; row++) {
+            final int expectedOffset = HEADER_SIZE + ((row * NIGraphicDisplay.SCREEN_WIDTH) + x) * 2;
+            final int actualOffset = HEADER_SIZE + (row - minY) * rowSize;
+            assertArrayEquals(Arrays.copyOfRange(after, expectedOffset, expectedOffset + rowSize), Arrays.copyOfRange(packet, actualOffset, actualOffset + rowSize));
+        }
+    }
+
+    /**
+     * Assembles a display's region packet, and returns the bytes that would be sent.
+     */
+    private static byte[] buildPacket(final NIGraphicDisplay.Screen screen) {
+        final ByteBuffer packetStore = screen.packetStores[0];
+        final byte[] packet = new byte[screen.buildRegionPacket(packetStore)];
+        packetStore.get(0, packet);
+        return packet;
+    }
+
+    /**
+     * Encodes a frame the way NIGraphicDisplay.send() does: the left display on a worker, the right one on this thread.
+     */
+    private void encodeParallel(final NIGraphicDisplay.Screen left, final NIGraphicDisplay.Screen right, final ByteBuffer bitmap) throws Exception {
+        final IntBuffer pixels = bitmap.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+        final Future<?> leftEncode = this.encodeExecutor.submit(() -> NIGraphicDisplay.encodeScreen(left, pixels, WIDTH, HEIGHT, 0));
+        NIGraphicDisplay.encodeScreen(right, pixels, WIDTH, HEIGHT, WIDTH / 2);
+        leftEncode.get();
+    }
+
+    /**
+     * The encoder NIGraphicDisplay used before the displays were split: walks every pixel of each row,
+     * branches on the split between the two displays for each one, and writes it into a full-screen packet.
+     *
+     * @return The left and right display's packets, exactly as they were sent.
+     */
+    private static byte[][] encodeSerial(final ByteBuffer bitmap) {
+        final ByteBuffer imageBuffer = bitmap.duplicate();
+        final byte[] byteStoreLeft = new byte[PACKET_SIZE];
+        final byte[] byteStoreRight = new byte[PACKET_SIZE];
+
+        System.arraycopy(NIGraphicDisplay.DISPLAY_HEADER_LEFT, 0, byteStoreLeft, 0, HEADER_SIZE);
+        System.arraycopy(NIGraphicDisplay.DISPLAY_HEADER_RIGHT, 0, byteStoreRight, 0, HEADER_SIZE);
+
+        final int footerOffset = PACKET_SIZE - NIGraphicDisplay.DISPLAY_FOOTER.length;
+        System.arraycopy(NIGraphicDisplay.DISPLAY_FOOTER, 0, byteStoreLeft, footerOffset, NIGraphicDisplay.DISPLAY_FOOTER.length);
+        System.arraycopy(NIGraphicDisplay.DISPLAY_FOOTER, 0, byteStoreRight, footerOffset, NIGraphicDisplay.DISPLAY_FOOTER.length);
+
+        int leftIndex = HEADER_SIZE;
+        int rightIndex = HEADER_SIZE;
+
+        final int screenSplitBoundary = WIDTH / 2;
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                final int blue = imageBuffer.get();
+                final int green = imageBuffer.get();
+                final int red = imageBuffer.get();
+                imageBuffer.get(); // Drop unused Alpha
+
+                final int pixel = sPixelFromRGB(red, green, blue);
+
+                if (x < screenSplitBoundary) {
+                    byteStoreLeft[leftIndex + 1] = (byte) (pixel & 0x00FF);
+                    byteStoreLeft[leftIndex] = (byte) ((pixel & 0xFF00) >> 8);
+                    leftIndex += 2;
+                } else {
+                    byteStoreRight[rightIndex + 1] = (byte) (pixel & 0x00FF);
+                    byteStoreRight[rightIndex] = (byte) ((pixel & 0xFF00) >> 8);
+                    rightIndex += 2;
+                }
+            }
+        }
+
+        return new byte[][] { byteStoreLeft, byteStoreRight };
+    }
+
+    /**
+     * The serial encoder's RGB565 conversion.
+     */
+    private static int sPixelFromRGB(final int red, final int green, final int blue) {
+        int pixel = (red & 0xF8) >> 3;
+        pixel <<= 6;
+        pixel += (green & 0xFC) >> 2;
+        pixel <<= 5;
+        pixel += (blue & 0xF8) >> 3;
+        return pixel;
+    }
+
+    /**
+     * Builds a fixed BGRA bitmap, laid out the way our graphics framework hands it to the encoder:
+     * gradients across both displays, with pseudo-random noise so neighbouring pixels differ.
+     */
+    private static ByteBuffer createBitmap(final int seed) {
+        final ByteBuffer bitmap = ByteBuffer.allocate(WIDTH * HEIGHT * 4);
+        int noise = seed;
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                noise = (noise * 1103515245) + 12345;
+
+                bitmap.put((byte) ((x * 255) / WIDTH));
+                bitmap.put((byte) ((y * 255) / HEIGHT));
+                bitmap.put((byte) (noise >>> 16));
+                bitmap.put((byte) (noise >>> 24));
+            }
+        }
+
+        return bitmap.rewind();
+    }
+}
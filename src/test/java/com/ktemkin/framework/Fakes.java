@@ -0,0 +1,130 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+
+/**
+ * Creates stand-ins for DrivenByMoss interfaces, so our code can run without a host.
+ * <p>
+ * Those interfaces are large, belong to DrivenByMoss, and grow between releases; so rather than implementing every
+ * method, a fake answers the calls it cares about and gives every other call a harmless default.
+ *
+ * @author Kate Temkin
+ */
+public final class Fakes {
+
+    /**
+     * Returned by an answer to fall back to the default value for a call.
+     */
+    public static final Object DEFAULT = new Object();
+
+
+    /**
+     * Answers a call made on a fake.
+     */
+    @FunctionalInterface
+    public interface IAnswer {
+
+        /**
+         * @param method The method that was called.
+         * @param args   The call's arguments; never null.
+         * @return The call's result; or DEFAULT to fall back to the default value.
+         */
+        Object answer(Method method, Object[] args) throws Throwable;
+    }
+
+
+    private Fakes() {
+        // Intentionally empty
+    }
+
+
+    /**
+     * Creates a fake.
+     *
+     * @param type   The interface to implement.
+     * @param answer Answers the calls the fake cares about.
+     * @param <T>    The interface to implement.
+     * @return The fake.
+     */
+    public static <T> T create(final Class<T> type, final IAnswer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            final Object[] arguments = (args == null) ? new Object[0] : args;
+
+            switch (method.getName()) {
+                case "equals":
+                    if (arguments.length == 1) {
+                        return proxy == arguments[0];
+                    }
+                    break;
+                case "hashCode":
+                    if (arguments.length == 0) {
+                        return System.identityHashCode(proxy);
+                    }
+                    break;
+                case "toString":
+                    if (arguments.length == 0) {
+                        return "Fake " + type.getSimpleName();
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            final Object result = answer.answer(method, arguments);
+            return (result == DEFAULT) ? defaultValue(method.getReturnType()) : result;
+        }));
+    }
+
+
+    /**
+     * Boxes a number as the primitive type a method returns.
+     *
+     * @param type  The type to return.
+     * @param value The value to return.
+     * @return The boxed value.
+     */
+    public static Object number(final Class<?> type, final double value) {
+        if ((type == int.class) || (type == Integer.class)) {
+            return (int) value;
+        }
+        if ((type == long.class) || (type == Long.class)) {
+            return (long) value;
+        }
+        if ((type == float.class) || (type == Float.class)) {
+            return (float) value;
+        }
+        return value;
+    }
+
+
+    /**
+     * @return The value a fake returns for a call it doesn't answer: zero, false, an empty string, or null.
+     */
+    private static Object defaultValue(final Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == char.class) {
+            return (char) 0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type.isPrimitive() && (type != void.class)) {
+            return number(type, 0);
+        }
+        if (type == String.class) {
+            return "";
+        }
+        return null;
+    }
+}
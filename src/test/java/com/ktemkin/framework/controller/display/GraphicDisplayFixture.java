@@ -0,0 +1,198 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.controller.display;
+
+import com.ktemkin.framework.daw.FakeHost;
+import com.ktemkin.framework.daw.resource.DBKResourceHandler;
+import com.ktemkin.framework.graphics.FakeGraphicsConfiguration;
+import com.ktemkin.framework.graphics.OffscreenBitmap;
+import de.mossgrabers.framework.daw.IHost;
+import de.mossgrabers.framework.daw.resource.ResourceHandler;
+import de.mossgrabers.framework.graphics.DefaultGraphicsDimensions;
+import de.mossgrabers.framework.graphics.IBitmap;
+import de.mossgrabers.framework.graphics.IGraphicsConfiguration;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Drives a graphic display on a plain JVM: a scene adds its elements to the display, just as a mode would, and the
+ * display renders them offscreen. Lets us check and time rendering without a running Bitwig.
+ *
+ * @author Kate Temkin
+ */
+public class GraphicDisplayFixture implements AutoCloseable {
+
+    /**
+     * The size of the virtual display spread across the two NI displays.
+     */
+    public static final int NI_DISPLAY_WIDTH = 960;
+    public static final int NI_DISPLAY_HEIGHT = 272;
+
+    /**
+     * The upper bound of parameter values; that of our controllers' value changers.
+     */
+    public static final int MAX_PARAMETER_VALUE = 1024;
+
+    /**
+     * How long we wait for the display to send a frame, in seconds.
+     */
+    private static final long FRAME_TIMEOUT = 10;
+
+    private final FakeHost host = new FakeHost();
+    private final OffscreenGraphicDisplay display;
+
+    /**
+     * Released each time the display sends a frame.
+     */
+    private final Semaphore framesSent = new Semaphore(0);
+
+    /**
+     * The bitmap the display last sent.
+     */
+    private volatile OffscreenBitmap lastFrame;
+
+    /**
+     * Called with each frame the display sends, on the thread that sends it; or null.
+     */
+    private volatile Consumer<IBitmap> frameListener;
+
+
+    /**
+     * Constructor. Creates a display the size of the NI displays.
+     */
+    public GraphicDisplayFixture() {
+        this(NI_DISPLAY_WIDTH, NI_DISPLAY_HEIGHT);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param width  The width of the display, in pixels.
+     * @param height The height of the display, in pixels.
+     */
+    public GraphicDisplayFixture(final int width, final int height) {
+        final IHost fakeHost = this.host.getHost();
+
+        // Our components fetch their icons from the resource handlers, which a controller setup would have initialized.
+        ResourceHandler.init(fakeHost);
+        DBKResourceHandler.init(fakeHost);
+
+        this.display = new OffscreenGraphicDisplay(fakeHost, FakeGraphicsConfiguration.create(), width, height);
+    }
+
+
+    /**
+     * Renders a scene, and waits for the display to send it.
+     *
+     * @param scene Adds the scene's elements to the display.
+     * @return A copy of the frame the display sent.
+     */
+    public BufferedImage render(final Consumer<IGraphicDisplay> scene) {
+        this.sendFrame(scene);
+        return this.lastFrame.copyImage();
+    }
+
+
+    /**
+     * Renders a scene, and waits for the display to send it; without copying the frame.
+     *
+     * @param scene Adds the scene's elements to the display.
+     */
+    public void sendFrame(final Consumer<IGraphicDisplay> scene) {
+        this.framesSent.drainPermits();
+
+        scene.accept(this.display);
+        this.display.send();
+
+        try {
+            if (!this.framesSent.tryAcquire(FRAME_TIMEOUT, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("The display didn't send a frame within " + FRAME_TIMEOUT + " seconds.");
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a frame.", ex);
+        }
+    }
+
+
+    /**
+     * Sets a listener that's called with each frame the display sends, on the thread that sends it;
+     * e.g. to encode the frame as a device display would.
+     *
+     * @param frameListener The listener; or null for none.
+     */
+    public void setFrameListener(final Consumer<IBitmap> frameListener) {
+        this.frameListener = frameListener;
+    }
+
+
+    /**
+     * @return The fake host the display runs on.
+     */
+    public FakeHost getHost() {
+        return this.host;
+    }
+
+
+    /**
+     * @return The display being driven.
+     */
+    public IGraphicDisplay getDisplay() {
+        return this.display;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        this.display.shutdown();
+    }
+
+
+    /**
+     * A graphic display that hands its frames back to our fixture, rather than to a device.
+     */
+    private class OffscreenGraphicDisplay extends AbstractGraphicDisplay {
+
+        OffscreenGraphicDisplay(final IHost host, final IGraphicsConfiguration configuration, final int width, final int height) {
+            super(host, configuration, new DefaultGraphicsDimensions(width, height, MAX_PARAMETER_VALUE), "Offscreen Display", true, 0.7);
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void notify(final String message) {
+            if (message == null)
+                return;
+
+            this.host.showNotification(message);
+            this.setNotificationMessage(message);
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void send(final IBitmap image) {
+            final Consumer<IBitmap> listener = GraphicDisplayFixture.this.frameListener;
+            if (listener != null) {
+                listener.accept(image);
+            }
+
+            GraphicDisplayFixture.this.lastFrame = (OffscreenBitmap) image;
+            GraphicDisplayFixture.this.framesSent.release();
+        }
+    }
+}
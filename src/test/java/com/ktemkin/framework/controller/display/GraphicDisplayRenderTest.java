@@ -0,0 +1,148 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.controller.display;
+
+import com.ktemkin.framework.graphics.GoldenImages;
+import de.mossgrabers.framework.controller.color.ColorEx;
+import de.mossgrabers.framework.daw.resource.ChannelType;
+import de.mossgrabers.framework.graphics.IImage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Renders our graphics components offscreen, with synthetic mode data, and checks them against golden images.
+ *
+ * @author Kate Temkin
+ */
+class GraphicDisplayRenderTest {
+
+    private static final String[] DEVICES = { "Polysynth", "EQ+", "Compressor", "Delay+", "Reverb", "Filter", "Chorus+", "Phaser", "Tool", "Bit-8", "Transient Control", "Spectrum" };
+
+    private GraphicDisplayFixture fixture;
+
+
+    @BeforeEach
+    void setUp() {
+        this.fixture = new GraphicDisplayFixture();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.fixture.close();
+    }
+
+    @Test
+    void parameterPageMatchesGolden() throws Exception {
+        this.assertRendersGolden("parameter-page", GraphicDisplayRenderTest::addParameterPage);
+    }
+
+    @Test
+    void mixerPageMatchesGolden() throws Exception {
+        this.assertRendersGolden("mixer-page", GraphicDisplayRenderTest::addMixerPage);
+    }
+
+    @Test
+    void deviceListMatchesGolden() throws Exception {
+        this.assertRendersGolden("device-list", GraphicDisplayRenderTest::addDeviceList);
+    }
+
+    @Test
+    void encodedFrameMatchesRenderedFrame() {
+        final int[] encoded = new int[GraphicDisplayFixture.NI_DISPLAY_WIDTH * GraphicDisplayFixture.NI_DISPLAY_HEIGHT];
+        this.fixture.setFrameListener(image -> image.encode((imageBuffer, width, height) -> {
+            final IntBuffer pixels = imageBuffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            pixels.get(encoded);
+        }));
+
+        final BufferedImage frame = this.fixture.render(GraphicDisplayRenderTest::addParameterPage);
+
+        // Encoders read our bitmaps as little-endian ARGB words; i.e. as B, G, R, A bytes.
+        for (int y = 0; y < frame.getHeight(); y += 17) {
+            for (int x = 0; x < frame.getWidth(); x += 13) {
+                assertEquals(frame.getRGB(x, y), encoded[(y * frame.getWidth()) + x]);
+            }
+        }
+    }
+
+
+    /**
+     * Renders a scene, checks that it produced a plausible frame without errors, and compares it to its golden image.
+     */
+    private void assertRendersGolden(final String name, final Consumer<IGraphicDisplay> scene) throws Exception {
+        final BufferedImage frame = this.fixture.render(scene);
+
+        assertEquals(GraphicDisplayFixture.NI_DISPLAY_WIDTH, frame.getWidth());
+        assertEquals(GraphicDisplayFixture.NI_DISPLAY_HEIGHT, frame.getHeight());
+        assertTrue(this.fixture.getHost().getErrors().isEmpty(), () -> "host errors: " + this.fixture.getHost().getErrors());
+        assertTrue(countColors(frame) > 2, "frame is blank");
+
+        GoldenImages.assertMatches(name, frame);
+    }
+
+
+    /**
+     * Adds a page of eight device parameters, as the parameters mode would.
+     */
+    static void addParameterPage(final IGraphicDisplay display) {
+        for (int i = 0; i < 8; i++) {
+            final int value = (i * GraphicDisplayFixture.MAX_PARAMETER_VALUE) / 8;
+            display.addParameterElement("Page " + (i + 1), i == 0, DEVICES[i], ChannelType.AUDIO, ColorEx.ORANGE, i == 2, "Param " + (i + 1), value, value + "%", i == 3, value);
+        }
+    }
+
+
+    /**
+     * Adds eight mixer channels, as the volume mode would.
+     */
+    static void addMixerPage(final IGraphicDisplay display) {
+        for (int i = 0; i < 8; i++) {
+            final int volume = ((i + 1) * GraphicDisplayFixture.MAX_PARAMETER_VALUE) / 9;
+            final int pan = GraphicDisplayFixture.MAX_PARAMETER_VALUE / 2;
+            display.addChannelElement(AbstractGraphicDisplay.GRID_ELEMENT_CHANNEL_VOLUME, "Volume", i == 0, "Track " + (i + 1), ChannelType.AUDIO, ColorEx.BLUE, i == 1, volume, volume, (i == 1) ? "-6.0 dB" : "", pan, pan, "", volume, volume / 2, i == 2, i == 3, i == 4, true, 0, false);
+        }
+    }
+
+
+    /**
+     * Adds a device list, as the device browser would.
+     */
+    static void addDeviceList(final IGraphicDisplay display) {
+        final IImage[] icons = new IImage[DEVICES.length];
+        final ColorEx[] colors = new ColorEx[DEVICES.length];
+        final boolean[] isBold = new boolean[DEVICES.length];
+        for (int i = 0; i < DEVICES.length; i++) {
+            colors[i] = (i == 4) ? ColorEx.ORANGE : ColorEx.WHITE;
+            isBold[i] = i == 4;
+        }
+
+        display.addDeviceListElement(DEVICES, icons, colors, isBold, 4, 8);
+    }
+
+
+    /**
+     * @return The number of distinct colors in a frame, up to a handful.
+     */
+    private static int countColors(final BufferedImage frame) {
+        final Set<Integer> colors = new HashSet<>();
+        for (int y = 0; (y < frame.getHeight()) && (colors.size() < 8); y++) {
+            for (int x = 0; x < frame.getWidth(); x++) {
+                colors.add(frame.getRGB(x, y));
+            }
+        }
+        return colors.size();
+    }
+}
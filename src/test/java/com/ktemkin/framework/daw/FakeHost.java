@@ -0,0 +1,156 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.daw;
+
+import com.ktemkin.framework.Fakes;
+import com.ktemkin.framework.graphics.OffscreenBitmap;
+import de.mossgrabers.framework.daw.IHost;
+import de.mossgrabers.framework.daw.IMemoryBlock;
+import de.mossgrabers.framework.graphics.IImage;
+import de.mossgrabers.framework.usb.IUsbDevice;
+import de.mossgrabers.framework.usb.IUsbEndpoint;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A host that lets our controllers run on a plain JVM: bitmaps render offscreen, images are placeholders of a fixed
+ * size, memory blocks are plain direct buffers, and USB transfers go nowhere. Errors and notifications are collected,
+ * and USB transfers counted, for tests to check. Everything else does nothing.
+ *
+ * @author Kate Temkin
+ */
+public class FakeHost {
+
+    /**
+     * The size of the placeholder for every image we're asked to load, in pixels.
+     */
+    public static final int IMAGE_SIZE = 20;
+
+    private final IHost host;
+    private final List<String> errors = new CopyOnWriteArrayList<>();
+    private final List<String> notifications = new CopyOnWriteArrayList<>();
+    private final AtomicLong usbTransfers = new AtomicLong();
+
+    /**
+     * If set, scheduled tasks run immediately, on the thread that schedules them; as if it were the host's thread.
+     */
+    private volatile boolean isRunningScheduledTasks;
+
+
+    /**
+     * Constructor.
+     */
+    public FakeHost() {
+        this.host = Fakes.create(IHost.class, (method, args) -> {
+            switch (method.getName()) {
+                case "createBitmap":
+                    return new OffscreenBitmap((Integer) args[0], (Integer) args[1]);
+                case "loadSVG":
+                    return createImage();
+                case "createMemoryBlock":
+                    return createMemoryBlock((Integer) args[0]);
+                case "getUsbDevice":
+                    return this.createUsbDevice();
+                case "scheduleTask":
+                    if (this.isRunningScheduledTasks) {
+                        ((Runnable) args[0]).run();
+                    }
+                    return Fakes.DEFAULT;
+                case "error":
+                    this.errors.add(args[0] + ((args.length > 1) ? ": " + args[1] : ""));
+                    return Fakes.DEFAULT;
+                case "showNotification":
+                    this.notifications.add(String.valueOf(args[0]));
+                    return Fakes.DEFAULT;
+                default:
+                    return Fakes.DEFAULT;
+            }
+        });
+    }
+
+
+    /**
+     * @return The host, to hand to the code under test.
+     */
+    public IHost getHost() {
+        return this.host;
+    }
+
+
+    /**
+     * @return Every error reported to the host, in order.
+     */
+    public List<String> getErrors() {
+        return this.errors;
+    }
+
+
+    /**
+     * @return Every notification shown by the host, in order.
+     */
+    public List<String> getNotifications() {
+        return this.notifications;
+    }
+
+
+    /**
+     * @return The number of memory blocks sent to any USB endpoint.
+     */
+    public long getUsbTransfers() {
+        return this.usbTransfers.get();
+    }
+
+
+    /**
+     * Sets whether scheduled tasks run immediately, rather than never. Only for code that schedules its work from
+     * the thread that drives it, and never reschedules itself.
+     *
+     * @param isRunningScheduledTasks True to run scheduled tasks immediately.
+     */
+    public void setRunningScheduledTasks(final boolean isRunningScheduledTasks) {
+        this.isRunningScheduledTasks = isRunningScheduledTasks;
+    }
+
+
+    /**
+     * Creates a USB device whose endpoints count the blocks sent to them, and otherwise drop them.
+     */
+    private IUsbDevice createUsbDevice() {
+        final IUsbEndpoint endpoint = Fakes.create(IUsbEndpoint.class, (method, args) -> {
+            if (method.getName().equals("send")) {
+                this.usbTransfers.incrementAndGet();
+            }
+            return Fakes.DEFAULT;
+        });
+
+        return Fakes.create(IUsbDevice.class, (method, args) -> method.getName().equals("getEndpoint") ? endpoint : Fakes.DEFAULT);
+    }
+
+
+    /**
+     * Creates a memory block of the given size, backed by a direct buffer.
+     */
+    private static IMemoryBlock createMemoryBlock(final int size) {
+        final ByteBuffer memory = ByteBuffer.allocateDirect(size);
+        return Fakes.create(IMemoryBlock.class, (method, args) -> method.getName().equals("createByteBuffer") ? memory.duplicate() : Fakes.DEFAULT);
+    }
+
+
+    /**
+     * Creates a placeholder image.
+     */
+    private static IImage createImage() {
+        return Fakes.create(IImage.class, (method, args) -> {
+            if (method.getName().equals("getWidth") || method.getName().equals("getHeight")) {
+                return Fakes.number(method.getReturnType(), IMAGE_SIZE);
+            }
+            return Fakes.DEFAULT;
+        });
+    }
+}
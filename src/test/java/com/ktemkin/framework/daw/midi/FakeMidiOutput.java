@@ -0,0 +1,52 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.daw.midi;
+
+import com.ktemkin.framework.Fakes;
+import de.mossgrabers.framework.daw.midi.IMidiOutput;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A MIDI output that goes nowhere: every message sent to it is counted, for tests and benchmarks to check, and then
+ * dropped. Lets surfaces that drive LEDs or forward notes over MIDI run on a plain JVM.
+ *
+ * @author Kate Temkin
+ */
+public class FakeMidiOutput {
+
+    private final IMidiOutput output;
+    private final AtomicLong messagesSent = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     */
+    public FakeMidiOutput() {
+        this.output = Fakes.create(IMidiOutput.class, (method, args) -> {
+            if (method.getName().startsWith("send")) {
+                this.messagesSent.incrementAndGet();
+            }
+            return Fakes.DEFAULT;
+        });
+    }
+
+
+    /**
+     * @return The output, to hand to the code under test.
+     */
+    public IMidiOutput getOutput() {
+        return this.output;
+    }
+
+
+    /**
+     * @return The number of messages sent to the output, of any kind.
+     */
+    public long getMessagesSent() {
+        return this.messagesSent.get();
+    }
+}
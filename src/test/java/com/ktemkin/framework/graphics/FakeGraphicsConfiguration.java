@@ -0,0 +1,59 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.graphics;
+
+import com.ktemkin.framework.Fakes;
+import de.mossgrabers.framework.controller.color.ColorEx;
+import de.mossgrabers.framework.graphics.IGraphicsConfiguration;
+
+import java.util.Map;
+
+
+/**
+ * Creates graphics configurations with fixed colors, so rendered frames don't depend on anyone's settings.
+ *
+ * @author Kate Temkin
+ */
+public final class FakeGraphicsConfiguration {
+
+    /**
+     * The colors of the display elements; the defaults of our controllers' configurations.
+     */
+    private static final Map<String, ColorEx> COLORS = Map.ofEntries(
+            Map.entry("getColorBackground", ColorEx.fromRGB(83, 83, 83)),
+            Map.entry("getColorBackgroundDarker", ColorEx.fromRGB(39, 39, 39)),
+            Map.entry("getColorBackgroundLighter", ColorEx.fromRGB(118, 118, 118)),
+            Map.entry("getColorBorder", ColorEx.BLACK),
+            Map.entry("getColorText", ColorEx.WHITE),
+            Map.entry("getColorFader", ColorEx.fromRGB(69, 44, 19)),
+            Map.entry("getColorVu", ColorEx.GREEN),
+            Map.entry("getColorEdit", ColorEx.fromRGB(240, 127, 17)),
+            Map.entry("getColorRecord", ColorEx.RED),
+            Map.entry("getColorSolo", ColorEx.YELLOW),
+            Map.entry("getColorMute", ColorEx.fromRGB(245, 129, 17)));
+
+
+    private FakeGraphicsConfiguration() {
+        // Intentionally empty
+    }
+
+
+    /**
+     * Creates a configuration with our fixed colors, with anti-aliasing on.
+     *
+     * @return The configuration.
+     */
+    public static IGraphicsConfiguration create() {
+        return Fakes.create(IGraphicsConfiguration.class, (method, args) -> {
+            if (method.getReturnType() == ColorEx.class) {
+                return COLORS.getOrDefault(method.getName(), ColorEx.GRAY);
+            }
+            if (method.getName().equals("isAntialiasEnabled")) {
+                return Boolean.TRUE;
+            }
+            return Fakes.DEFAULT;
+        });
+    }
+}
@@ -0,0 +1,116 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.graphics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+/**
+ * Compares rendered frames against the golden images checked in under src/test/resources/golden.
+ * <p>
+ * Text is drawn with the JVM's own fonts, which differ slightly between platforms; so a few pixels may differ by a
+ * little. Run the tests with -Ddbk.golden.update=true to record new golden images after an intended change.
+ * Whenever a frame doesn't match, or has no golden image yet, it's written to target/golden for review.
+ *
+ * @author Kate Temkin
+ */
+public final class GoldenImages {
+
+    /**
+     * The system property that makes tests record their frames as the new golden images.
+     */
+    public static final String UPDATE_PROPERTY = "dbk.golden.update";
+
+    private static final Path GOLDEN_DIRECTORY = Paths.get("src", "test", "resources", "golden");
+    private static final Path OUTPUT_DIRECTORY = Paths.get("target", "golden");
+
+    /**
+     * How far each color channel of a pixel may differ from the golden image before the pixel counts as different.
+     */
+    private static final int CHANNEL_TOLERANCE = 16;
+
+    /**
+     * The fraction of pixels that may differ from the golden image.
+     */
+    private static final double MAX_DIFFERING_PIXELS = 0.005;
+
+
+    private GoldenImages() {
+        // Intentionally empty
+    }
+
+
+    /**
+     * Checks that a frame matches its golden image.
+     *
+     * @param name  The name of the golden image, without extension.
+     * @param frame The rendered frame.
+     * @throws IOException If an image couldn't be read or written.
+     */
+    public static void assertMatches(final String name, final BufferedImage frame) throws IOException {
+        final Path golden = GOLDEN_DIRECTORY.resolve(name + ".png");
+
+        if (Boolean.getBoolean(UPDATE_PROPERTY)) {
+            write(frame, golden);
+            return;
+        }
+
+        if (!Files.exists(golden)) {
+            final Path candidate = write(frame, OUTPUT_DIRECTORY.resolve(name + ".png"));
+            Assumptions.abort("No golden image " + golden + " yet; wrote this frame to " + candidate + " for review.");
+        }
+
+        final BufferedImage expected = ImageIO.read(golden.toFile());
+        Assertions.assertEquals(expected.getWidth(), frame.getWidth(), "width of " + name);
+        Assertions.assertEquals(expected.getHeight(), frame.getHeight(), "height of " + name);
+
+        final BufferedImage diff = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_INT_RGB);
+        int differing = 0;
+
+        for (int y = 0; y < frame.getHeight(); y++) {
+            for (int x = 0; x < frame.getWidth(); x++) {
+                if (!isClose(expected.getRGB(x, y), frame.getRGB(x, y))) {
+                    diff.setRGB(x, y, 0xFF0000);
+                    differing++;
+                }
+            }
+        }
+
+        final int allowed = (int) (frame.getWidth() * frame.getHeight() * MAX_DIFFERING_PIXELS);
+        if (differing > allowed) {
+            final Path actual = write(frame, OUTPUT_DIRECTORY.resolve(name + ".png"));
+            final Path differences = write(diff, OUTPUT_DIRECTORY.resolve(name + "-diff.png"));
+            Assertions.fail(differing + " pixels of " + name + " differ from " + golden + " (at most " + allowed + " may); see " + actual + " and " + differences + ".");
+        }
+    }
+
+
+    /**
+     * @return True iff every color channel of two pixels is within our tolerance.
+     */
+    private static boolean isClose(final int expected, final int actual) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            if (Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF)) > CHANNEL_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static Path write(final BufferedImage image, final Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        ImageIO.write(image, "png", path.toFile());
+        return path;
+    }
+}
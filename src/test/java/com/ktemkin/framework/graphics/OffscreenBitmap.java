@@ -0,0 +1,133 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.graphics;
+
+import de.mossgrabers.framework.graphics.IBitmap;
+import de.mossgrabers.framework.graphics.IEncoder;
+import de.mossgrabers.framework.graphics.IRenderer;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * A bitmap that renders into a plain BufferedImage, so displays can be drawn without a running Bitwig.
+ * Encodes its pixels the way Bitwig's ARGB32 bitmaps do: one little-endian 32-bit word per pixel, so B, G, R, A in memory.
+ *
+ * @author Kate Temkin
+ */
+public class OffscreenBitmap implements IBitmap {
+
+    /**
+     * The image we render into.
+     */
+    private final BufferedImage image;
+
+    /**
+     * The image's pixels, as packed ARGB words; shared with the image.
+     */
+    private final int[] pixels;
+
+    /**
+     * The memory block handed to encoders; reused for every encode.
+     */
+    private final ByteBuffer memoryBlock;
+
+    /**
+     * Our window title; kept only so tests can report which display a frame came from.
+     */
+    private String title = "";
+
+
+    /**
+     * Constructor.
+     *
+     * @param width  The width of the bitmap, in pixels.
+     * @param height The height of the bitmap, in pixels.
+     */
+    public OffscreenBitmap(final int width, final int height) {
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.pixels = ((DataBufferInt) this.image.getRaster().getDataBuffer()).getData();
+        this.memoryBlock = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDisplayWindowTitle(final String title) {
+        this.title = title;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void showDisplayWindow() {
+        // There's no window to show; tests look at the image instead.
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void render(final boolean enableAntialias, final IRenderer renderer) {
+        final Graphics2D graphics = this.image.createGraphics();
+        try {
+            final Object antialias = enableAntialias ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF;
+            final Object textAntialias = enableAntialias ? RenderingHints.VALUE_TEXT_ANTIALIAS_ON : RenderingHints.VALUE_TEXT_ANTIALIAS_OFF;
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialias);
+            graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, textAntialias);
+
+            renderer.render(new OffscreenGraphicsContext(graphics));
+        } finally {
+            graphics.dispose();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void encode(final IEncoder encoder) {
+        this.memoryBlock.clear();
+        this.memoryBlock.asIntBuffer().put(this.pixels);
+        encoder.encode(this.memoryBlock, this.image.getWidth(), this.image.getHeight());
+    }
+
+
+    /**
+     * @return The image this bitmap renders into. Changes whenever the bitmap is rendered.
+     */
+    public BufferedImage getImage() {
+        return this.image;
+    }
+
+
+    /**
+     * @return A copy of the bitmap's current content.
+     */
+    public BufferedImage copyImage() {
+        final BufferedImage copy = new BufferedImage(this.image.getWidth(), this.image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        copy.setData(this.image.getRaster());
+        return copy;
+    }
+
+
+    /**
+     * @return The title of the display this bitmap belongs to.
+     */
+    public String getTitle() {
+        return this.title;
+    }
+}
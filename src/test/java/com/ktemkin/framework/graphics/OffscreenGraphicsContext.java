@@ -0,0 +1,302 @@
+// Written by Kate Temkin - ktemk.in
+// (c) 2017-2023
+// Licensed under LGPLv3 - http://www.gnu.org/licenses/lgpl-3.0.txt
+
+package com.ktemkin.framework.graphics;
+
+import de.mossgrabers.framework.controller.color.ColorEx;
+import de.mossgrabers.framework.graphics.Align;
+import de.mossgrabers.framework.graphics.IImage;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+
+
+/**
+ * Draws our graphics components with Java2D, so they can be rendered into a BufferedImage without a running Bitwig.
+ * <p>
+ * Implements every drawing operation of our IGraphicsContext, and of the DrivenByMoss context it extends; so each
+ * component draws here exactly the calls it would make on a device.
+ *
+ * @author Kate Temkin
+ */
+public class OffscreenGraphicsContext implements IGraphicsContext {
+
+    /**
+     * The font our text is drawn in; Java2D's logical sans-serif font, so it exists on every JVM.
+     */
+    private static final String FONT_NAME = Font.SANS_SERIF;
+
+    /**
+     * The Java2D context we draw with.
+     */
+    private final Graphics2D graphics;
+
+
+    /**
+     * Constructor.
+     *
+     * @param graphics The Java2D context to draw with.
+     */
+    public OffscreenGraphicsContext(final Graphics2D graphics) {
+        this.graphics = graphics;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void drawLine(final double x1, final double y1, final double x2, final double y2, final ColorEx color) {
+        this.stroke(new Line2D.Double(x1, y1, x2, y2), color, 1);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fillRectangle(final double left, final double top, final double width, final double height, final ColorEx backgroundColor) {
+        this.fill(new Rectangle2D.Double(left, top, width, height), backgroundColor);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void strokeRectangle(final double left, final double top, final double width, final double height, final ColorEx color) {
+        this.strokeRectangle(left, top, width, height, color, 1);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void strokeRectangle(final double left, final double top, final double width, final double height, final ColorEx color, final double lineWidth) {
+        this.stroke(new Rectangle2D.Double(left, top, width, height), color, lineWidth);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fillRoundedRectangle(final double left, final double top, final double width, final double height, final double radius, final ColorEx backgroundColor) {
+        this.fill(new RoundRectangle2D.Double(left, top, width, height, radius * 2, radius * 2), backgroundColor);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fillGradientRoundedRectangle(final double left, final double top, final double width, final double height, final double radius, final ColorEx color1, final ColorEx color2) {
+        this.graphics.setPaint(new GradientPaint(0, (float) top, toColor(color1), 0, (float) (top + height), toColor(color2)));
+        this.graphics.fill(new RoundRectangle2D.Double(left, top, width, height, radius * 2, radius * 2));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fillTriangle(final double x1, final double y1, final double x2, final double y2, final double x3, final double y3, final ColorEx backgroundColor) {
+        final Path2D.Double path = new Path2D.Double();
+        path.moveTo(x1, y1);
+        path.lineTo(x2, y2);
+        path.lineTo(x3, y3);
+        path.closePath();
+        this.fill(path, backgroundColor);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fillCircle(final double x, final double y, final double radius, final ColorEx fillColor) {
+        this.fill(new Ellipse2D.Double(x - radius, y - radius, radius * 2, radius * 2), fillColor);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void drawArc(final double x, final double y, final double radius, final double startAngle, final double finishAngle, final boolean flip, final double lineWidth, final ColorEx strokeColor) {
+
+        // Our angles run clockwise, as the display's Y axis points down; Java2D's run counter-clockwise.
+        double extent = finishAngle - startAngle;
+        if (flip) {
+            extent -= 2 * Math.PI * Math.ceil(extent / (2 * Math.PI));
+        } else {
+            extent -= 2 * Math.PI * Math.floor(extent / (2 * Math.PI));
+        }
+
+        final Arc2D.Double arc = new Arc2D.Double(x - radius, y - radius, radius * 2, radius * 2, -Math.toDegrees(startAngle), -Math.toDegrees(extent), Arc2D.OPEN);
+        this.stroke(arc, strokeColor, lineWidth);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void drawTextInBounds(final String text, final double x, final double y, final double width, final double height, final Align alignment, final ColorEx color, final double fontSize) {
+        this.drawTextInBounds(text, x, y, width, height, alignment, color, null, fontSize, false);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void drawTextInBounds(final String text, final double x, final double y, final double width, final double height, final Align alignment, final ColorEx color, final ColorEx backgroundColor, final double fontSize) {
+        this.drawTextInBounds(text, x, y, width, height, alignment, color, backgroundColor, fontSize, false);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void drawTextInBounds(final String text, final double x, final double y, final double width, final double height, final Align alignment, final ColorEx color, final ColorEx backgroundColor, final double fontSize, final boolean bold) {
+        if ((text == null) || text.isEmpty()) {
+            return;
+        }
+
+        final Graphics2D g = (Graphics2D) this.graphics.create();
+        try {
+            g.setFont(new Font(FONT_NAME, bold ? Font.BOLD : Font.PLAIN, 1).deriveFont((float) fontSize));
+            g.clip(new Rectangle2D.Double(x, y, width, height));
+
+            // Center on the height of a capital letter, as Bitwig's text is drawn on its baseline.
+            final double h = g.getFont().createGlyphVector(g.getFontRenderContext(), "T").getVisualBounds().getHeight();
+            final double w = g.getFontMetrics().getStringBounds(text, g).getWidth();
+            final double posX = (alignment == Align.CENTER) ? x + ((width - w) / 2.0) : x;
+            final double posY = y + ((height + h) / 2);
+
+            if (backgroundColor != null) {
+                final double inset = 12.0;
+                g.setColor(toColor(backgroundColor));
+                g.fill(new RoundRectangle2D.Double(posX - inset, posY - h - inset, w + (2 * inset), h + (2 * inset), inset * 2, inset * 2));
+            }
+
+            g.setColor(toColor(color));
+            g.drawString(text, (float) posX, (float) posY);
+        } finally {
+            g.dispose();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void drawTextInHeight(final String text, final double x, final double y, final ColorEx color, final double fontSize) {
+        this.drawTextInHeight(text, x, y, color, null, fontSize);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void drawTextInHeight(final String text, final double x, final double y, final ColorEx color, final ColorEx backgroundColor, final double fontSize) {
+        if ((text == null) || text.isEmpty()) {
+            return;
+        }
+
+        this.graphics.setFont(new Font(FONT_NAME, Font.PLAIN, 1).deriveFont((float) fontSize));
+        final Rectangle2D bounds = this.graphics.getFontMetrics().getStringBounds(text, this.graphics);
+
+        if (backgroundColor != null) {
+            this.fill(new Rectangle2D.Double(x, y, bounds.getWidth(), fontSize), backgroundColor);
+        }
+
+        this.graphics.setColor(toColor(color));
+        this.graphics.drawString(text, (float) x, (float) (y + fontSize));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int calculateFontSize(final String text, final double maxHeight, final double maxWidth, final double minimumFontSize) {
+        double size = minimumFontSize;
+        for (double next = minimumFontSize; next <= maxHeight; next++) {
+            this.graphics.setFont(new Font(FONT_NAME, Font.PLAIN, 1).deriveFont((float) next));
+            if (this.graphics.getFontMetrics().getStringBounds(text, this.graphics).getWidth() > maxWidth) {
+                break;
+            }
+            size = next;
+        }
+        return (int) size;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Our images aren't loaded from their SVGs, so they're drawn as an outline of their size.
+     */
+    @Override
+    public void drawImage(final IImage image, final double x, final double y) {
+        this.stroke(new Rectangle2D.Double(x, y, image.getWidth() - 1, image.getHeight() - 1), ColorEx.GRAY, 1);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Our images aren't loaded from their SVGs, so the whole image is filled.
+     */
+    @Override
+    public void maskImage(final IImage image, final double x, final double y, final ColorEx maskColor) {
+        this.fill(new Rectangle2D.Double(x, y, image.getWidth(), image.getHeight()), maskColor);
+    }
+
+
+    private void fill(final Shape shape, final ColorEx color) {
+        this.graphics.setColor(toColor(color));
+        this.graphics.fill(shape);
+    }
+
+
+    private void stroke(final Shape shape, final ColorEx color, final double lineWidth) {
+        this.graphics.setColor(toColor(color));
+        this.graphics.setStroke(new BasicStroke((float) lineWidth));
+        this.graphics.draw(shape);
+    }
+
+
+    /**
+     * Converts one of our colors into a Java2D color.
+     */
+    private static Color toColor(final ColorEx color) {
+        if (color == null) {
+            return Color.BLACK;
+        }
+
+        return new Color((float) clamp(color.getRed()), (float) clamp(color.getGreen()), (float) clamp(color.getBlue()));
+    }
+
+
+    private static double clamp(final double component) {
+        return Math.max(0, Math.min(1, component));
+    }
+}